@@ -0,0 +1,44 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package classifiers
+
+import weka.core.Instances
+
+/**
+ * Classifiers which predict whole batches of rows at once, writing the class distributions into a caller-supplied
+ * buffer out[row][class] (rows of out are allocated if null). See BatchPrediction for the row-block parallelization.
+ */
+@Typed
+interface BatchClassifier {
+
+    /** Writes the class distribution of each instance of data into out[row] */
+    void distributionsForInstances(Instances data, double[][] out)
+
+    /**
+     * Same as distributionsForInstances for column-major input: columns[attIndex][row] is the value of attribute
+     * attIndex (index as in the training Instances) of row, the class column may be null
+     */
+    void distributionsForColumns(double[][] columns, int numRows, double[][] out)
+}
@@ -0,0 +1,91 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package classifiers
+
+import experiment.ExecutionBackend
+import java.util.concurrent.RecursiveAction
+
+/**
+ * Helpers for implementing BatchClassifier: rows are processed in blocks of BLOCK_SIZE, for large batches the blocks
+ * run in parallel on the fork-join pool of the ExecutionBackend
+ */
+@Typed
+class BatchPrediction {
+
+    // Number of rows processed by one task
+    static int BLOCK_SIZE = 4096
+
+    // Batches with fewer rows are processed in the calling thread
+    static int PARALLEL_MIN_ROWS = 4 * 4096
+
+    /** The work on the rows [from, to) of a batch */
+    static abstract class RowBlockFunction {
+        abstract void apply(int from, int to)
+    }
+
+    /** Calls function for consecutive row blocks covering [0, numRows), in parallel if numRows >= PARALLEL_MIN_ROWS */
+    static void forEachBlock(int numRows, RowBlockFunction function) {
+        if (numRows < PARALLEL_MIN_ROWS) {
+            for (int from = 0; from < numRows; from += BLOCK_SIZE)
+                function.apply(from, Math.min(numRows, from + BLOCK_SIZE))
+        } else {
+            ExecutionBackend.getForkJoinPool().invoke(new BlockTask(function, 0, numRows))
+        }
+    }
+
+    /** Checks the size of out and allocates (or zeroes) its rows */
+    static void prepareOutput(double[][] out, int numRows, int numClasses) {
+        assert out != null && out.length >= numRows, "Output buffer has ${out?.length} rows, needed are $numRows"
+        for (int row = 0; row < numRows; row++) {
+            if (out[row] == null || out[row].length != numClasses)
+                out[row] = new double[numClasses]
+            else
+                Arrays.fill(out[row], 0.0)
+        }
+    }
+
+    // Splits [from, to) in halves until at most BLOCK_SIZE rows are left
+    static class BlockTask extends RecursiveAction {
+        private final RowBlockFunction function
+        private final int from
+        private final int to
+
+        BlockTask(RowBlockFunction function, int from, int to) {
+            this.function = function
+            this.from = from
+            this.to = to
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BLOCK_SIZE) {
+                function.apply(from, to)
+            } else {
+                int mid = (from + to) >>> 1
+                invokeAll(new BlockTask(function, from, mid), new BlockTask(function, mid, to))
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@
 
 package classifiers
 
+import cubes.BoxPointLocator
 import cubes.ClassCube
 
 import cubes.Cube
@@ -31,8 +32,8 @@ import edu.pvs.batchrunner.ExperimentResult
 import groovy.util.logging.Log
 import java.util.concurrent.CompletionService
 import java.util.concurrent.ExecutorCompletionService
-import java.util.concurrent.ExecutorService
 import weka.classifiers.Classifier
+import weka.core.Attribute
 import weka.core.Instance
 import weka.core.Instances
 import static experiment.Tools.loadArff
@@ -42,10 +43,9 @@ import cubes.BuildTreeAndGetBoxSet
 import static experiment.Tools.createKSplits
 
 import experiment.PerfUtils
-import classifiers.mapreduce.FadingCubesClassifierWorker
+import experiment.ExecutionBackend
 import experiment.ExperimentResultSingletonHolder
 import classifiers.mapreduce.FadingCubesClassifierMapper
-import experiment.Tools
 import classifiers.mapreduce.FadingCubesClassifierReducer
 
 /**
@@ -54,16 +54,17 @@ import classifiers.mapreduce.FadingCubesClassifierReducer
  * Time: 10:10
  */
 @Log @Typed
-class FadingCubesClassifier extends Classifier implements PerfUtils {
+class FadingCubesClassifier extends Classifier implements BatchClassifier, PerfUtils {
 
     // cube-collections for classification
     private Collection<ClassCube>[] cubes
-    private FadingCubesClassifierWorker[] classifierWorkers
-    private CompletionService<double[]> runner
+
+    // per collection: its cubes as a list and a point-location index over this list
+    private List<ClassCube>[] cubeLists
+    private BoxPointLocator[] locators
 
     // default value
     private int k = 1
-    private ExecutorService cwtp
 
     /**
      * Triggers building of the tree from a collection of boxes
@@ -97,7 +98,8 @@ class FadingCubesClassifier extends Classifier implements PerfUtils {
             }
 
             int outstandingResults = k
-            def es = Tools.getExecutorService()
+            def backend = ExecutionBackend.get(results)
+            def es = backend.executor
             CompletionService<Collection<ClassCube>[]> ecs = new ExecutorCompletionService<Collection<ClassCube>[]>(es)
             for (FadingCubesClassifierMapper w: workers)
                 ecs.submit(w)
@@ -108,15 +110,15 @@ class FadingCubesClassifier extends Classifier implements PerfUtils {
             }
             assert outstandingResults == 1
             cubes = ecs.take().get()
-            es.shutdown()
+            backend.appendStats(results)
 
-            // initialize classifier worker
-            cwtp = Tools.getExecutorService()
-            runner = new ExecutorCompletionService<double[]>(cwtp)
-            classifierWorkers = new FadingCubesClassifierWorker[k]
+            // index the cube collections for classification
+            cubeLists = (List<ClassCube>[]) new List[k]
+            locators = new BoxPointLocator[k]
             for (int i = 0; i < k; i++) {
 
-                classifierWorkers[i] = new FadingCubesClassifierWorker(i, cubes[i], true)
+                cubeLists[i] = new ArrayList<ClassCube>(cubes[i])
+                locators[i] = new BoxPointLocator(cubeLists[i])
             }
 
             def t2 = tic()
@@ -127,12 +129,6 @@ class FadingCubesClassifier extends Classifier implements PerfUtils {
     }
 
 
-    @Override
-    public void finalize() {
-        super.finalize()
-        cwtp.shutdownNow()
-    }
-
     /**
      * Predicts the class memberships for a given instance. If
      * an instance is unclassified, the returned array elements
@@ -151,39 +147,89 @@ class FadingCubesClassifier extends Classifier implements PerfUtils {
     @Override
     public double[] distributionForInstance(Instance sample) throws Exception {
 
-        double[] result
+        assert locators: "Classifier has not been initialized!"
 
-        ExperimentResult results = ExperimentResultSingletonHolder.getInstance()
+        double[] result = new double[sample.numClasses()]
 
-        assert classifierWorkers: "Classifier has not been initialized!"
+        switch (sample.classAttribute().type()) {
 
-        for (int i = 0; i < k; i++) {
-            classifierWorkers[i].setSample(sample)
-            runner.submit(classifierWorkers[i])
+            case Attribute.NOMINAL:
+                addDistributions(sample, result)
+                break
+
+            case Attribute.NUMERIC:
+                throw new InternalError("FadingCubesClassifier does not support classification for numeric classes.")
         }
 
+        return result
+    }
+
+    // Averages the faded distributions of the k cube collections for sample into result (zeroed)
+    private void addDistributions(Instance sample, double[] result) {
+
         final double scaling = (1.0 / k as double)
 
-        int outstandingResults = k
-        double[][] rawResult = new double[k][]
-        while (outstandingResults > 0) {
+        for (int i = 0; i < k; i++) {
 
-            rawResult[--outstandingResults] = runner.take().get()
+            // find the (first) cube of collection i that covers the sample
+            int index = locators[i].findFirst(sample)
+            if (index >= 0)
+                addFadedDistribution(cubeLists[i].get(index), sample, result)
         }
 
-        int numClasses = rawResult[0].length
-        result = new double[numClasses]
+        for (int j = 0; j < result.length; j++) {
+            result[j] *= scaling
+        }
+    }
 
-        for (int i = 0; i < numClasses; i++) {
+    @Override
+    void distributionsForInstances(Instances data, double[][] out) {
+        assert data.classAttribute().type() == Attribute.NOMINAL, "FadingCubesClassifier does not support classification for numeric classes."
+        distributionsForRows(data, null, data.numInstances(), out)
+    }
+
+    @Override
+    void distributionsForColumns(double[][] columns, int numRows, double[][] out) {
+        distributionsForRows(null, columns, numRows, out)
+    }
 
-            for (int j = 0; j < k; j++) {
-                result[i] += rawResult[j][i]
+    // Evaluates the k cube collections for each row in the calling (block) thread, no per-row tasks
+    private void distributionsForRows(final Instances data, final double[][] columns, int numRows, final double[][] out) {
+        assert locators != null, "Classifier has not been initialized!"
+        int numClasses = cubeLists[0].get(0).classData.classProbDistribution.length
+        BatchPrediction.prepareOutput(out, numRows, numClasses)
+        BatchPrediction.forEachBlock(numRows, new BatchPrediction.RowBlockFunction() {
+            void apply(int from, int to) {
+                double[] values = data != null ? null : new double[columns.length]
+                for (int row = from; row < to; row++) {
+                    Instance sample
+                    if (data != null) {
+                        sample = data.instance(row)
+                    } else {
+                        for (int att = 0; att < values.length; att++)
+                            values[att] = columns[att] != null ? columns[att][row] : Double.NaN
+                        sample = new Instance(1.0, values)
+                    }
+                    addDistributions(sample, out[row])
+                }
             }
+        })
+    }
 
-            result[i] *= scaling
-        }
+    /**
+     * Adds the class distribution of cube (which covers sample), weighted by calculateSampleInCubeProbability, to result
+     */
+    static void addFadedDistribution(ClassCube cube, Instance sample, double[] result) {
 
-        return result
+        double[] distribution = cube.classData.classProbDistribution
+        double cubeWeight = calculateSampleInCubeProbability(sample, cube)
+        assert distribution.length == result.length, "Distribution vector from tree has different length (${distribution.length}) than supplied sample (${result.length})"
+
+        // calculate the weighted probability distribution for the class-Attribute
+        for (int j = 0; j < result.length; j++) {
+
+            result[j] += distribution[j] * cubeWeight
+        }
     }
 
     // 1/1000
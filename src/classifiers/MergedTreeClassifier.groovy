@@ -24,14 +24,22 @@
 
 package classifiers
 
+import classifiers.mapreduce.CheckpointStore
+import classifiers.mapreduce.LocalClusterDriver
 import classifiers.mapreduce.MergedTreeClassifierMapper
 import classifiers.mapreduce.MergedTreeClassifierReducer
+import classifiers.mapreduce.ReductionScheduler
+import classifiers.mapreduce.ReducerAdmission
 import edu.pvs.batchrunner.ExperimentResult
+import experiment.ExecutionBackend
 import experiment.ExperimentResultSingletonHolder
+import experiment.InstancesView
 import experiment.PerfUtils
+import experiment.ShardedDataLoader
 import experiment.Tools
 import experiment.Visualization
 import groovy.util.logging.Log
+import trees.CompiledTree
 import trees.TreeFromBoxesBuilder
 import trees.TreeOfBoxesNode
 import weka.classifiers.Classifier
@@ -56,19 +64,28 @@ import static experiment.Tools.loadArff
  * todo: 2. check - the splitting into k parts and building each box set etc. is  similar to other classifiers (Fading, Voting etc. ) - can we extract common code?
  */
 @Log @Typed
-class MergedTreeClassifier extends Classifier implements PerfUtils {
+class MergedTreeClassifier extends Classifier implements BatchClassifier, PerfUtils {
 
     /* the source of the pruning data*/
     static enum PruningDataSource {
         SEPARATE_PRUNING_DATA, TRAINING_DATA
     }
 
+    /* how the box sets of the mappers are reduced: pairwise (see ReductionScheduler) or all at once by a single
+       reducer (see cubes.MultiWayBoxSetMerger) */
+    static enum ReductionMode {
+        PAIRWISE /* default */, MULTI_WAY
+    }
+
     // TODO introduce parameter for the batch runner to enable visualization for specific experiments
     private final static boolean VISUALIZE_MERGE = false
 
     // Root of the classification tree
     private TreeOfBoxesNode root
 
+    // The tree as flat arrays, used for classification
+    private CompiledTree compiledTree
+
     // ExperimentResult with parameters and result data
     ExperimentResult results
 
@@ -104,6 +121,7 @@ class MergedTreeClassifier extends Classifier implements PerfUtils {
             def t1 = tic()
 
             root = builder.getTree()
+            compiledTree = CompiledTree.compile(root)
 
             classifiers.MergedTreeClassifier.log.info("MTC: Tree building took ${toDiffString(t0, t1)}")
             ((List<Integer>) results.cutBoxesAtBuildTree) << root.treeStatistics.totalNumBoxesCut
@@ -111,7 +129,11 @@ class MergedTreeClassifier extends Classifier implements PerfUtils {
         }
     }
 
-    BoxSet buildClassifierInternal(Instances data, boolean recordStatistics = false, int k = -1) {
+    /**
+     * Builds the box set of the classifier from k splits of data (k = -1: parameter Ek).
+     * Nested builds (of conflict resolution, for the instances in a conflicting cube) always run in this JVM.
+     */
+    BoxSet buildClassifierInternal(Instances data, boolean recordStatistics = false, int k = -1, boolean nested = false) {
 
         BoxSet result
 
@@ -121,16 +143,42 @@ class MergedTreeClassifier extends Classifier implements PerfUtils {
         if (k == -1)
             k = Integer.parseInt(results.Ek as String)
 
+        // the splits are created in memory, or written as shard files (see ShardedDataLoader) which the mappers load;
+        // a single split (as in nested builds) is not sharded
+        int clusterWorkers = (!nested && results.Ecluster) ? results.getInt("Ecluster") : 0
+        String shardDir = (!nested && k > 1 && results.EshardDir) ? results.getString("EshardDir") : ""
         def t0 = tic()
-        List splits = createKSplits(k, data, results)
+        List splits = null
+        List<File> shardFiles = null
+        File shardsDir = null
+        if (shardDir != "" && clusterWorkers <= 0 && data != null) {
+            new File(shardDir).mkdirs()
+            shardsDir = File.createTempFile("shards", "", new File(shardDir))
+            shardsDir.delete()
+            shardsDir.mkdirs()
+            shardFiles = ShardedDataLoader.create(k, results).writeShards(data, shardsDir)
+        } else if (clusterWorkers <= 0) {
+            splits = createKSplits(k, data, results)
+        }
         def t1 = tic()
 
         // merge classifier for the training data
         if (recordStatistics)
             results.ccMergingPerf = new ArrayList<Pair<Pair<Long, Long>, Pair<Long, Long>>>()
 
-        // Here all of the processing takes place
-        result = localMapReduceClassification(data, k, splits, recordStatistics)
+        // Here all of the processing takes place: in threads of this JVM, or in worker JVMs if Ecluster > 0
+        if (clusterWorkers > 0) {
+            int workerHeapMiB = (results.EclusterHeapMiB) ? results.getInt("EclusterHeapMiB") : 0
+            def prune = (k > 1) ? results.getInt("Pprun") : 0
+            result = new LocalClusterDriver(results, clusterWorkers, workerHeapMiB).run(data, k, prune,
+                    PruningDataSource.valueOf((String) results.PprunDS))
+        } else {
+            try {
+                result = localMapReduceClassification(data, k, splits, recordStatistics, shardFiles, !nested)
+            } finally {
+                shardsDir?.deleteDir()
+            }
+        }
 
         if (recordStatistics && (results.ccMergingPerf as List).size() > 0)
             classifiers.MergedTreeClassifier.log.info("Joining of adjacent cubes in BoxSet took ${toDiffString(new Pair<Long, Long>(0, 0), plistToP(results.ccMergingPerf as List<Pair<Pair<Long, Long>, Pair<Long, Long>>>))}")
@@ -168,7 +216,8 @@ class MergedTreeClassifier extends Classifier implements PerfUtils {
 
     // This is the "core" routine of the MTC, which calls the MTC-Mapper and MTC-Reducer
     private List<ClassCube> localMapReduceClassification(Instances data, int k, List<Instances> splits = null,
-                                                         boolean recordStatistics = false) {
+                                                         boolean recordStatistics = false, List<File> shardFiles = null,
+                                                         boolean checkpoint = true) {
 
         final List<ClassCube> result
 
@@ -177,52 +226,119 @@ class MergedTreeClassifier extends Classifier implements PerfUtils {
         def prune = (k > 1) ? results.getInt("Pprun") : 0
         def pruningDataSource = PruningDataSource.valueOf((String) results.PprunDS)
 
-        // initialize executor
-        def es = Tools.getExecutorService()
+        // the shared executor (not to be shut down)
+        def backend = ExecutionBackend.get(results)
+        def es = backend.executor
         CompletionService<ProcessingResult> ecs = new ExecutorCompletionService<ProcessingResult>(es)
 
+        // results of an earlier (interrupted) run with the same parameters replace the mappers they cover;
+        // only top-level builds are checkpointed, not the nested ones of conflict resolution
+        def checkpoints = (checkpoint) ? CheckpointStore.create(results, data, k) : null
+        List<ProcessingResult> restored = (checkpoints) ? checkpoints.restore() : new ArrayList<ProcessingResult>()
+        Set<Integer> coveredMaps = new HashSet<Integer>()
+        for (restoredResult in restored)
+            coveredMaps.addAll(CheckpointStore.mapIDs(restoredResult.traceID))
+        if (restored.size() == 1 && coveredMaps.size() == k)
+            return restored[0].cubes
+        int numInputs = restored.size() + k - coveredMaps.size()
+
+        // A single mapper runs in the calling thread: the nested k = 1 builds of conflict resolution are called by
+        // reducers on the shared pool, and waiting there for a task on the same pool can deadlock (e.g. Eparallel = 1)
+        if (k == 1 && numInputs == 1) {
+            def mapper = (shardFiles) ?
+                new MergedTreeClassifierMapper(shardFiles.get(0), data.classIndex(), 0, builder, recordStatistics, prune, pruningDataSource) :
+                new MergedTreeClassifierMapper((splits) ? splits.get(0) : loadArff("split0"), 0, builder, recordStatistics, prune, pruningDataSource)
+            def finished = mapper.call()
+            checkpoints?.save(finished)
+            return finished.cubes
+        }
+
         // start execution (MAP)
         for (int i = 0; i < k; i++) {
+            if (coveredMaps.contains(i))
+                continue
 
+            if (shardFiles) {
+                ecs.submit(new MergedTreeClassifierMapper(shardFiles.get(i), data.classIndex(), i, builder, recordStatistics,
+                        prune, pruningDataSource))
+                continue
+            }
             Instances split = (splits) ? splits.get(i) : loadArff("split${i}")
             ecs.submit(new MergedTreeClassifierMapper(split, i, builder, recordStatistics, prune, pruningDataSource))
         }
 
-        final int depth = Math.floor(Math.log(k) / Math.log(2))
-        final int length = k / 2
-        ProcessingResult[][] intermediate = new ProcessingResult[depth][length]
-
-        // execute (REDUCE)
-        int intermediateResults = k
-        while (intermediateResults > 1) {
-
-            ProcessingResult res = ecs.take().get()
-
-            if (intermediate[res.depth][res.identifier]) {
-
-                def inter = intermediate[res.depth][res.identifier]
-
-                final Instances pruningData
-                if (res.highestMapID < inter.highestMapID)
-                    pruningData = Tools.mergeInstances(res.associatedInstances, inter.associatedInstances)
-                else
-                    pruningData = Tools.mergeInstances(inter.associatedInstances, res.associatedInstances)
-
-                def reducer = new MergedTreeClassifierReducer(res.depth, res.identifier, data, res.cubes, inter.cubes,
-                        prune, pruningData, true, "($inter.traceID,$res.traceID)",
-                        (res.highestMapID > inter.highestMapID) ? res.highestMapID : inter.highestMapID)
-
-                ecs.submit(reducer)
-                intermediateResults--
-                intermediate[res.depth][res.identifier] = null
-            } else {
-
-                intermediate[res.depth][res.identifier] = res
+        def reductionMode = (results.Preduce) ? results.getEnum("Preduce", ReductionMode.class) : ReductionMode.PAIRWISE
+        if (k > 2 && reductionMode == ReductionMode.MULTI_WAY) {
+            // execute (REDUCE): a single reducer for the results of all mappers
+            List<ProcessingResult> mapped = new ArrayList<ProcessingResult>(restored)
+            while (mapped.size() < numInputs) {
+                backend.sample()
+                def finished = ecs.take().get()
+                checkpoints?.save(finished)
+                mapped << finished
+            }
+            Collections.sort(mapped, new Comparator<ProcessingResult>() {
+                int compare(ProcessingResult a, ProcessingResult b) {
+                    return a.highestMapID <=> b.highestMapID
+                }
+            })
+
+            InstancesView pruningData = mapped[0].associatedInstances
+            List<BoxSet> inputs = [mapped[0].cubes]
+            for (int i = 1; i < numInputs; i++) {
+                pruningData = InstancesView.concat(pruningData, mapped[i].associatedInstances)
+                inputs << mapped[i].cubes
+            }
+            String traceID = "(" + mapped.collect { it.traceID }.join(",") + ")"
+            ecs.submit(new MergedTreeClassifierReducer(1, 0, data, inputs, prune, pruningData, true, traceID,
+                    mapped[numInputs - 1].highestMapID))
+        } else {
+            // execute (REDUCE): merge the cheapest pair of the completed results as soon as there are two,
+            // but start reducers only while their estimated footprint fits into the heap budget
+            def scheduler = new ReductionScheduler(numInputs)
+            def admission = new ReducerAdmission(ReducerAdmission.budgetBytes(results))
+            for (restoredResult in restored)
+                scheduler.offer(restoredResult)
+            while (true) {
+
+                Pair<ProcessingResult, ProcessingResult> pair
+                while ((pair = scheduler.nextPair()) != null) {
+
+                    def res = pair.first
+                    def inter = pair.second
+
+                    final InstancesView pruningData
+                    if (res.highestMapID < inter.highestMapID)
+                        pruningData = InstancesView.concat(res.associatedInstances, inter.associatedInstances)
+                    else
+                        pruningData = InstancesView.concat(inter.associatedInstances, res.associatedInstances)
+
+                    def reducer = new MergedTreeClassifierReducer(Math.max(res.depth, inter.depth) + 1, scheduler.nextReducerID(),
+                            data, [res.cubes, inter.cubes], prune, pruningData, true, "($inter.traceID,$res.traceID)",
+                            (res.highestMapID > inter.highestMapID) ? res.highestMapID : inter.highestMapID)
+
+                    admission.enqueue(reducer)
+                }
+
+                for (reducer in admission.admitPending())
+                    ecs.submit(reducer)
+                // the last reducer has been submitted
+                if (scheduler.isDone() && !admission.hasPending())
+                    break
+
+                backend.sample()
+                def finished = ecs.take().get()
+                if (finished.depth > 0)
+                    admission.release(finished.identifier)
+                checkpoints?.save(finished)
+                scheduler.offer(finished)
             }
         }
 
-        result = ecs.take().get().cubes
-        es.shutdown()
+        def last = ecs.take().get()
+        checkpoints?.save(last)
+        result = last.cubes
+        backend.appendStats(results)
 
         return result
     }
@@ -237,15 +353,8 @@ class MergedTreeClassifier extends Classifier implements PerfUtils {
 
         def resolver = new ConflictResolution(trainingData, cubes)
 
-        int cBoxes = 0
-        def it = cubes.listIterator()
-        while (it.hasNext()) {
-            def classCube = it.next()
-            if (classCube.classData.hasConflict) {
-                cBoxes++
-                resolver.resolveConflict(classCube, it)
-            }
-        }
+        // batch resolution: a single pass over the training data for all conflicting cubes
+        int cBoxes = resolver.resolveConflicts(cubes)
 
         def results = ExperimentResultSingletonHolder.getInstance()
         synchronized (results) {
@@ -262,14 +371,11 @@ class MergedTreeClassifier extends Classifier implements PerfUtils {
 
         int totalInstancesInBoxes = 0
 
-        def it = cubes.listIterator()
-        while (it.hasNext()) {
-            def classCube = it.next()
-
-            // Update # of instances falling into this box
-            int numInstances = classCube.numInstancesInsideCube(trainingData)
-            classCube.numInstances =  numInstances
-            totalInstancesInBoxes += numInstances
+        // one pass of the instances over a point-location index of all boxes
+        int[] numInstances = BoxCoverage.countInstances(cubes, trainingData)
+        for (int i = 0; i < numInstances.length; i++) {
+            cubes.get(i).numInstances = numInstances[i]
+            totalInstancesInBoxes += numInstances[i]
         }
         assert totalInstancesInBoxes >= trainingData.numInstances(), "Some instances do not covered by any box: #covered = $totalInstancesInBoxes, #instances = ${trainingData.numInstances()}"
     }
@@ -292,7 +398,7 @@ class MergedTreeClassifier extends Classifier implements PerfUtils {
         switch (instance.classAttribute().type()) {
 
             case Attribute.NOMINAL:
-                dist = root.distributionForAttributeVector(instance.toDoubleArray())
+                dist = compiledTree.distributionForInstance(instance)
                 assert dist.length == instance.numClasses(), "Distribution vector from tree has different length (${dist.length}) than supplied Instance (${instance.numClasses()})"
                 break
 
@@ -303,6 +409,28 @@ class MergedTreeClassifier extends Classifier implements PerfUtils {
         return dist
     }
 
+    @Override
+    void distributionsForInstances(Instances data, double[][] out) {
+        assert data.classAttribute().type() == Attribute.NOMINAL, "MergedTreeClassifier does not support classification for numeric classes."
+        distributionsForRows(data, null, data.numInstances(), out)
+    }
+
+    @Override
+    void distributionsForColumns(double[][] columns, int numRows, double[][] out) {
+        distributionsForRows(null, columns, numRows, out)
+    }
+
+    private void distributionsForRows(final Instances data, final double[][] columns, int numRows, final double[][] out) {
+        assert compiledTree != null, "Attempting to classify before the classifier is built - call buildClassifier() first."
+        final CompiledTree tree = compiledTree
+        BatchPrediction.prepareOutput(out, numRows, tree.numClasses)
+        BatchPrediction.forEachBlock(numRows, new BatchPrediction.RowBlockFunction() {
+            void apply(int from, int to) {
+                tree.addDistributions(data, columns, from, to, out, 1.0)
+            }
+        })
+    }
+
     @Override
     public String toString() {
         return String.valueOf(root)
@@ -321,7 +449,7 @@ class MergedTreeClassifier extends Classifier implements PerfUtils {
          */
         static long TIME_STAMP = 0L
 
-        final Instances associatedInstances
+        final InstancesView associatedInstances
         final BoxSet cubes
         final int depth
         final int identifier
@@ -329,24 +457,53 @@ class MergedTreeClassifier extends Classifier implements PerfUtils {
         final String traceID
         final int highestMapID
 
-        ProcessingResult(int id, int depth, BoxSet cubes, Instances instances, String traceID, int highestMapID) {
+        // For results kept on disk (see LocalClusterDriver): the box set file (see cubes.BoxSetWriter), its number
+        // of boxes and the ARFF file of the associated instances (null if none); cubes and associatedInstances are null
+        final File cubesFile
+        final File instancesFile
+        private final int numBoxes
+
+        ProcessingResult(int id, int depth, BoxSet cubes, InstancesView instances, String traceID, int highestMapID) {
 
             this.identifier = id
             this.depth = depth
             this.cubes = cubes
             this.associatedInstances = instances
+            this.numBoxes = cubes.size()
+            this.cubesFile = null
+            this.instancesFile = null
 
             this.traceID = traceID
             this.highestMapID = highestMapID
 
             if (VISUALIZE_MERGE) {
-                VISUALIZATION.plotToFile("results/${TIME_STAMP}-mtc-${traceID}", instances, cubes, true)
+                VISUALIZATION.plotToFile("results/${TIME_STAMP}-mtc-${traceID}", instances?.toInstances(), cubes, true)
             }
         }
 
+        ProcessingResult(int id, int depth, File cubesFile, int numBoxes, File instancesFile, String traceID, int highestMapID) {
+
+            this.identifier = id
+            this.depth = depth
+            this.cubes = null
+            this.associatedInstances = null
+            this.cubesFile = cubesFile
+            this.numBoxes = numBoxes
+            this.instancesFile = instancesFile
+
+            this.traceID = traceID
+            this.highestMapID = highestMapID
+        }
+
+        int getNumBoxes() {
+            return numBoxes
+        }
+
         @Override
         String toString() {
-            return "$traceID: cubes ${cubes.size()}|${Tools.getHashSum(cubes)}, instances ${(associatedInstances) ? associatedInstances.numInstances() + "|" + Tools.createHashSum(associatedInstances) : "null"}, highest map ID: $highestMapID"
+            if (cubes == null)
+                return "$traceID: cubes $numBoxes in $cubesFile, instances ${instancesFile ?: "null"}, highest map ID: $highestMapID"
+            return "$traceID: cubes ${cubes.size()}|${Tools.getHashSum(cubes)}, instances ${(associatedInstances) ? associatedInstances.numInstances() + "|" + Tools.createHashSum(associatedInstances.toInstances()) : "null"}, highest map ID: $highestMapID"
         }
     }
 }
@@ -27,6 +27,7 @@ package classifiers
 import cubes.JoinAdjacentCubes
 import edu.pvs.batchrunner.ExperimentResult
 import groovy.util.logging.Log
+import trees.CompiledTree
 import trees.TreeFromBoxesBuilder
 
 import weka.classifiers.Classifier
@@ -54,11 +55,14 @@ import experiment.Tools
  * todo: check - why aren't the J48 classifiers used directly, without creating box sets, and then trees on them (as here)?
  */
 @Log @Typed
-class VotingTreeClassifier extends Classifier implements PerfUtils {
+class VotingTreeClassifier extends Classifier implements BatchClassifier, PerfUtils {
 
     // Roots of the classification trees
     private TreeOfBoxesNode[] roots
 
+    // The trees as flat arrays, used for classification
+    private CompiledTree[] compiledTrees
+
     // Number of parts into which data is partitioned
     private Integer k = 1
 
@@ -80,6 +84,7 @@ class VotingTreeClassifier extends Classifier implements PerfUtils {
             int discretize = (experimentResult) ? experimentResult.getInt ("Pdisc") : 2
 
             roots = new TreeOfBoxesNode[k]
+            compiledTrees = new CompiledTree[k]
 
             def t0 = tic()
             List splits = createKSplits(k, data, experimentResult)
@@ -126,6 +131,7 @@ class VotingTreeClassifier extends Classifier implements PerfUtils {
                 }
 
                 // roots[i].buildTree()
+                compiledTrees[i] = CompiledTree.compile(roots[i])
             }
             def t2 = tic()
 
@@ -147,17 +153,13 @@ class VotingTreeClassifier extends Classifier implements PerfUtils {
 
             case Attribute.NOMINAL:
                 // todo: check - is this without class attribute (should be w/out)?
-                double[] attributeVector = instance.toDoubleArray()
                 final double OneOverK = (1.0 / k)
                 for (int i = 0; i < k; i++) {
 
-                    double[] distributionOfOneTree = roots[i].distributionForAttributeVector(attributeVector)
-                    assert distributionOfOneTree.length == instance.numClasses(), "Distribution vector from tree has different length (${distributionOfOneTree.length}) than supplied Instance (${resultDistribution.length})"
+                    assert compiledTrees[i].numClasses == instance.numClasses(), "Distribution vector from tree has different length (${compiledTrees[i].numClasses}) than supplied Instance (${resultDistribution.length})"
 
                     // average the distributions of all k trees to a single distribution which becomes result
-                    for (int j = 0; j < resultDistribution.length; j++) {
-                        resultDistribution[j] += OneOverK * distributionOfOneTree[j]
-                    }
+                    compiledTrees[i].addDistribution(instance, resultDistribution, OneOverK)
                 }
                 break
             case Attribute.NUMERIC:
@@ -167,6 +169,31 @@ class VotingTreeClassifier extends Classifier implements PerfUtils {
         return resultDistribution
     }
 
+    @Override
+    void distributionsForInstances(Instances data, double[][] out) {
+        assert data.classAttribute().type() == Attribute.NOMINAL, "VotingTreeClassifier does not support classification for numeric classes."
+        distributionsForRows(data, null, data.numInstances(), out)
+    }
+
+    @Override
+    void distributionsForColumns(double[][] columns, int numRows, double[][] out) {
+        distributionsForRows(null, columns, numRows, out)
+    }
+
+    // Averages the distributions of all k trees, each tree routes a whole row block at once
+    private void distributionsForRows(final Instances data, final double[][] columns, int numRows, final double[][] out) {
+        assert compiledTrees != null, "Attempting to classify before the classifier is built - call buildClassifier() first."
+        final CompiledTree[] trees = compiledTrees
+        final double OneOverK = (1.0 / k)
+        BatchPrediction.prepareOutput(out, numRows, trees[0].numClasses)
+        BatchPrediction.forEachBlock(numRows, new BatchPrediction.RowBlockFunction() {
+            void apply(int from, int to) {
+                for (CompiledTree tree in trees)
+                    tree.addDistributions(data, columns, from, to, out, OneOverK)
+            }
+        })
+    }
+
     @Override
     public String toString() {
 
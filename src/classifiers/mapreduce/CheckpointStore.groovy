@@ -0,0 +1,189 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package classifiers.mapreduce
+
+import classifiers.MergedTreeClassifier
+import cubes.BoxSet
+import cubes.BoxSetWriter
+import cubes.MappedBoxSetReader
+import edu.pvs.batchrunner.ExperimentResult
+import experiment.InstancesView
+import experiment.Tools
+import groovy.util.logging.Log
+import java.security.MessageDigest
+import weka.core.Instances
+
+/**
+ * Checkpoints of the results of mappers and reducers (see MergedTreeClassifier.localMapReduceClassification), in a
+ * directory per run keyed by the input parameters of the experiment, k and a hash of the training data. A result is
+ * stored as box set file (see cubes.BoxSetWriter), ARFF file of its pruning data and a "done" file with depth,
+ * identifier, trace ID and highest map ID, written last. A node of the reduction tree is named after the set of
+ * mappers it covers (from its trace ID), so a restarted run can resume from the largest disjoint stored nodes.
+ * The same files are used to pass results between the JVMs of the local cluster mode (see LocalClusterWorker).
+ */
+@Typed @Log
+class CheckpointStore {
+
+    final File directory
+    private final int classIndex
+
+    CheckpointStore(File directory, int classIndex) {
+        this.directory = directory
+        this.classIndex = classIndex
+        directory.mkdirs()
+    }
+
+    /** The store for this run in the directory given by the parameter Echeckpoint, null if not set */
+    static CheckpointStore create(ExperimentResult results, Instances data, int k) {
+        String baseDir = (results && results.Echeckpoint) ? results.getString("Echeckpoint") : ""
+        if (baseDir == "")
+            return null
+        def store = new CheckpointStore(new File(baseDir, runKey(results, data, k)), data.classIndex())
+        CheckpointStore.log.info "Checkpoints of this run in ${store.directory}"
+        return store
+    }
+
+    // Digest of the input parameters (except the checkpoint settings), k and the training data
+    static String runKey(ExperimentResult results, Instances data, int k) {
+        List<String> names = new ArrayList<String>()
+        for (key in results.keySet()) {
+            String name = key.toString()
+            if (results.getEntryInfo(name)?.isInput && !name.startsWith("Echeckpoint"))
+                names << name
+        }
+        Collections.sort(names)
+        def description = new StringBuilder()
+        for (name in names)
+            description.append(name).append('=').append(results.get(name)).append(';')
+        description.append("k=").append(k).append(";data=").append(data.numInstances()).append('/').append(Tools.createHashSum(data))
+        return digest(description.toString())
+    }
+
+    // The first 8 bytes of the SHA-1 digest of s in hex
+    private static String digest(String s) {
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"))
+        def result = new StringBuilder()
+        for (int i = 0; i < 8; i++)
+            result.append(String.format("%02x", digest[i] & 0xff))
+        return result.toString()
+    }
+
+    /** The ids of the mappers whose box sets were merged into the result with this trace ID */
+    static SortedSet<Integer> mapIDs(String traceID) {
+        SortedSet<Integer> result = new TreeSet<Integer>()
+        def matcher = traceID =~ /\d+/
+        while (matcher.find())
+            result << Integer.parseInt(matcher.group())
+        return result
+    }
+
+    /** The file name of the node covering the mappers mapIDs, distinct for distinct sets (up to digest collisions) */
+    static String nodeName(SortedSet<Integer> mapIDs) {
+        // Set.hashCode() is the sum of the ids, so it is not used: e.g. {0, 1, 5} and {0, 2, 4} would get the same name
+        return String.format("node-%d-%d-%s", mapIDs.first(), mapIDs.size(), digest(mapIDs.join(",")))
+    }
+
+    /** Stores the (in-memory) result unless a checkpoint of the same node exists */
+    void save(MergedTreeClassifier.ProcessingResult result) {
+        String name = nodeName(mapIDs(result.traceID))
+        File doneFile = new File(directory, name + LocalClusterWorker.DONE_SUFFIX)
+        if (doneFile.exists())
+            return
+        Properties done = writeResult(result, directory, name)
+        LocalClusterWorker.writeProperties(done, doneFile)
+    }
+
+    /**
+     * Loads the stored results covering the most mappers such that no mapper is covered twice (the frontier of the
+     * reduction tree of earlier runs)
+     */
+    List<MergedTreeClassifier.ProcessingResult> restore() {
+        List<MergedTreeClassifier.ProcessingResult> stored = new ArrayList<MergedTreeClassifier.ProcessingResult>()
+        File[] doneFiles = directory.listFiles(new FilenameFilter() {
+            boolean accept(File dir, String name) {
+                return name.endsWith(LocalClusterWorker.DONE_SUFFIX)
+            }
+        })
+        for (doneFile in doneFiles)
+            stored << readResult(directory, LocalClusterWorker.readProperties(doneFile))
+        Collections.sort(stored, new Comparator<MergedTreeClassifier.ProcessingResult>() {
+            int compare(MergedTreeClassifier.ProcessingResult a, MergedTreeClassifier.ProcessingResult b) {
+                return mapIDs(b.traceID).size() <=> mapIDs(a.traceID).size()
+            }
+        })
+
+        List<MergedTreeClassifier.ProcessingResult> result = new ArrayList<MergedTreeClassifier.ProcessingResult>()
+        Set<Integer> covered = new HashSet<Integer>()
+        for (onDisk in stored) {
+            SortedSet<Integer> ids = mapIDs(onDisk.traceID)
+            if (!Collections.disjoint(covered, ids))
+                continue
+            covered.addAll(ids)
+            result << load(onDisk, classIndex)
+        }
+        if (result)
+            CheckpointStore.log.info "Restored ${result.size()} results covering the mappers $covered"
+        return result
+    }
+
+    // ------------ Result files ------------
+
+    /** Writes the box set and instances of result to dir, returns the properties of the "done" file */
+    static Properties writeResult(MergedTreeClassifier.ProcessingResult result, File dir, String name) {
+        Properties done = new Properties()
+        File boxesFile = new File(dir, name + LocalClusterWorker.BOXES_SUFFIX)
+        BoxSetWriter.write(result.cubes, boxesFile)
+        done.setProperty("boxes", boxesFile.getName())
+        if (result.associatedInstances != null) {
+            File instancesFile = new File(dir, name + LocalClusterWorker.INSTANCES_SUFFIX)
+            Tools.saveArff(result.associatedInstances.toInstances(), instancesFile)
+            done.setProperty("instances", instancesFile.getName())
+        }
+        done.setProperty("numBoxes", String.valueOf(result.cubes.size()))
+        done.setProperty("depth", String.valueOf(result.depth))
+        done.setProperty("identifier", String.valueOf(result.identifier))
+        done.setProperty("traceID", result.traceID)
+        done.setProperty("highestMapID", String.valueOf(result.highestMapID))
+        return done
+    }
+
+    /** The result described by the properties of a "done" file, referring to the files in dir */
+    static MergedTreeClassifier.ProcessingResult readResult(File dir, Properties done) {
+        String instancesName = done.getProperty("instances")
+        return new MergedTreeClassifier.ProcessingResult(Integer.parseInt(done.getProperty("identifier")),
+                Integer.parseInt(done.getProperty("depth")), new File(dir, done.getProperty("boxes")),
+                Integer.parseInt(done.getProperty("numBoxes")),
+                (instancesName != null) ? new File(dir, instancesName) : null,
+                done.getProperty("traceID"), Integer.parseInt(done.getProperty("highestMapID")))
+    }
+
+    /** Reads the box set and instances of a result on disk */
+    static MergedTreeClassifier.ProcessingResult load(MergedTreeClassifier.ProcessingResult onDisk, int classIndex) {
+        BoxSet cubes = MappedBoxSetReader.read(onDisk.cubesFile)
+        Instances instances = (onDisk.instancesFile != null) ? Tools.loadArff(onDisk.instancesFile.getPath(), classIndex) : null
+        return new MergedTreeClassifier.ProcessingResult(onDisk.identifier, onDisk.depth, cubes, InstancesView.of(instances),
+                onDisk.traceID, onDisk.highestMapID)
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package classifiers.mapreduce
+
+import classifiers.MergedTreeClassifier
+import cubes.BoxSet
+import cubes.ExampleCubesFromPaper
+import edu.pvs.batchrunner.ExperimentResult
+import experiment.InstancesView
+import experiment.Tools
+import weka.core.Instances
+
+class CheckpointStoreTest extends GroovyTestCase {
+
+    final String irisDatasetFileName = "data/arff/iris.arff"
+
+    private File directory
+    private Instances data
+
+    void setUp() {
+        directory = File.createTempFile("checkpoints", "")
+        directory.delete()
+        data = Tools.loadArff(irisDatasetFileName)
+    }
+
+    void tearDown() {
+        directory.deleteDir()
+    }
+
+    // A result for the node with the given trace ID, with the first numRows rows of iris as pruning data
+    private MergedTreeClassifier.ProcessingResult node(String traceID, int numRows) {
+        Instances rows = new Instances(data, 0, numRows)
+        return new MergedTreeClassifier.ProcessingResult(numRows, traceID.count("(") + 1,
+                new BoxSet(ExampleCubesFromPaper.getA()), InstancesView.of(rows), traceID, numRows)
+    }
+
+    private static Set<String> traceIDs(List<MergedTreeClassifier.ProcessingResult> results) {
+        Set<String> ids = new HashSet<String>()
+        for (result in results)
+            ids << result.traceID
+        return ids
+    }
+
+    void testNodeNamesOfSetsWithTheSameSum() {
+        assertEquals([0, 1, 5] as SortedSet, CheckpointStore.mapIDs("(0,(1,5))"))
+        assertFalse(CheckpointStore.nodeName([0, 1, 5] as SortedSet) == CheckpointStore.nodeName([0, 2, 4] as SortedSet))
+        assertEquals(CheckpointStore.nodeName([0, 1, 5] as SortedSet), CheckpointStore.nodeName(CheckpointStore.mapIDs("((5,0),1)")))
+
+        // overlapping nodes of the same size are both stored, restore() returns one of them
+        def store = new CheckpointStore(directory, data.classIndex())
+        store.save(node("(0,(1,5))", 10))
+        store.save(node("(0,(2,4))", 20))
+        File[] doneFiles = directory.listFiles(new FilenameFilter() {
+            boolean accept(File dir, String name) {
+                return name.endsWith(LocalClusterWorker.DONE_SUFFIX)
+            }
+        })
+        assertEquals(2, doneFiles.length)
+        List<MergedTreeClassifier.ProcessingResult> restored = store.restore()
+        assertEquals(1, restored.size())
+        assertTrue(restored[0].traceID in ["(0,(1,5))", "(0,(2,4))"])
+    }
+
+    void testRestoreReturnsLargestDisjointNodes() {
+        def store = new CheckpointStore(directory, data.classIndex())
+        for (traceID in ["0", "1", "2", "5", "(0,1)", "(2,4)"])
+            store.save(node(traceID, 10))
+        // a node that exists already is not overwritten
+        store.save(node("(0,1)", 30))
+
+        List<MergedTreeClassifier.ProcessingResult> restored = new CheckpointStore(directory, data.classIndex()).restore()
+        assertEquals(["(0,1)", "(2,4)", "5"] as Set, traceIDs(restored))
+        for (result in restored)
+            assertEquals(10, result.associatedInstances.numInstances())
+
+        assertEquals([], new CheckpointStore(new File(directory, "empty"), data.classIndex()).restore())
+    }
+
+    void testRoundTrip() {
+        directory.mkdirs()
+        def saved = node("((0,1),2)", 25)
+        Properties done = CheckpointStore.writeResult(saved, directory, "node")
+        def onDisk = CheckpointStore.readResult(directory, done)
+        assertNull(onDisk.cubes)
+        assertEquals(saved.cubes.size(), onDisk.numBoxes)
+        assertEquals(saved.traceID, onDisk.traceID)
+
+        def loaded = CheckpointStore.load(onDisk, data.classIndex())
+        assertEquals(saved.identifier, loaded.identifier)
+        assertEquals(saved.depth, loaded.depth)
+        assertEquals(saved.traceID, loaded.traceID)
+        assertEquals(saved.highestMapID, loaded.highestMapID)
+        assertEquals(saved.cubes.size(), loaded.cubes.size())
+        for (int i = 0; i < saved.cubes.size(); i++)
+            assertEquals(saved.cubes[i], loaded.cubes[i])
+        Instances instances = loaded.associatedInstances.toInstances()
+        assertEquals(25, instances.numInstances())
+        assertEquals(data.classIndex(), instances.classIndex())
+        assertEquals(Tools.createHashSum(saved.associatedInstances.toInstances()), Tools.createHashSum(instances))
+
+        // a result without pruning data
+        def withoutInstances = new MergedTreeClassifier.ProcessingResult(1, 0, saved.cubes, null, "3", 3)
+        onDisk = CheckpointStore.readResult(directory, CheckpointStore.writeResult(withoutInstances, directory, "node-3"))
+        assertNull(onDisk.instancesFile)
+        assertNull(CheckpointStore.load(onDisk, data.classIndex()).associatedInstances)
+    }
+
+    void testRunKey() {
+        def results = new ExperimentResult("")
+        results.setEntryInfo("Pdisc", "", null, true)
+        results.setEntryInfo("Echeckpoint", "", null, true)
+        results.put("Pdisc", "0")
+        results.put("Echeckpoint", "a")
+        results.put("mergedBoxesCount", "10")   // not an input
+        String key = CheckpointStore.runKey(results, data, 2)
+        assertEquals(16, key.length())
+
+        results.put("Echeckpoint", "b")
+        results.put("mergedBoxesCount", "20")
+        assertEquals(key, CheckpointStore.runKey(results, data, 2))
+
+        assertFalse(key == CheckpointStore.runKey(results, data, 3))
+        assertFalse(key == CheckpointStore.runKey(results, new Instances(data, 0, 100), 2))
+        results.put("Pdisc", "1")
+        assertFalse(key == CheckpointStore.runKey(results, data, 2))
+    }
+}
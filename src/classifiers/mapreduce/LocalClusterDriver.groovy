@@ -0,0 +1,259 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package classifiers.mapreduce
+
+import classifiers.MergedTreeClassifier
+import cubes.BoxSet
+import cubes.MappedBoxSetReader
+import edu.pvs.batchrunner.ExperimentResult
+import experiment.PerfUtils
+import experiment.ShardedDataLoader
+import experiment.Tools
+import groovy.util.logging.Log
+import weka.core.Instances
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Runs the map and reduce steps of the MergedTreeClassifier in separate worker JVMs on this machine (see
+ * LocalClusterWorker), so that each has its own heap and GC. The driver and the workers share a working directory:
+ * the driver writes the parameters, the training data and one ARFF shard per mapper (see ShardedDataLoader), and
+ * places task files into the inbox of the worker with the fewest outstanding tasks; workers report each result as box
+ * set file (see cubes.BoxSetWriter) plus "done" file. Reduce tasks are scheduled by a ReductionScheduler as results arrive; the
+ * driver only keeps the file names and sizes of the results, not the box sets.
+ */
+@Typed @Log
+class LocalClusterDriver implements PerfUtils {
+
+    // Max. time without any progress before the run is aborted
+    static long TIMEOUT_MILLIS = 24L * 3600 * 1000
+
+    // Time the workers get to terminate after destroy() on a failed run, before they are killed forcibly
+    static long DESTROY_GRACE_MILLIS = 5000
+
+    private final ExperimentResult results
+    private final int numWorkers
+    private final int workerHeapMiB
+    private final File workDir
+    private final File resultsDir
+
+    private final List<Process> workers = new ArrayList<Process>()
+    private int[] outstandingTasks
+    // worker of each task which is not yet done
+    private final Map<String, Integer> workerOfTask = new HashMap<String, Integer>()
+
+    LocalClusterDriver(ExperimentResult results, int numWorkers, int workerHeapMiB = 0, File workDir = null) {
+        this.results = results
+        this.numWorkers = numWorkers
+        this.workerHeapMiB = workerHeapMiB
+        this.workDir = workDir ?: createTempDir()
+        this.resultsDir = new File(this.workDir, LocalClusterWorker.RESULTS_DIR)
+    }
+
+    private static File createTempDir() {
+        File dir = File.createTempFile("mtc-cluster", "")
+        dir.delete()
+        dir.mkdirs()
+        return dir
+    }
+
+    /** Builds and merges the box sets of k splits of data, as MergedTreeClassifier.localMapReduceClassification */
+    BoxSet run(Instances data, int k, int prune, MergedTreeClassifier.PruningDataSource pruningDataSource) {
+        def t0 = tic()
+        boolean succeeded = false
+        try {
+            prepareWorkDir(data, k)
+            startWorkers()
+            for (int i = 0; i < k; i++) {
+                Properties task = new Properties()
+                task.setProperty("shard", LocalClusterWorker.SHARDS_DIR + "/shard" + i + ".arff")
+                task.setProperty("identifier", String.valueOf(i))
+                task.setProperty("pruningDataSource", pruningDataSource.name())
+                submit(taskName("map", i), LocalClusterWorker.TaskType.MAP, task, data, prune)
+            }
+
+            def scheduler = new ReductionScheduler(k)
+            MergedTreeClassifier.ProcessingResult finished = null
+            while (true) {
+                finished = awaitResult()
+                if (scheduler.isDone())
+                    break
+                scheduler.offer(finished)
+
+                Pair<MergedTreeClassifier.ProcessingResult, MergedTreeClassifier.ProcessingResult> pair
+                while ((pair = scheduler.nextPair()) != null) {
+                    def first = pair.first
+                    def second = pair.second
+                    // inputs ordered by highestMapID (as the pruning data in MergedTreeClassifier)
+                    if (first.highestMapID > second.highestMapID) {
+                        first = pair.second
+                        second = pair.first
+                    }
+                    int id = scheduler.nextReducerID()
+                    Properties task = new Properties()
+                    task.setProperty("depth", String.valueOf(Math.max(first.depth, second.depth) + 1))
+                    task.setProperty("identifier", String.valueOf(id))
+                    task.setProperty("traceID", "($second.traceID,$first.traceID)")
+                    task.setProperty("highestMapID", String.valueOf(second.highestMapID))
+                    task.setProperty("boxes0", first.cubesFile.getName())
+                    task.setProperty("boxes1", second.cubesFile.getName())
+                    if (first.instancesFile != null)
+                        task.setProperty("instances0", first.instancesFile.getName())
+                    if (second.instancesFile != null)
+                        task.setProperty("instances1", second.instancesFile.getName())
+                    submit(taskName("reduce", id), LocalClusterWorker.TaskType.REDUCE, task, data, prune)
+                }
+            }
+
+            BoxSet result = MappedBoxSetReader.read(finished.cubesFile)
+            def t1 = tic()
+            appendPerfLogEntry(results, "LocalCluster", k, numWorkers, result.size(), -1L, timeDiff(t0, t1), memDiff(t0, t1))
+            succeeded = true
+            return result
+        } finally {
+            // after a failure the inboxes may still hold tasks (or a worker hangs), so the workers are not waited for
+            if (succeeded)
+                stopWorkers()
+            else
+                destroyWorkers()
+            workDir.deleteDir()
+        }
+    }
+
+    private static String taskName(String prefix, int id) {
+        return String.format("%s-%06d", prefix, id)
+    }
+
+    private void prepareWorkDir(Instances data, int k) {
+        File shardsDir = new File(workDir, LocalClusterWorker.SHARDS_DIR)
+        shardsDir.mkdirs()
+        resultsDir.mkdirs()
+
+        // the scalar parameters of the experiment, except those of the driver
+        Properties parameters = new Properties()
+        for (entry in results.entrySet()) {
+            if (LocalClusterWorker.DRIVER_PARAMETERS.contains(entry.key.toString()))
+                continue
+            def value = entry.value
+            if (value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Enum)
+                parameters.setProperty(entry.key.toString(), value.toString())
+        }
+        LocalClusterWorker.writeProperties(parameters, new File(workDir, LocalClusterWorker.PARAMETERS_FILE))
+
+        Tools.saveArff(data, new File(workDir, LocalClusterWorker.DATA_FILE))
+        ShardedDataLoader.create(k, results).writeShards(data, shardsDir)
+    }
+
+    private void startWorkers() {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath()
+        outstandingTasks = new int[numWorkers]
+        for (int w = 0; w < numWorkers; w++) {
+            LocalClusterWorker.inbox(workDir, w).mkdirs()
+            List<String> command = [java]
+            if (workerHeapMiB > 0)
+                command << "-Xmx" + workerHeapMiB + "m"
+            command.addAll(["-cp", System.getProperty("java.class.path"), LocalClusterWorker.class.getName(),
+                    workDir.getPath(), String.valueOf(w)])
+            ProcessBuilder builder = new ProcessBuilder(command)
+            builder.redirectErrorStream(true)
+            builder.redirectOutput(new File(workDir, "worker" + w + ".log"))
+            workers << builder.start()
+        }
+        LocalClusterDriver.log.info "Started $numWorkers worker JVMs in $workDir"
+    }
+
+    private void stopWorkers() {
+        for (int w = 0; w < workers.size(); w++) {
+            Properties stop = new Properties()
+            stop.setProperty("type", LocalClusterWorker.TaskType.STOP.name())
+            // sorts after all other tasks
+            LocalClusterWorker.writeProperties(stop, new File(LocalClusterWorker.inbox(workDir, w), "zzz-stop" + LocalClusterWorker.TASK_SUFFIX))
+        }
+        for (worker in workers) {
+            worker.waitFor()
+        }
+        workers.clear()
+    }
+
+    // Terminates the workers without waiting for their queued tasks
+    private void destroyWorkers() {
+        for (worker in workers)
+            worker.destroy()
+        for (worker in workers) {
+            if (!worker.waitFor(DESTROY_GRACE_MILLIS, TimeUnit.MILLISECONDS))
+                worker.destroyForcibly()
+        }
+        workers.clear()
+    }
+
+    // Places the task into the inbox of the worker with the fewest outstanding tasks
+    private void submit(String name, LocalClusterWorker.TaskType type, Properties task, Instances data, int prune) {
+        task.setProperty("name", name)
+        task.setProperty("type", type.name())
+        task.setProperty("prune", String.valueOf(prune))
+        task.setProperty("classIndex", String.valueOf(data.classIndex()))
+        int worker = 0
+        for (int w = 1; w < numWorkers; w++)
+            if (outstandingTasks[w] < outstandingTasks[worker])
+                worker = w
+        outstandingTasks[worker]++
+        workerOfTask.put(name, worker)
+        LocalClusterWorker.writeProperties(task, new File(LocalClusterWorker.inbox(workDir, worker), name + LocalClusterWorker.TASK_SUFFIX))
+    }
+
+    // Waits for the next "done" file of a submitted task and returns its result (box set and instances on disk)
+    private MergedTreeClassifier.ProcessingResult awaitResult() {
+        long lastProgress = System.currentTimeMillis()
+        while (true) {
+            for (name in new ArrayList<String>(workerOfTask.keySet())) {
+                File doneFile = new File(resultsDir, name + LocalClusterWorker.DONE_SUFFIX)
+                if (!doneFile.exists())
+                    continue
+
+                Properties done = LocalClusterWorker.readProperties(doneFile)
+                outstandingTasks[workerOfTask.remove(name)]--
+                if (done.getProperty("error") != null)
+                    throw new RuntimeException("Task $name failed on worker ${done.getProperty("worker")}: ${done.getProperty("error")}")
+                return CheckpointStore.readResult(resultsDir, done)
+            }
+            for (int w = 0; w < workers.size(); w++) {
+                if (outstandingTasks[w] > 0 && !isAlive(workers[w]))
+                    throw new RuntimeException("Worker $w terminated, see ${new File(workDir, "worker" + w + ".log")}")
+            }
+            if (System.currentTimeMillis() - lastProgress > TIMEOUT_MILLIS)
+                throw new RuntimeException("No result from the workers within $TIMEOUT_MILLIS ms")
+            Thread.sleep(LocalClusterWorker.POLL_MILLIS)
+        }
+    }
+
+    private static boolean isAlive(Process process) {
+        try {
+            process.exitValue()
+            return false
+        } catch (IllegalThreadStateException e) {
+            return true
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package classifiers.mapreduce
+
+import classifiers.MergedTreeClassifier
+import cubes.BoxSet
+import cubes.ClassCube
+import edu.pvs.batchrunner.ExperimentResult
+import experiment.ExperimentResultSingletonHolder
+import experiment.Tools
+import weka.core.Instances
+
+/**
+ * Runs the local cluster with worker JVMs on this machine (the class path of the test must contain the compiled
+ * classes, as it is passed to the workers)
+ */
+class LocalClusterDriverTest extends GroovyTestCase {
+
+    final String irisDatasetFileName = "data/arff/iris.arff"
+
+    private ExperimentResult oldResults
+
+    private static ExperimentResult parameters(int k) {
+        def results = new ExperimentResult("")
+        results.put("dataset", "iris")
+        results.put("Ek", String.valueOf(k))
+        results.put("Esim", "0.0")
+        results.put("EuseSameRandomSamples", "false")
+        results.put("Etf", "J48")
+        results.put("Pgrow", "MIN_NUM_SPLITS")
+        results.put("Pdisc", "0")
+        results.put("Pprun", "0")
+        results.put("PprunDS", "TRAINING_DATA")
+        results.put("Pmerg", "0")
+        results.put("Pconf", "a")
+        return results
+    }
+
+    void setUp() {
+        oldResults = ExperimentResultSingletonHolder.getInstance()
+    }
+
+    void tearDown() {
+        ExperimentResultSingletonHolder.setInstance(oldResults)
+    }
+
+    // With two splits there is a single reducer, so both runs merge the same box sets in the same order
+    void testSameBoxSetAsLocalMapReduce() {
+        int k = 2
+        def results = parameters(k)
+        ExperimentResultSingletonHolder.setInstance(results)
+        Instances data = Tools.loadArff(irisDatasetFileName)
+
+        def classifier = new MergedTreeClassifier()
+        classifier.results = results
+        List<ClassCube> local = classifier.localMapReduceClassification(data, k, Tools.createKSplits(k, data, results))
+
+        BoxSet cluster = new LocalClusterDriver(results, 2).run(data, k, 0, MergedTreeClassifier.PruningDataSource.TRAINING_DATA)
+
+        assertEquals(local.size(), cluster.size())
+        assertEquals(new HashSet<ClassCube>(local), new HashSet<ClassCube>(cluster))
+    }
+
+    // A failing task ends the run with an exception instead of waiting for the workers, and the workDir is removed
+    void testFailureStopsWorkers() {
+        def results = parameters(2)
+        results.put("Pdisc", "not a number")   // the mappers fail to parse it
+        ExperimentResultSingletonHolder.setInstance(results)
+        Instances data = Tools.loadArff(irisDatasetFileName)
+
+        File workDir = File.createTempFile("mtc-cluster-test", "")
+        workDir.delete()
+        workDir.mkdirs()
+        shouldFail(RuntimeException) {
+            new LocalClusterDriver(results, 2, 0, workDir).run(data, 2, 0, MergedTreeClassifier.PruningDataSource.TRAINING_DATA)
+        }
+        assertFalse(workDir.exists())
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package classifiers.mapreduce
+
+import classifiers.MergedTreeClassifier
+import cubes.BoxSet
+import cubes.BuildTreeAndGetBoxSet
+import cubes.MappedBoxSetReader
+import edu.pvs.batchrunner.ExperimentResult
+import experiment.ExperimentResultSingletonHolder
+import experiment.InstancesView
+import experiment.Tools
+import groovy.util.logging.Log
+import weka.core.Instances
+
+/**
+ * A worker JVM of the local cluster mode (see LocalClusterDriver), started with the working directory and its index.
+ * It polls its inbox for task files (MAP, REDUCE or STOP), runs MergedTreeClassifierMapper/-Reducer on the box sets
+ * and ARFF files named by the task, and writes the result box set, the associated instances and finally a "done"
+ * file into the results directory (see CheckpointStore.writeResult). All files are made visible by renaming them when complete.
+ */
+@Typed @Log
+class LocalClusterWorker {
+
+    static enum TaskType {
+        MAP, REDUCE, STOP
+    }
+
+    static long POLL_MILLIS = 20
+
+    // Layout of the working directory
+    static final String PARAMETERS_FILE = "parameters.properties"
+    static final String DATA_FILE = "data.arff"
+    static final String SHARDS_DIR = "shards"
+    static final String RESULTS_DIR = "results"
+    static final String TASK_SUFFIX = ".task"
+    static final String DONE_SUFFIX = ".done"
+    static final String BOXES_SUFFIX = ".boxes"
+    static final String INSTANCES_SUFFIX = ".arff"
+
+    // Parameters of the driver which are not passed to the workers (the workers neither start clusters nor shard or
+    // checkpoint, also not in the nested builds of conflict resolution)
+    static final List<String> DRIVER_PARAMETERS = ["Ecluster", "EshardDir", "Echeckpoint"]
+
+    private final File workDir
+    private final int index
+    private final File inbox
+    private final File resultsDir
+
+    private ExperimentResult results
+    // The full training data (for conflict resolution in reducers), loaded on first use
+    private Instances data
+
+    LocalClusterWorker(File workDir, int index) {
+        this.workDir = workDir
+        this.index = index
+        this.inbox = inbox(workDir, index)
+        this.resultsDir = new File(workDir, RESULTS_DIR)
+    }
+
+    static void main(String[] args) {
+        new LocalClusterWorker(new File(args[0]), Integer.parseInt(args[1])).run()
+    }
+
+    static File inbox(File workDir, int index) {
+        return new File(workDir, "worker" + index)
+    }
+
+    void run() {
+        results = new ExperimentResult("worker" + index)
+        Properties parameters = readProperties(new File(workDir, PARAMETERS_FILE))
+        for (name in parameters.stringPropertyNames())
+            results.put(name, parameters.getProperty(name))
+        results.ccMergingPerf = new ArrayList<Pair<Pair<Long, Long>, Pair<Long, Long>>>()
+        results.mergedBoxesCount = 0
+        ExperimentResultSingletonHolder.setInstance(results)
+
+        LocalClusterWorker.log.info "Worker $index started on $workDir"
+        while (true) {
+            File taskFile = nextTask()
+            if (taskFile == null) {
+                Thread.sleep(POLL_MILLIS)
+                continue
+            }
+            Properties task = readProperties(taskFile)
+            taskFile.delete()
+            TaskType type = TaskType.valueOf(task.getProperty("type"))
+            if (type == TaskType.STOP)
+                break
+            execute(type, task)
+        }
+        LocalClusterWorker.log.info "Worker $index stopped"
+    }
+
+    // The oldest (by name) complete task file in the inbox, null if none
+    private File nextTask() {
+        File[] tasks = inbox.listFiles(new FilenameFilter() {
+            boolean accept(File dir, String name) {
+                return name.endsWith(TASK_SUFFIX)
+            }
+        })
+        if (tasks == null || tasks.length == 0)
+            return null
+        Arrays.sort(tasks)
+        return tasks[0]
+    }
+
+    private void execute(TaskType type, Properties task) {
+        String name = task.getProperty("name")
+        Properties done
+        try {
+            MergedTreeClassifier.ProcessingResult result = (type == TaskType.MAP) ? map(task) : reduce(task)
+            done = CheckpointStore.writeResult(result, resultsDir, name)
+        } catch (Throwable e) {
+            LocalClusterWorker.log.severe "Task $name failed: $e"
+            done = new Properties()
+            done.setProperty("error", e.toString())
+        }
+        done.setProperty("worker", String.valueOf(index))
+        writeProperties(done, new File(resultsDir, name + DONE_SUFFIX))
+    }
+
+    private MergedTreeClassifier.ProcessingResult map(Properties task) {
+        int classIndex = Integer.parseInt(task.getProperty("classIndex"))
+        Instances split = Tools.loadArff(new File(workDir, task.getProperty("shard")).getPath(), classIndex)
+        def pruningDataSource = MergedTreeClassifier.PruningDataSource.valueOf(task.getProperty("pruningDataSource"))
+        def mapper = new MergedTreeClassifierMapper(split, Integer.parseInt(task.getProperty("identifier")),
+                new BuildTreeAndGetBoxSet(results), false, Integer.parseInt(task.getProperty("prune")), pruningDataSource)
+        return mapper.call()
+    }
+
+    private MergedTreeClassifier.ProcessingResult reduce(Properties task) {
+        int classIndex = Integer.parseInt(task.getProperty("classIndex"))
+        if (data == null)
+            data = Tools.loadArff(new File(workDir, DATA_FILE).getPath(), classIndex)
+
+        List<BoxSet> inputs = new ArrayList<BoxSet>()
+        InstancesView pruningData = null
+        // the inputs are ordered by highestMapID, as the pruning data in MergedTreeClassifier
+        for (int i = 0; task.getProperty("boxes" + i) != null; i++) {
+            inputs << MappedBoxSetReader.read(new File(resultsDir, task.getProperty("boxes" + i)))
+            String instancesName = task.getProperty("instances" + i)
+            if (instancesName != null)
+                pruningData = InstancesView.concat(pruningData,
+                        InstancesView.of(Tools.loadArff(new File(resultsDir, instancesName).getPath(), classIndex)))
+        }
+        def reducer = new MergedTreeClassifierReducer(Integer.parseInt(task.getProperty("depth")),
+                Integer.parseInt(task.getProperty("identifier")), data, inputs, Integer.parseInt(task.getProperty("prune")),
+                pruningData, false, task.getProperty("traceID"), Integer.parseInt(task.getProperty("highestMapID")))
+        return reducer.call()
+    }
+
+    // ------------ Files of the protocol ------------
+
+    static Properties readProperties(File file) {
+        Properties result = new Properties()
+        def stream = new FileInputStream(file)
+        try {
+            result.load(stream)
+        } finally {
+            stream.close()
+        }
+        return result
+    }
+
+    /** Writes the properties to a temporary file and renames it to file, so that readers never see partial files */
+    static void writeProperties(Properties properties, File file) {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp")
+        def stream = new FileOutputStream(tmp)
+        try {
+            properties.store(stream, null)
+        } finally {
+            stream.close()
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Could not rename $tmp to $file")
+    }
+}
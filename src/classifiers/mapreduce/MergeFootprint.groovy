@@ -0,0 +1,95 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package classifiers.mapreduce
+
+import cubes.BoxSet
+import cubes.ClassCube
+
+/**
+ * Estimates the additional heap needed by a reducer merging box sets (see MergedTreeClassifierReducer): the number of
+ * resulting boxes is estimated from the box counts and the intersection selectivity measured on a sample of the
+ * inputs, and multiplied by the approximate size of a ClassCube (bounds, ClassData, distribution) plus the transient
+ * data of the merge (candidate pairs).
+ */
+@Typed
+class MergeFootprint {
+
+    // Max. number of boxes taken from each input to measure the selectivity
+    static int SAMPLE_SIZE = 256
+
+    // Approximate heap bytes: object headers and references of a ClassCube with its ClassData, per dim, per class
+    private static final long BYTES_PER_BOX = 112
+    private static final long BYTES_PER_DIM = 40
+    private static final long BYTES_PER_CLASS = 8
+    // Transient data of the merge per resulting box (pair objects and set entries of the intersection finder)
+    private static final long TRANSIENT_BYTES_PER_BOX = 96
+
+    /** Estimated number of boxes resulting from merging inputs (in this order, as MultiWayBoxSetMerger for > 2 inputs) */
+    static long estimateResultSize(List<BoxSet> inputs) {
+        double result = inputs[0].size()
+        for (int j = 1; j < inputs.size(); j++) {
+            BoxSet next = inputs[j]
+            double selectivity = estimateSelectivity(inputs[0], next)
+            // both inputs partition the space, so the result has at least as many boxes as each of them
+            result = Math.max(Math.max(result, next.size()), selectivity * result * next.size())
+        }
+        return (long) Math.ceil(result)
+    }
+
+    /** Estimated peak of additional heap bytes for merging inputs */
+    static long estimatePeakBytes(List<BoxSet> inputs) {
+        ClassCube aCube = null
+        for (input in inputs) {
+            if (input.size() > 0) {
+                aCube = input.get(0)
+                break
+            }
+        }
+        if (aCube == null)
+            return 0L
+        int numClasses = aCube.classData?.classProbDistribution?.length
+        long bytesPerBox = BYTES_PER_BOX + BYTES_PER_DIM * aCube.nDims + BYTES_PER_CLASS * numClasses + TRANSIENT_BYTES_PER_BOX
+        return estimateResultSize(inputs) * bytesPerBox
+    }
+
+    /** Fraction of pairs of boxes from a and b which intersect, measured on at most SAMPLE_SIZE boxes of each set */
+    static double estimateSelectivity(BoxSet a, BoxSet b) {
+        if (a.size() == 0 || b.size() == 0)
+            return 0.0
+        int strideA = Math.max(1, (int) Math.ceil(a.size() / (double) SAMPLE_SIZE))
+        int strideB = Math.max(1, (int) Math.ceil(b.size() / (double) SAMPLE_SIZE))
+        long numPairs = 0
+        long numIntersecting = 0
+        for (int i = 0; i < a.size(); i += strideA) {
+            ClassCube cubeA = a.get(i)
+            for (int j = 0; j < b.size(); j += strideB) {
+                numPairs++
+                if (cubeA.intersects(b.get(j)))
+                    numIntersecting++
+            }
+        }
+        return numIntersecting / (double) numPairs
+    }
+}
@@ -36,6 +36,7 @@ import cubes.BuildTreeAndGetBoxSet
 import classifiers.MergedTreeClassifier
 import cubes.BoxSet
 import experiment.Tools
+import experiment.InstancesView
 
 /**
  * Created by IntelliJ IDEA.
@@ -57,6 +58,9 @@ class MergedTreeClassifierMapper implements Callable<MergedTreeClassifier.Proces
     private final BuildTreeAndGetBoxSet builder
 
     private Instances split
+    // Alternatively, the ARFF shard from which split is loaded in call() (see experiment.ShardedDataLoader)
+    private File shardFile
+    private int classIndex = -1
 
     MergedTreeClassifierMapper(Instances split, int id, BuildTreeAndGetBoxSet builder,
                                boolean recordStatistics, int pruningParam, MergedTreeClassifier.PruningDataSource pruningDataSource, int numSets = 3, int seed = 1) {
@@ -75,9 +79,18 @@ class MergedTreeClassifierMapper implements Callable<MergedTreeClassifier.Proces
         this.recordStatistics = recordStatistics
     }
 
+    MergedTreeClassifierMapper(File shardFile, int classIndex, int id, BuildTreeAndGetBoxSet builder,
+                               boolean recordStatistics, int pruningParam, MergedTreeClassifier.PruningDataSource pruningDataSource) {
+        this((Instances) null, id, builder, recordStatistics, pruningParam, pruningDataSource)
+        this.shardFile = shardFile
+        this.classIndex = classIndex
+    }
+
     @Override
     MergedTreeClassifier.ProcessingResult call() {
         def t0 = tic()
+        if (split == null)
+            split = Tools.loadArff(shardFile.getPath(), classIndex)
 
         def trainingData
         def pruningData
@@ -135,7 +148,7 @@ class MergedTreeClassifierMapper implements Callable<MergedTreeClassifier.Proces
                         after building the underlying tree in ${toDiffString(t0, t1)}.""")
         }
 
-        // dividing the id by 2 ensures two collections to be merged
-        return new MergedTreeClassifier.ProcessingResult((int) (id / 2), 0, boxSet, pruningData, "" + id, id)
+        // the pairing of results for merging is done by the ReductionScheduler
+        return new MergedTreeClassifier.ProcessingResult(id, 0, boxSet, InstancesView.of((Instances) pruningData), "" + id, id)
     }
 }
@@ -28,6 +28,7 @@ import cubes.ClassCube
 import cubes.JoinAdjacentCubes
 import edu.pvs.batchrunner.ExperimentResult
 import experiment.ExperimentResultSingletonHolder
+import experiment.InstancesView
 import experiment.PerfUtils
 import groovy.util.logging.Log
 import java.util.concurrent.Callable
@@ -35,61 +36,94 @@ import weka.core.Instances
 import classifiers.MergedTreeClassifier
 import trees.TreeFromBoxesBuilder
 import cubes.BoxSet
+import cubes.MultiWayBoxSetMerger
+import cubes.ExternalBoxSetMerger
+import trees.RankedBoxesPruning
 
 import static classifiers.mapreduce.MergedTreeClassifierReducer.*
 
 /**
- * This Callable takes to Collections of Cubes and merges them via a BoxSet
+ * This Callable takes two (or, for a multi-way reduction, more) Collections of Cubes and merges them via a BoxSet
  */
 @Typed @Log
 class MergedTreeClassifierReducer implements Callable<MergedTreeClassifier.ProcessingResult>, PerfUtils {
 
     private BoxSet resultingBoxSet
     private final Instances data
-    private BoxSet cubesA
-    private BoxSet cubesB
+    private final List<BoxSet> inputs
     private boolean recordStatistics
     private ExperimentResult results
     private final int prune
-    private Instances pruningData
+    private InstancesView pruningData
     private final int id
     private final int depth
 
     private final int highestMapID
     private final String traceID
 
-    MergedTreeClassifierReducer(int depth, int identifier, Instances data, Collection<ClassCube> cubesA,
-                                Collection<ClassCube> cubesB, int prune, Instances pruningData,
-                                boolean recordStatistics = false, String traceID, int highestMapID) {
+    // estimated by MergeFootprint, used for admission control (see ReducerAdmission)
+    final long estimatedBoxes
+    final long estimatedBytes
 
-        this.depth = depth + 1
-        this.id = (identifier / 2)
+    // depth and identifier are those of the result (see ReductionScheduler)
+    MergedTreeClassifierReducer(int depth, int identifier, Instances data, List<BoxSet> inputs, int prune,
+                                InstancesView pruningData, boolean recordStatistics = false, String traceID, int highestMapID) {
+
+        this.depth = depth
+        this.id = identifier
 
         results = ExperimentResultSingletonHolder.getInstance()
         resultingBoxSet = new BoxSet()
         this.data = data
-        this.cubesA = cubesA
-        this.cubesB = cubesB
+        assert inputs.size() >= 2
+        this.inputs = inputs
         this.prune = prune
         this.pruningData = pruningData
         this.recordStatistics = recordStatistics
         
         this.traceID = traceID
         this.highestMapID = highestMapID
+
+        this.estimatedBoxes = MergeFootprint.estimateResultSize(inputs)
+        this.estimatedBytes = MergeFootprint.estimatePeakBytes(inputs)
+    }
+
+    int getIdentifier() {
+        return id
     }
 
     @Override
     MergedTreeClassifier.ProcessingResult call() {
 
-        def cubeSizeA = cubesA.size()
-        def cubeSizeB = cubesB.size()
+        def cubeSizeA = inputs[0].size()
+        def cubeSizeB = (inputs.size() == 2) ? inputs[1].size() : -1
+        List<Integer> inputSizes = inputs.collect { it.size() }
+        int numInputCubes = 0
+        for (input in inputs)
+            numInputCubes += input.size()
+
+        // merges with a larger estimated result are done on disk (0 = never)
+        def externalMinBoxes = (results && results.PunifyExternalMinBoxes) ? results.getInt("PunifyExternalMinBoxes") : 0
 
-        MergedTreeClassifierReducer.log.info "==> Start of unify, box sets sizes are $cubeSizeA and $cubeSizeB ..."
+        MergedTreeClassifierReducer.log.info "==> Start of unify, box sets sizes are ${inputSizes} ..."
         def t0 = tic()
-        this.resultingBoxSet.mergeBoxSetsViaIntersections(cubesA)
-        this.resultingBoxSet.mergeBoxSetsViaIntersections(cubesB)
+        if (inputs.size() == 2 && externalMinBoxes > 0 && estimatedBoxes >= externalMinBoxes) {
+            // releases the inputs (as far as only referenced here) before reading back the result
+            MergedTreeClassifierReducer.log.info "Estimated result of $estimatedBoxes boxes, merging on disk"
+            this.resultingBoxSet = ExternalBoxSetMerger.merge(inputs)
+        } else if (inputs.size() == 2) {
+            // TREE_OVERLAY exploits that box sets from mappers (and after tree building) are leaves of a tree
+            def mergeMode = (results && results.Punify) ? results.getEnum("Punify", BoxSet.MergeMode.class) : BoxSet.MergeMode.INTERSECTION_FINDER
+            this.resultingBoxSet.mergeBoxSetsViaIntersections(inputs[0], mergeMode)
+            this.resultingBoxSet.mergeBoxSetsViaIntersections(inputs[1], mergeMode)
+        } else {
+            // all inputs at once, without intermediate box sets
+            this.resultingBoxSet = new MultiWayBoxSetMerger(inputs).merge()
+        }
         def t1 = tic()
-        appendPerfLogEntry(results, "Unify", cubesA.size(), cubesB.size(), resultingBoxSet.size(), -1L, timeDiff(t0,t1), memDiff(t0,t1))
+        appendPerfLogEntry(results, "Unify", cubeSizeA, cubeSizeB, resultingBoxSet.size(), -1L, timeDiff(t0,t1), memDiff(t0,t1))
+        // estimated vs. observed footprint of the merge (the observed heap growth is only indicative, GC may interfere)
+        appendPerfLogEntry(results, "MergeMemory", estimatedBytes, estimatedBoxes, memDiff(t0,t1), resultingBoxSet.size(), timeDiff(t0,t1), memDiff(t0,t1))
         MergedTreeClassifierReducer.log.info "Unify operation took ${toDiffString(t0, t1)}"
 
         def bDash = this.resultingBoxSet.size()
@@ -156,14 +190,34 @@ class MergedTreeClassifierReducer implements Callable<MergedTreeClassifier.Proce
         def t5 = tic()
         MergedTreeClassifierReducer.log.info "Finished tree building, it took ${toDiffString(t4,t5)}"
 
+        // cap the box set forwarded to the next merge level (0 = unlimited)
+        def maxBoxes = (results && results.PreduceMaxBoxes) ? results.getInt("PreduceMaxBoxes") : 0
+        if (maxBoxes > 0 && resultingBoxSet.size() > maxBoxes) {
+            // ranking as for Pprun > 9, by classImpurity otherwise (needs neither coverage nor bounding box)
+            def ranking = (prune > 9) ? prune : 300
+            if (20 <= ranking && ranking < 40) {
+                // numInstances was computed before joining and tree building, and splitting a box copies it into
+                // both parts; recount on the final boxes
+                MergedTreeClassifier.updateCoverage(data, resultingBoxSet)
+            }
+            def numBoxes = resultingBoxSet.size()
+            def boundingBox = resultingBoxSet.boundingBox
+            resultingBoxSet = new RankedBoxesPruning(resultingBoxSet, ranking, maxBoxes).filterBoxes()
+            resultingBoxSet.boundingBox = boundingBox
+            def t6 = tic()
+            appendPerfLogEntry(results, "CapBoxes", numBoxes, maxBoxes, resultingBoxSet.size(), -1L, timeDiff(t5,t6), memDiff(t5,t6))
+            MergedTreeClassifierReducer.log.info "Capped $numBoxes boxes to ${resultingBoxSet.size()}, it took ${toDiffString(t5,t6)}"
+            t5 = t6
+        }
+
 
         if (recordStatistics) {
             synchronized (results) {
                 (results.cubeCountRatioAfterMerging as List<Integer>) <<
-                        resultingBoxSet.size() / (cubesA.size() + cubesB.size()) * 100.0
+                        resultingBoxSet.size() / numInputCubes * 100.0
             }
             MergedTreeClassifierReducer.log.info("""|box-counting|:
-                    Merging ${cubesA.size()} and ${cubesB.size()} cubes took ${toDiffString(t0, t1)},
+                    Merging ${inputSizes} cubes took ${toDiffString(t0, t1)},
                     conflict resolution took ${toDiffString(t1, t2)},
                     computing coverage took ${toDiffString(t2,t3)},
                     join of adjacent cubes took ${toDiffString(t3,t4)},
@@ -174,9 +228,9 @@ class MergedTreeClassifierReducer implements Callable<MergedTreeClassifier.Proce
         }
 
         if (prune) {
-            // Forward half of the pruning data // TODO: Is this ok? Should we forward all of the data?
-            pruningData.stratify(2)
-            pruningData = pruningData.trainCV(2, 1)
+            // Forward half of the pruning data (as stratify(2) and trainCV(2, 1), without copying)
+            // TODO: Is this ok? Should we forward all of the data?
+            pruningData = pruningData.stratifiedHalf()
         }
 
         def t9 = tic()
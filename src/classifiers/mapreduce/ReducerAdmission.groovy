@@ -0,0 +1,93 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package classifiers.mapreduce
+
+import edu.pvs.batchrunner.ExperimentResult
+
+/**
+ * Admission control for reducers: a reducer is started only while the sum of the estimated footprints (see
+ * MergeFootprint) of the running reducers plus its own fits into the heap budget; the others wait in FIFO order.
+ * A reducer is always admitted if no other one is running, so a single merge larger than the budget still proceeds.
+ * Not thread-safe, used by the thread collecting the map/reduce results.
+ */
+@Typed
+class ReducerAdmission {
+
+    // Default budget as fraction of the max. heap, if the parameter PreduceHeapMiB is not set (or <= 0)
+    static double DEFAULT_HEAP_FRACTION = 0.7
+
+    final long budgetBytes
+
+    private long reservedBytes = 0
+    private final Map<Integer, Long> reservedByReducer = new HashMap<Integer, Long>()
+    private final LinkedList<MergedTreeClassifierReducer> pending = new LinkedList<MergedTreeClassifierReducer>()
+
+    ReducerAdmission(long budgetBytes) {
+        this.budgetBytes = budgetBytes
+    }
+
+    /** The budget from the parameter PreduceHeapMiB, or DEFAULT_HEAP_FRACTION of the max. heap */
+    static long budgetBytes(ExperimentResult experimentResult) {
+        int budgetMiB = (experimentResult && experimentResult.PreduceHeapMiB) ? experimentResult.getInt("PreduceHeapMiB") : 0
+        if (budgetMiB > 0)
+            return budgetMiB * 1024L * 1024L
+        return (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION)
+    }
+
+    void enqueue(MergedTreeClassifierReducer reducer) {
+        pending << reducer
+    }
+
+    boolean hasPending() {
+        return !pending.isEmpty()
+    }
+
+    int getNumRunning() {
+        return reservedByReducer.size()
+    }
+
+    /** Removes and returns the pending reducers (in FIFO order) which fit into the budget now */
+    List<MergedTreeClassifierReducer> admitPending() {
+        List<MergedTreeClassifierReducer> result = new ArrayList<MergedTreeClassifierReducer>()
+        while (!pending.isEmpty()) {
+            MergedTreeClassifierReducer reducer = pending.getFirst()
+            long bytes = reducer.estimatedBytes
+            if (reservedByReducer.size() > 0 && reservedBytes + bytes > budgetBytes)
+                break
+            pending.removeFirst()
+            reservedBytes += bytes
+            reservedByReducer.put(reducer.identifier, bytes)
+            result << reducer
+        }
+        return result
+    }
+
+    /** Releases the budget reserved by the reducer with this identifier (no-op for others, e.g. mappers) */
+    void release(int reducerID) {
+        Long bytes = reservedByReducer.remove(reducerID)
+        if (bytes != null)
+            reservedBytes -= bytes
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package classifiers.mapreduce
+
+import classifiers.MergedTreeClassifier
+
+/**
+ * Decides which box sets are merged by the reducers: whenever at least two (mapper or reducer) results are available,
+ * the pair with the lowest merge cost is merged next (Huffman-style, so large box sets are merged as late as possible).
+ * Works for any number of inputs; results are offered as they complete, so reducing overlaps with running mappers.
+ */
+@Typed
+class ReductionScheduler {
+
+    // Completed results not yet scheduled for merging
+    private final List<MergedTreeClassifier.ProcessingResult> available = new ArrayList<MergedTreeClassifier.ProcessingResult>()
+
+    // Number of box sets left to merge into the final one (available, running mappers and running reducers)
+    private int remaining
+
+    // Identifier for the next reducer
+    private int nextReducerID = 0
+
+    ReductionScheduler(int numInputs) {
+        assert numInputs > 0
+        this.remaining = numInputs
+    }
+
+    /**
+     * The cost model for merging two box sets with sizeA and sizeB boxes: the intersection work (and the worst-case
+     * size of the result) grows with the product of the input sizes
+     */
+    static long mergeCost(int sizeA, int sizeB) {
+        return (long) Math.max(sizeA, 1) * (long) Math.max(sizeB, 1)
+    }
+
+    /** True if the next completed result is the final one */
+    boolean isDone() {
+        return remaining == 1 && available.isEmpty()
+    }
+
+    void offer(MergedTreeClassifier.ProcessingResult result) {
+        available << result
+    }
+
+    /** Removes and returns the available pair with the lowest merge cost, or null if less than two are available */
+    Pair<MergedTreeClassifier.ProcessingResult, MergedTreeClassifier.ProcessingResult> nextPair() {
+        if (available.size() < 2)
+            return null
+
+        int bestA = -1
+        int bestB = -1
+        long bestCost = Long.MAX_VALUE
+        for (int a = 0; a < available.size(); a++) {
+            for (int b = a + 1; b < available.size(); b++) {
+                long cost = mergeCost(available[a].numBoxes, available[b].numBoxes)
+                if (cost < bestCost) {
+                    bestCost = cost
+                    bestA = a
+                    bestB = b
+                }
+            }
+        }
+        // remove the higher index first
+        def resultB = available.remove(bestB)
+        def resultA = available.remove(bestA)
+        remaining--
+        return new Pair<MergedTreeClassifier.ProcessingResult, MergedTreeClassifier.ProcessingResult>(resultA, resultB)
+    }
+
+    /** Returns a new identifier for a reducer */
+    int nextReducerID() {
+        return nextReducerID++
+    }
+}
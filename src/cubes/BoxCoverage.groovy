@@ -0,0 +1,78 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+import classifiers.BatchPrediction
+import weka.core.Instance
+import weka.core.Instances
+
+/**
+ * Counts the instances inside each box (as Cube.numInstancesInsideCube) for all boxes at once: builds a
+ * BoxPointLocator over the boxes and streams the instances through it in a single pass. The instance blocks run in
+ * parallel (see BatchPrediction.forEachBlock), each thread counting into its own array; the arrays are summed at the end.
+ */
+@Typed
+class BoxCoverage {
+
+    /** Returns for each box of cubes (same order) the number of instances of data inside it */
+    static int[] countInstances(List<? extends Cube> cubes, final Instances data) {
+        final int[] result = new int[cubes.size()]
+        if (cubes.size() == 0 || data.numInstances() == 0)
+            return result
+
+        final BoxPointLocator locator = new BoxPointLocator(cubes)
+        final int numBoxes = cubes.size()
+        final List<int[]> threadCounts = Collections.synchronizedList(new ArrayList<int[]>())
+        final ThreadLocal<int[]> counts = new ThreadLocal<int[]>() {
+            protected int[] initialValue() {
+                int[] threadResult = new int[numBoxes]
+                threadCounts.add(threadResult)
+                return threadResult
+            }
+        }
+
+        BatchPrediction.forEachBlock(data.numInstances(), new BatchPrediction.RowBlockFunction() {
+            void apply(int from, int to) {
+                int[] blockCounts = counts.get()
+                def hits = new BoxPointLocator.Hits()
+                double[] point = new double[locator.nDims]
+                for (int row = from; row < to; row++) {
+                    Instance instance = data.instance(row)
+                    for (int dim = 0; dim < point.length; dim++)
+                        point[dim] = instance.value(dim)
+                    locator.findAll(point, hits)
+                    for (int k = 0; k < hits.size; k++)
+                        blockCounts[hits.get(k)]++
+                }
+            }
+        })
+
+        for (int[] threadResult in threadCounts) {
+            for (int i = 0; i < numBoxes; i++)
+                result[i] += threadResult[i]
+        }
+        return result
+    }
+}
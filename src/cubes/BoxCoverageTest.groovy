@@ -0,0 +1,88 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+import classifiers.BatchPrediction
+import weka.core.Attribute
+import weka.core.FastVector
+import weka.core.Instance
+import weka.core.Instances
+
+class BoxCoverageTest extends GroovyTestCase {
+
+    // Instances at the points of BoxPointLocatorTest.randomPoint (on box boundaries, with missing values)
+    private static Instances randomInstances(Random random, int numRows) {
+        FastVector attributes = new FastVector()
+        for (int dim = 0; dim < BoxPointLocatorTest.N_DIMS; dim++)
+            attributes.addElement(new Attribute("x" + dim))
+        FastVector classValues = new FastVector()
+        classValues.addElement("0")
+        classValues.addElement("1")
+        attributes.addElement(new Attribute("class", classValues))
+        Instances data = new Instances("coverage", attributes, numRows)
+        data.setClassIndex(BoxPointLocatorTest.N_DIMS)
+        for (int row = 0; row < numRows; row++)
+            data.add(new Instance(1.0, BoxPointLocatorTest.randomPoint(random)))
+        return data
+    }
+
+    private static void assertAsLinearScan(List<ClassCube> boxes, Instances data) {
+        int[] counts = BoxCoverage.countInstances(boxes, data)
+        assertEquals(boxes.size(), counts.length)
+        for (int i = 0; i < boxes.size(); i++)
+            assertEquals("box $i", boxes[i].numInstancesInsideCube(data), counts[i])
+    }
+
+    void testAsLinearScan() {
+        def random = new Random(19)
+        List<ClassCube> boxes = BoxPointLocatorTest.randomBoxes(random, 200)
+        assertAsLinearScan(boxes, randomInstances(random, 1500))
+    }
+
+    // Many small blocks in parallel: the counts of all threads are summed, also over repeated calls
+    void testParallelBlocksAsLinearScan() {
+        int oldBlockSize = BatchPrediction.BLOCK_SIZE
+        int oldParallelMinRows = BatchPrediction.PARALLEL_MIN_ROWS
+        BatchPrediction.BLOCK_SIZE = 7
+        BatchPrediction.PARALLEL_MIN_ROWS = 1
+        try {
+            def random = new Random(23)
+            List<ClassCube> boxes = BoxPointLocatorTest.randomBoxes(random, 200)
+            Instances data = randomInstances(random, 3000)
+            for (int round = 0; round < 3; round++)
+                assertAsLinearScan(boxes, data)
+        } finally {
+            BatchPrediction.BLOCK_SIZE = oldBlockSize
+            BatchPrediction.PARALLEL_MIN_ROWS = oldParallelMinRows
+        }
+    }
+
+    void testEmpty() {
+        def random = new Random(29)
+        assertEquals(0, BoxCoverage.countInstances(new ArrayList<ClassCube>(), randomInstances(random, 10)).length)
+        int[] counts = BoxCoverage.countInstances(BoxPointLocatorTest.randomBoxes(random, 5), randomInstances(random, 0))
+        assertEquals([0, 0, 0, 0, 0], counts.toList())
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+import weka.core.Instance
+
+/**
+ * A point-location index over a fixed list of boxes: returns the boxes containing a point, with exactly the semantics
+ * of Cube.isInsideCube (closed intervals; a NaN value at a bounded dimension ends the check with "inside").
+ * The index is a k-d tree over the boxes: a node splits at (splitDim, splitValue) into boxes lying strictly below
+ * (upper < splitValue, left subtree), strictly above (lower > splitValue, right subtree), and the boxes straddling
+ * splitValue, which are kept at the node and checked for each query passing through it.
+ * Box indices refer to the position in the list passed to the constructor.
+ */
+@Typed
+class BoxPointLocator {
+
+    // Max. number of boxes in a leaf
+    static int LEAF_SIZE = 8
+
+    // Max. number of values used to determine the median for a split
+    private static final int MEDIAN_SAMPLE_SIZE = 256
+
+    final int nDims
+
+    // The boxes as columns (rows in the order of the constructor argument)
+    private final ColumnarBoxSet boxes
+
+    // boxOrder[nodeFrom[n]..nodeTo[n]-1] are the boxes stored at node n (straddling boxes, or all boxes of a leaf)
+    private int[] boxOrder
+    private int[] nodeFrom
+    private int[] nodeTo
+    // split dimension (-1 for leaves), split value and children (-1 if empty) of node n
+    private int[] splitDim
+    private double[] splitValue
+    private int[] leftChild
+    private int[] rightChild
+    private int numNodes
+    private int root = -1
+
+    BoxPointLocator(List<? extends Cube> cubes) {
+        assert cubes != null
+        if (cubes.size() == 0) {
+            nDims = 0
+            boxes = null
+            return
+        }
+        boxes = ColumnarBoxSet.fromBoxes(cubes, false)
+        nDims = boxes.nDims
+
+        int n = boxes.size
+        boxOrder = new int[n]
+        for (int i = 0; i < n; i++)
+            boxOrder[i] = i
+        // each node keeps at least one box, except for nodes with empty children
+        int capacity = 2 * n + 1
+        nodeFrom = new int[capacity]
+        nodeTo = new int[capacity]
+        splitDim = new int[capacity]
+        splitValue = new double[capacity]
+        leftChild = new int[capacity]
+        rightChild = new int[capacity]
+        root = build(0, n)
+    }
+
+    int size() {
+        return boxes == null ? 0 : boxes.size
+    }
+
+    // ------------ Building ------------
+
+    // Builds the subtree for boxOrder[from..to-1], returns the node index (or -1 if the range is empty)
+    private int build(int from, int to) {
+        if (from >= to)
+            return -1
+        int node = numNodes++
+        splitDim[node] = -1
+        leftChild[node] = -1
+        rightChild[node] = -1
+        nodeFrom[node] = from
+        nodeTo[node] = to
+        if (to - from <= LEAF_SIZE)
+            return node
+
+        // choose the dimension whose median leaves the fewest straddling boxes
+        int bestDim = -1
+        double bestValue = Double.NaN
+        int minStraddling = to - from
+        for (int dim = 0; dim < nDims; dim++) {
+            double value = medianOfCenters(from, to, dim)
+            if (Double.isNaN(value))
+                continue
+            int numStraddling = 0
+            for (int k = from; k < to; k++) {
+                int i = boxOrder[k]
+                if (boxes.getLower(i, dim) <= value && value <= boxes.getUpper(i, dim))
+                    numStraddling++
+            }
+            if (numStraddling < minStraddling) {
+                minStraddling = numStraddling
+                bestDim = dim
+                bestValue = value
+            }
+        }
+        if (bestDim < 0)    // no dimension separates any boxes, keep all at this node
+            return node
+
+        // 3-way partition: [from, lt) below, [lt, gt) straddling, [gt, to) above
+        int lt = from
+        int gt = to
+        int k = from
+        while (k < gt) {
+            int i = boxOrder[k]
+            if (boxes.getUpper(i, bestDim) < bestValue) {
+                swap(k++, lt++)
+            } else if (boxes.getLower(i, bestDim) > bestValue) {
+                swap(k, --gt)
+            } else {
+                k++
+            }
+        }
+
+        splitDim[node] = bestDim
+        splitValue[node] = bestValue
+        nodeFrom[node] = lt
+        nodeTo[node] = gt
+        int left = build(from, lt)
+        int right = build(gt, to)
+        leftChild[node] = left
+        rightChild[node] = right
+        return node
+    }
+
+    // Median of the box centers at dim (for half-bounded boxes the finite bound), NaN if all boxes are unbounded at dim
+    private double medianOfCenters(int from, int to, int dim) {
+        int n = to - from
+        int stride = n <= MEDIAN_SAMPLE_SIZE ? 1 : (int) Math.ceil(n / (double) MEDIAN_SAMPLE_SIZE)
+        double[] centers = new double[Math.min(n, MEDIAN_SAMPLE_SIZE)]
+        int numCenters = 0
+        for (int k = from; k < to && numCenters < centers.length; k += stride) {
+            int i = boxOrder[k]
+            if (!boxes.isBounded(i, dim))
+                continue
+            double lower = boxes.getLower(i, dim)
+            double upper = boxes.getUpper(i, dim)
+            if (Double.isInfinite(lower))
+                centers[numCenters++] = upper
+            else if (Double.isInfinite(upper))
+                centers[numCenters++] = lower
+            else
+                centers[numCenters++] = (lower + upper) / 2
+        }
+        if (numCenters == 0)
+            return Double.NaN
+        Arrays.sort(centers, 0, numCenters)
+        return centers[numCenters >>> 1]
+    }
+
+    private void swap(int a, int b) {
+        int tmp = boxOrder[a]
+        boxOrder[a] = boxOrder[b]
+        boxOrder[b] = tmp
+    }
+
+    // ------------ Queries ------------
+
+    /** Returns the smallest index of a box containing point (as Cube.isInsideCube), or -1 if there is none */
+    int findFirst(double[] point) {
+        if (root < 0)
+            return -1
+        int firstNaN = firstNaNDim(point)
+        int result = Integer.MAX_VALUE
+        int[] stack = new int[64]
+        int stackSize = 0
+        stack[stackSize++] = root
+        while (stackSize > 0) {
+            int node = stack[--stackSize]
+            for (int k = nodeFrom[node]; k < nodeTo[node]; k++) {
+                int i = boxOrder[k]
+                if (i < result && contains(i, point))
+                    result = i
+            }
+            stackSize = pushChildren(node, point, firstNaN, stack, stackSize)
+            if (stackSize + 2 > stack.length)
+                stack = Arrays.copyOf(stack, stack.length * 2)
+        }
+        return result == Integer.MAX_VALUE ? -1 : result
+    }
+
+    int findFirst(Instance instance) {
+        return findFirst(toPoint(instance))
+    }
+
+    /** Stores the indices of all boxes containing point (as Cube.isInsideCube) in hits (cleared before) */
+    void findAll(double[] point, Hits hits) {
+        hits.clear()
+        if (root < 0)
+            return
+        int firstNaN = firstNaNDim(point)
+        int[] stack = hits.stack
+        int stackSize = 0
+        stack[stackSize++] = root
+        while (stackSize > 0) {
+            int node = stack[--stackSize]
+            for (int k = nodeFrom[node]; k < nodeTo[node]; k++) {
+                int i = boxOrder[k]
+                if (contains(i, point))
+                    hits.add(i)
+            }
+            stackSize = pushChildren(node, point, firstNaN, stack, stackSize)
+            if (stackSize + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2)
+                hits.stack = stack
+            }
+        }
+    }
+
+    void findAll(Instance instance, Hits hits) {
+        findAll(toPoint(instance), hits)
+    }
+
+    /**
+     * Stores the indices of all boxes intersecting the region [lower, upper] in hits (cleared before), with the
+     * semantics of Cube.intersects: -inf/+inf stand for unbounded ends, touching boxes do not intersect
+     */
+    void findIntersecting(double[] lower, double[] upper, Hits hits) {
+        hits.clear()
+        if (root < 0)
+            return
+        int[] stack = hits.stack
+        int stackSize = 0
+        stack[stackSize++] = root
+        while (stackSize > 0) {
+            int node = stack[--stackSize]
+            for (int k = nodeFrom[node]; k < nodeTo[node]; k++) {
+                int i = boxOrder[k]
+                if (intersects(i, lower, upper))
+                    hits.add(i)
+            }
+            int dim = splitDim[node]
+            if (dim >= 0) {
+                // boxes in the left (right) subtree end before (start after) the split value
+                if (leftChild[node] >= 0 && lower[dim] < splitValue[node])
+                    stack[stackSize++] = leftChild[node]
+                if (rightChild[node] >= 0 && upper[dim] > splitValue[node])
+                    stack[stackSize++] = rightChild[node]
+            }
+            if (stackSize + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2)
+                hits.stack = stack
+            }
+        }
+    }
+
+    private boolean intersects(int i, double[] lower, double[] upper) {
+        for (int dim = 0; dim < nDims; dim++) {
+            if (boxes.getLower(i, dim) >= upper[dim] || boxes.getUpper(i, dim) <= lower[dim])
+                return false
+        }
+        return true
+    }
+
+    // Pushes the children of node which may contain boxes containing point; returns the new stack size
+    private int pushChildren(int node, double[] point, int firstNaN, int[] stack, int stackSize) {
+        int dim = splitDim[node]
+        if (dim < 0)
+            return stackSize
+        // pruning by the split is only valid if isInsideCube would compare point[dim], i.e. no NaN before or at dim
+        boolean canPrune = dim < firstNaN
+        double value = point[dim]
+        if (leftChild[node] >= 0 && (!canPrune || value < splitValue[node]))
+            stack[stackSize++] = leftChild[node]
+        if (rightChild[node] >= 0 && (!canPrune || value > splitValue[node]))
+            stack[stackSize++] = rightChild[node]
+        return stackSize
+    }
+
+    // Same as Cube.isInsideCube for box i
+    private boolean contains(int i, double[] point) {
+        for (int dim = 0; dim < nDims; dim++) {
+            if (!boxes.isBounded(i, dim))
+                continue
+            double value = point[dim]
+            if (Double.isNaN(value))
+                return true
+            if (boxes.getLower(i, dim) > value || boxes.getUpper(i, dim) < value)
+                return false
+        }
+        return true
+    }
+
+    private int firstNaNDim(double[] point) {
+        for (int dim = 0; dim < nDims; dim++)
+            if (Double.isNaN(point[dim]))
+                return dim
+        return nDims
+    }
+
+    // The first nDims attribute values (as Cube.isInsideCube, the class attribute is assumed to be the last one)
+    private double[] toPoint(Instance instance) {
+        double[] point = new double[nDims]
+        for (int dim = 0; dim < nDims; dim++)
+            point[dim] = instance.value(dim)
+        return point
+    }
+
+    /** A reusable buffer for query results (and the traversal stack), one per thread */
+    static class Hits {
+        int size
+        int[] indices = new int[16]
+        int[] stack = new int[64]
+
+        void clear() {
+            size = 0
+        }
+
+        void add(int i) {
+            if (size == indices.length)
+                indices = Arrays.copyOf(indices, size * 2)
+            indices[size++] = i
+        }
+
+        int get(int k) {
+            return indices[k]
+        }
+    }
+}
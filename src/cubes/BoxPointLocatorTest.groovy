@@ -0,0 +1,93 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+import weka.core.Instance
+
+class BoxPointLocatorTest extends GroovyTestCase {
+
+    static final int N_DIMS = 3
+
+    // Random boxes with bounds on the grid 0, 1, ..., 4 (so that points often lie on boundaries); about a fifth of the
+    // bounds is infinite, i.e. boxes may be half-bounded or unbounded at a dim
+    static List<ClassCube> randomBoxes(Random random, int numBoxes) {
+        List<ClassCube> boxes = new ArrayList<ClassCube>(numBoxes)
+        for (int i = 0; i < numBoxes; i++) {
+            def cube = new ClassCube(N_DIMS)
+            for (int dim = 0; dim < N_DIMS; dim++) {
+                int a = random.nextInt(5)
+                int b = random.nextInt(5)
+                double lower = random.nextInt(5) == 0 ? Double.NEGATIVE_INFINITY : Math.min(a, b)
+                double upper = random.nextInt(5) == 0 ? Double.POSITIVE_INFINITY : Math.max(a, b)
+                cube.setBounds(dim, lower, upper)
+            }
+            cube.setClassValue(random.nextInt(2))
+            boxes << cube
+        }
+        return boxes
+    }
+
+    // A random point on the grid 0, 0.5, ..., 4.5 with a NaN (missing value) at about every tenth dim; the last
+    // value stands for the class
+    static double[] randomPoint(Random random) {
+        double[] point = new double[N_DIMS + 1]
+        for (int dim = 0; dim < N_DIMS; dim++)
+            point[dim] = random.nextInt(10) == 0 ? Double.NaN : random.nextInt(10) / 2.0
+        return point
+    }
+
+    void testFindAllAndFindFirstAsLinearScan() {
+        def random = new Random(42)
+        List<ClassCube> boxes = randomBoxes(random, 300)
+        def locator = new BoxPointLocator(boxes)
+        def hits = new BoxPointLocator.Hits()
+
+        for (int p = 0; p < 2000; p++) {
+            double[] point = randomPoint(random)
+            def instance = new Instance(1.0, point)
+            Set<Integer> expected = new HashSet<Integer>()
+            for (int i = 0; i < boxes.size(); i++) {
+                if (boxes[i].isInsideCube(instance))
+                    expected << i
+            }
+
+            locator.findAll(point, hits)
+            Set<Integer> found = new HashSet<Integer>()
+            for (int k = 0; k < hits.size; k++)
+                found << hits.get(k)
+            assertEquals("point $point", expected, found)
+            assertEquals("no duplicates at point $point", found.size(), hits.size)
+            assertEquals(expected ? expected.min() : -1, locator.findFirst(instance))
+        }
+    }
+
+    void testEmptyLocator() {
+        def locator = new BoxPointLocator(new ArrayList<ClassCube>())
+        def hits = new BoxPointLocator.Hits()
+        locator.findAll([1.0, 2.0] as double[], hits)
+        assertEquals(0, hits.size)
+        assertEquals(-1, locator.findFirst([1.0, 2.0] as double[]))
+    }
+}
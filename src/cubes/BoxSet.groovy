@@ -38,6 +38,21 @@ class BoxSet extends ArrayList<ClassCube>{
     // The bounding box of box collection obtained from Weka-Instances, i.e. for each dim the min and max value of attribute at dim
     Cube boundingBox
 
+    // The tree from which the boxes were derived (optional, see BoxTree); only valid while the boxes are not modified,
+    // accessed as property sourceTree
+    private BoxTree sourceTreeOfBoxes
+
+    // modCount of the list when sourceTree was set
+    private int sourceTreeModCount
+
+    // Strategies for computing the intersections in mergeBoxSetsViaIntersections:
+    // INTERSECTION_FINDER: treats both sets as arbitrary box collections (see CubeIntersectionFinder)
+    // TREE_OVERLAY: pushes each box of one set down the sourceTree of the other set, following only the branches
+    //      reached by its bounds; falls back to INTERSECTION_FINDER if none of the sets has a valid sourceTree
+    static enum MergeMode {
+        INTERSECTION_FINDER /* default */, TREE_OVERLAY
+    }
+
     // ------------ Creators and constructors ------------
     static BoxSet create(int initialCapacity = 0) {
         def result
@@ -66,10 +81,28 @@ class BoxSet extends ArrayList<ClassCube>{
 
     private void copyAdditionalData(Collection<ClassCube> _boxesCollection) {
         if (_boxesCollection instanceof BoxSet) {
-            this.boundingBox = ((BoxSet) _boxesCollection).boundingBox
+            BoxSet other = (BoxSet) _boxesCollection
+            this.boundingBox = other.boundingBox
+            setSourceTree(other.hasValidSourceTree() ? other.sourceTree : null)
         }
     }
 
+    BoxTree getSourceTree() {
+        return sourceTreeOfBoxes
+    }
+
+    void setSourceTree(BoxTree tree) {
+        sourceTreeOfBoxes = tree
+        sourceTreeModCount = modCount
+    }
+
+    // Replacing a box does not count as a structural modification of an ArrayList, but invalidates sourceTree
+    @Override
+    ClassCube set(int index, ClassCube box) {
+        modCount++
+        return super.set(index, box)
+    }
+
 
     // --------------- Methods --------------
 
@@ -77,7 +110,7 @@ class BoxSet extends ArrayList<ClassCube>{
     // performs intersections of boxes and stores only the intersections
     // It assumes that each et of boxes partitions the space completely!
     // - todo: make mergingBoxSetsViaIntersections consider bounding boxes !!!!
-    void mergeBoxSetsViaIntersections(BoxSet newBoxSet) {
+    void mergeBoxSetsViaIntersections(BoxSet newBoxSet, MergeMode mode = MergeMode.INTERSECTION_FINDER) {
 
         if (size() <= 0) {
             // This is the first time we add to this container - just copy the parameter contents
@@ -85,17 +118,16 @@ class BoxSet extends ArrayList<ClassCube>{
             copyAdditionalData(newBoxSet)
         } else {
             // There are already cubes in this container; intersect them with the newCollection and store the intersections
-            Set<Pair<Cube, Cube>> intersectingPairs = new CubeIntersectionFinder().findIntersections(this, newBoxSet)
-            BoxSet resultingBoxSet = new BoxSet(intersectingPairs.size())
-            for (pair in intersectingPairs) {
-                def cubeFromContainer = (ClassCube) pair.first
-                def newCube = (ClassCube) pair.second
-                resultingBoxSet << cubeFromContainer.getIntersection(newCube)
-            }
-            assert resultingBoxSet.size() == intersectingPairs.size()
+            BoxSet resultingBoxSet
+            if (mode == MergeMode.TREE_OVERLAY && (hasValidSourceTree() || newBoxSet.hasValidSourceTree()))
+                resultingBoxSet = intersectViaTreeOverlay(newBoxSet)
+            else
+                resultingBoxSet = intersectViaIntersectionFinder(newBoxSet)
             // now replace the contents of this object by resultingBoxSet
             this.clear()
             addAll(resultingBoxSet)
+            // the intersections are not leaves of any single tree
+            setSourceTree(null)
 
             // compute the "union" of the bounding boxes
             assert boundingBox != null, "At intersecting boxSets: encountered boxSet without bounding box info (null field)"
@@ -122,4 +154,46 @@ class BoxSet extends ArrayList<ClassCube>{
         }
     }
 
+    // True if sourceTree is set and (still) holds exactly the boxes of this set, i.e. the set was not modified since
+    boolean hasValidSourceTree() {
+        return sourceTreeOfBoxes != null && sourceTreeModCount == modCount && sourceTreeOfBoxes.numBoxes == size()
+    }
+
+    private BoxSet intersectViaIntersectionFinder(BoxSet newBoxSet) {
+        Set<Pair<Cube, Cube>> intersectingPairs = new CubeIntersectionFinder().findIntersections(this, newBoxSet)
+        BoxSet resultingBoxSet = new BoxSet(intersectingPairs.size())
+        for (pair in intersectingPairs) {
+            def cubeFromContainer = (ClassCube) pair.first
+            def newCube = (ClassCube) pair.second
+            resultingBoxSet << cubeFromContainer.getIntersection(newCube)
+        }
+        assert resultingBoxSet.size() == intersectingPairs.size()
+        return resultingBoxSet
+    }
+
+    // Requires that this or newBoxSet has a valid sourceTree. If both have one, the boxes of the smaller set are pushed
+    // down the tree of the larger one. In all cases the intersection is computed as cubeFromContainer.getIntersection(newCube)
+    private BoxSet intersectViaTreeOverlay(BoxSet newBoxSet) {
+        boolean descendNewTree = newBoxSet.hasValidSourceTree() && (!hasValidSourceTree() || newBoxSet.size() >= size())
+
+        BoxSet resultingBoxSet = new BoxSet()
+        List<ClassCube> hits = new ArrayList<ClassCube>()
+        if (descendNewTree) {
+            for (cubeFromContainer in this) {
+                hits.clear()
+                newBoxSet.getSourceTree().collectIntersecting(cubeFromContainer, hits)
+                for (newCube in hits)
+                    resultingBoxSet << cubeFromContainer.getIntersection(newCube)
+            }
+        } else {
+            for (newCube in newBoxSet) {
+                hits.clear()
+                sourceTreeOfBoxes.collectIntersecting(newCube, hits)
+                for (cubeFromContainer in hits)
+                    resultingBoxSet << cubeFromContainer.getIntersection(newCube)
+            }
+        }
+        return resultingBoxSet
+    }
+
 }
@@ -86,4 +86,21 @@ class BoxSetTest extends GroovyTestCase {
         println reducedTreeNode
 
     }
+
+    void testSourceTreeInvalidatedByModification() {
+        def boxes = new BoxSet(ExampleCubesFromPaper.getA())
+        boxes.sourceTree = BoxTree.createLeaf(new ArrayList<ClassCube>(boxes))
+        assertTrue(boxes.hasValidSourceTree())
+        assertTrue(new BoxSet(boxes).hasValidSourceTree())
+
+        // same size, but one box replaced
+        boxes.set(0, boxes[0].clone())
+        assertFalse(boxes.hasValidSourceTree())
+        assertFalse(new BoxSet(boxes).hasValidSourceTree())
+
+        boxes.sourceTree = BoxTree.createLeaf(new ArrayList<ClassCube>(boxes))
+        def last = boxes.remove(boxes.size() - 1)
+        boxes << last
+        assertFalse(boxes.hasValidSourceTree())
+    }
 }
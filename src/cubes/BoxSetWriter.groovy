@@ -0,0 +1,166 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+
+/**
+ * Streaming writer of the binary BoxSet format (little-endian), read by MappedBoxSetReader.
+ * Header: magic, version, nDims, numClasses, numBoxes, flags (bit 0: has bounding box), [bounding box bounds].
+ * Box: bitmask of bounded dims (one long per 64 dims), lower and upper bound of each bounded dim, class index,
+ * confidence, flags (bit 0: conflict, bit 1: has distribution), [numClasses doubles of the distribution].
+ * numBoxes is written at close().
+ */
+@Typed
+class BoxSetWriter implements Closeable {
+
+    static final int MAGIC = 0x42544D44     // "DMTB" in little-endian byte order
+    static final int VERSION = 1
+
+    static final int HEADER_FLAG_BOUNDING_BOX = 1
+    static final int BOX_FLAG_CONFLICT = 1
+    static final int BOX_FLAG_DISTRIBUTION = 2
+
+    // Offset of numBoxes in the header
+    static final long NUM_BOXES_OFFSET = 16
+
+    static int BUFFER_BYTES = 1024 * 1024
+
+    final int nDims
+    final int numClasses
+    long numBoxes = 0
+
+    private final FileChannel channel
+    private final ByteBuffer buffer
+    private final int maxRecordBytes
+
+    BoxSetWriter(File file, int nDims, int numClasses, Cube boundingBox = null) {
+        this.nDims = nDims
+        this.numClasses = numClasses
+        maxRecordBytes = maxRecordBytes(nDims, numClasses)
+        def stream = new FileOutputStream(file)
+        try {
+            channel = stream.getChannel()
+            buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, maxRecordBytes)).order(ByteOrder.LITTLE_ENDIAN)
+
+            buffer.putInt(MAGIC)
+            buffer.putInt(VERSION)
+            buffer.putInt(nDims)
+            buffer.putInt(numClasses)
+            buffer.putLong(0L)  // numBoxes, see close()
+            buffer.putInt(boundingBox != null ? HEADER_FLAG_BOUNDING_BOX : 0)
+            if (boundingBox != null)
+                putBounds(boundingBox)
+        } catch (Throwable e) {
+            stream.close()      // the caller gets no writer to close
+            throw e
+        }
+    }
+
+    /** Writes all boxes of boxSet (with its bounding box) to file */
+    static void write(BoxSet boxSet, File file) {
+        int nDims = 0
+        int numClasses = 0
+        if (boxSet.size() > 0) {
+            ClassCube firstBox = boxSet.get(0)
+            nDims = firstBox.nDims
+            if (firstBox.classData == null)
+                throw new IllegalArgumentException("Cannot write box set: its first box has no class data")
+            // boxes without class distributions are written with numClasses = 0
+            double[] distribution = firstBox.classData.classProbDistribution
+            numClasses = (distribution != null) ? distribution.length : 0
+        } else if (boxSet.boundingBox != null) {
+            nDims = boxSet.boundingBox.nDims
+        }
+        def writer = new BoxSetWriter(file, nDims, numClasses, boxSet.boundingBox)
+        try {
+            for (box in boxSet)
+                writer.write(box)
+        } finally {
+            writer.close()
+        }
+    }
+
+    static int maskWords(int nDims) {
+        return (nDims + 63).intdiv(64)
+    }
+
+    static int maxRecordBytes(int nDims, int numClasses) {
+        return maskWords(nDims) * 8 + nDims * 16 + 4 + 8 + 1 + numClasses * 8
+    }
+
+    void write(ClassCube box) {
+        assert box.nDims == nDims
+        if (buffer.remaining() < maxRecordBytes)
+            flush()
+        putBounds(box)
+
+        ClassData classData = box.classData
+        double[] distribution = classData.classProbDistribution
+        assert distribution == null || distribution.length == numClasses, "Box has a distribution over ${distribution.length} classes, the file has $numClasses"
+        buffer.putInt((int) classData.classValue)
+        buffer.putDouble(classData.confidence)
+        buffer.put((byte) ((classData.hasConflict ? BOX_FLAG_CONFLICT : 0) | (distribution != null ? BOX_FLAG_DISTRIBUTION : 0)))
+        if (distribution != null)
+            for (int c = 0; c < numClasses; c++)
+                buffer.putDouble(distribution[c])
+        numBoxes++
+    }
+
+    private void putBounds(Cube cube) {
+        int words = maskWords(nDims)
+        for (int word = 0; word < words; word++) {
+            long mask = 0L
+            for (int dim = word * 64; dim < Math.min(nDims, (word + 1) * 64); dim++)
+                if (cube.isBounded(dim))
+                    mask |= 1L << (dim - word * 64)
+            buffer.putLong(mask)
+        }
+        for (int dim = 0; dim < nDims; dim++) {
+            if (cube.isBounded(dim)) {
+                buffer.putDouble(cube.getLower(dim))
+                buffer.putDouble(cube.getUpper(dim))
+            }
+        }
+    }
+
+    private void flush() {
+        buffer.flip()
+        while (buffer.hasRemaining())
+            channel.write(buffer)
+        buffer.clear()
+    }
+
+    void close() {
+        flush()
+        ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+        count.putLong(numBoxes)
+        count.flip()
+        channel.write(count, NUM_BOXES_OFFSET)
+        channel.close()
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+class BoxSetWriterTest extends GroovyTestCase {
+
+    void testRoundTrip() {
+        BoxSet boxes = new BoxSet(ExampleCubesFromPaper.getA())
+        boxes[0].classData.hasConflict = true
+        boxes.boundingBox = new Cube(2)
+        boxes.boundingBox.setBounds(0, 0.0, 1.0)
+        boxes.boundingBox.setBounds(1, 0.0, 1.0)
+
+        File file = File.createTempFile("boxes", ".bin")
+        try {
+            BoxSetWriter.write(boxes, file)
+            BoxSet read = MappedBoxSetReader.read(file)
+
+            assertEquals(boxes.size(), read.size())
+            assertEquals(boxes.boundingBox, read.boundingBox)
+            for (int i = 0; i < boxes.size(); i++)
+                assertEquals(boxes[i], read[i])
+        } finally {
+            file.delete()
+        }
+    }
+
+    void testIterateWithoutObjects() {
+        BoxSet boxes = new BoxSet(ExampleCubesFromPaper.getA())
+        File file = File.createTempFile("boxes", ".bin")
+        try {
+            BoxSetWriter.write(boxes, file)
+            def reader = new MappedBoxSetReader(file)
+            int i = 0
+            while (reader.next()) {
+                for (int dim = 0; dim < 2; dim++) {
+                    assertEquals(boxes[i].isBounded(dim), reader.isBounded(dim))
+                    assertEquals(boxes[i].getLower(dim), reader.lower[dim])
+                    assertEquals(boxes[i].getUpper(dim), reader.upper[dim])
+                }
+                assertEquals((int) boxes[i].classValue, reader.classIndex)
+                i++
+            }
+            reader.close()
+            assertEquals(boxes.size(), i)
+        } finally {
+            file.delete()
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+/**
+ * A decision tree kept alongside the BoxSet derived from it (see TreeToBoxes.getBoxTree and TreeOfBoxesNode.toBoxTree).
+ * An inner node splits at attribute attIndex, and child i covers the values in (childLower[i], childUpper[i]].
+ * The leaves reference the *same* ClassCube objects as the BoxSet, and each box lies inside the region of its leaf.
+ * Thus all boxes of the set intersecting a given box can be found by descending only the branches reached by its bounds,
+ * see collectIntersecting and BoxSet.MergeMode.TREE_OVERLAY
+ */
+@Typed
+class BoxTree {
+
+    // Attribute (dimension) of the split, -1 for leaves
+    int attIndex = -1
+
+    // Interval (childLower[i], childUpper[i]] of attIndex covered by children[i]
+    double[] childLower
+    double[] childUpper
+    List<BoxTree> children
+
+    // Boxes of a leaf (null for inner nodes)
+    List<ClassCube> boxes
+
+    // Total number of boxes in the leaves of this subtree
+    int numBoxes
+
+    // ------------ Creators ------------
+    static BoxTree createLeaf(List<ClassCube> _boxes) {
+        def result = new BoxTree()
+        result.boxes = _boxes
+        result.numBoxes = _boxes.size()
+        return result
+    }
+
+    // A split where children[i] covers the values in (lower[i], upper[i]] of attIndex
+    static BoxTree createSplit(int attIndex, double[] lower, double[] upper, List<BoxTree> children) {
+        assert lower.length == children.size() && upper.length == children.size()
+        def result = new BoxTree()
+        result.attIndex = attIndex
+        result.childLower = lower
+        result.childUpper = upper
+        result.children = children
+        for (child in children)
+            result.numBoxes += child.numBoxes
+        return result
+    }
+
+    // A binary split with lesser child (<= splitPoint) and greater child (> splitPoint)
+    static BoxTree createBinarySplit(int attIndex, double splitPoint, BoxTree lesserChild, BoxTree greaterChild) {
+        double[] lower = [Double.NEGATIVE_INFINITY, splitPoint]
+        double[] upper = [splitPoint, Double.POSITIVE_INFINITY]
+        return createSplit(attIndex, lower, upper, [lesserChild, greaterChild])
+    }
+
+    // --------------- Methods --------------
+
+    boolean isLeaf() {
+        return children == null
+    }
+
+    /** Adds to result all boxes of this tree which intersect cube (in the sense of Cube.intersects) */
+    void collectIntersecting(Cube cube, List<ClassCube> result) {
+        if (isLeaf()) {
+            for (box in boxes)
+                if (cube.intersects(box))
+                    result << box
+            return
+        }
+        // unbounded dimensions give -inf/+inf and so reach all children
+        double lower = cube.getLower(attIndex)
+        double upper = cube.getUpper(attIndex)
+        for (int i = 0; i < children.size(); i++) {
+            if (lower < childUpper[i] && upper > childLower[i])
+                children[i].collectIntersecting(cube, result)
+        }
+    }
+
+    int getDepth() {
+        if (isLeaf())
+            return 0
+        int maxChildDepth = 0
+        for (child in children)
+            maxChildDepth = Math.max(maxChildDepth, child.getDepth())
+        return maxChildDepth + 1
+    }
+}
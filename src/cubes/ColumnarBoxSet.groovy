@@ -0,0 +1,242 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+/**
+ * A box collection stored column-wise ("structure of arrays") in primitive arrays instead of one ClassCube object
+ * (with double[][] bounds and a ClassData) per box. Box i occupies the entries [i*nDims, (i+1)*nDims) in lower/upper,
+ * unbounded ends are stored as -inf/+inf and the bounded dimensions (in the sense of Cube.isBounded) as a bitmask.
+ * The sweeps (CubeIntersectionFinder, trees.NodeModel) run directly over these arrays; ClassCubes are only created
+ * (or looked up in sourceCubes) at the boundaries, see getCube(i) and toBoxSet()
+ */
+@Typed
+class ColumnarBoxSet {
+
+    final int nDims
+
+    // Length of a distribution row (0 if no distributions are stored)
+    final int numClasses
+
+    // Number of boxes
+    int size
+
+    // lower[i * nDims + dim] is the lower bound of box i at dim, -inf if unbounded
+    double[] lower
+    double[] upper
+
+    // Bit (dim % 64) of boundedMask[i * wordsPerBox + dim / 64] is set iff box i is bounded at dim
+    long[] boundedMask
+    final int wordsPerBox
+
+    // Class data per box, classIdx[i] == (int) classValue
+    int[] classIdx
+    double[] confidence
+    boolean[] hasConflict
+    int[] numInstances
+
+    // Class prob. distributions as a matrix: distributions[i * numClasses + c], null if numClasses == 0
+    double[] distributions
+
+    // The cubes from which the rows were created (null entries for boxes created in columnar form)
+    ClassCube[] sourceCubes
+
+    // As in BoxSet
+    Cube boundingBox
+
+    ColumnarBoxSet(int nDims, int numClasses, int initialCapacity = 16) {
+        this.nDims = nDims
+        this.numClasses = numClasses
+        this.wordsPerBox = (nDims + 63) >>> 6
+        int capacity = Math.max(initialCapacity, 1)
+        lower = new double[capacity * nDims]
+        upper = new double[capacity * nDims]
+        boundedMask = new long[capacity * wordsPerBox]
+        classIdx = new int[capacity]
+        confidence = new double[capacity]
+        hasConflict = new boolean[capacity]
+        numInstances = new int[capacity]
+        distributions = numClasses > 0 ? new double[capacity * numClasses] : null
+        sourceCubes = new ClassCube[capacity]
+    }
+
+    // ------------ Creators ------------
+
+    /**
+     * Copies cubes into columnar form. Class data is taken from ClassCubes only; copyDistributions = false skips the
+     * (possibly large) distribution matrix, e.g. if only bounds and class indices are needed
+     */
+    static ColumnarBoxSet fromBoxes(Collection<? extends Cube> cubes, boolean copyDistributions = true) {
+        assert cubes != null && cubes.size() > 0, "Cannot create a ColumnarBoxSet from an empty collection (#dims unknown)"
+        Cube firstCube = cubes.iterator().next()
+        int numClasses = 0
+        if (copyDistributions && firstCube instanceof ClassCube) {
+            double[] firstDistribution = ((ClassCube) firstCube).classData?.classProbDistribution
+            numClasses = firstDistribution != null ? firstDistribution.length : 0
+        }
+
+        def result = new ColumnarBoxSet(firstCube.nDims, numClasses, cubes.size())
+        for (cube in cubes)
+            result.add(cube)
+        if (cubes instanceof BoxSet)
+            result.boundingBox = ((BoxSet) cubes).boundingBox
+        return result
+    }
+
+    /** Appends a copy of cube's bounds (and class data, if cube is a ClassCube) and returns its index */
+    int add(Cube cube) {
+        assert cube.nDims == nDims
+        int i = size
+        ensureCapacity(i + 1)
+        int offset = i * nDims
+        for (int dim = 0; dim < nDims; dim++) {
+            if (cube.isBounded(dim)) {
+                lower[offset + dim] = cube.getLower(dim)
+                upper[offset + dim] = cube.getUpper(dim)
+                boundedMask[i * wordsPerBox + (dim >>> 6)] |= (1L << (dim & 63))
+            } else {
+                lower[offset + dim] = Double.NEGATIVE_INFINITY
+                upper[offset + dim] = Double.POSITIVE_INFINITY
+            }
+        }
+        numInstances[i] = cube.numInstances
+        if (cube instanceof ClassCube) {
+            ClassCube classCube = (ClassCube) cube
+            sourceCubes[i] = classCube
+            ClassData classData = classCube.classData
+            if (classData != null) {
+                classIdx[i] = (int) classData.classValue
+                confidence[i] = classData.confidence
+                hasConflict[i] = classData.hasConflict
+                if (numClasses > 0 && classData.classProbDistribution != null)
+                    System.arraycopy(classData.classProbDistribution, 0, distributions, i * numClasses, numClasses)
+            }
+        }
+        size++
+        return i
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        int capacity = classIdx.length
+        if (minCapacity <= capacity)
+            return
+        int newCapacity = Math.max(minCapacity, capacity + (capacity >> 1))
+        lower = Arrays.copyOf(lower, newCapacity * nDims)
+        upper = Arrays.copyOf(upper, newCapacity * nDims)
+        boundedMask = Arrays.copyOf(boundedMask, newCapacity * wordsPerBox)
+        classIdx = Arrays.copyOf(classIdx, newCapacity)
+        confidence = Arrays.copyOf(confidence, newCapacity)
+        hasConflict = Arrays.copyOf(hasConflict, newCapacity)
+        numInstances = Arrays.copyOf(numInstances, newCapacity)
+        if (distributions != null)
+            distributions = Arrays.copyOf(distributions, newCapacity * numClasses)
+        sourceCubes = Arrays.copyOf(sourceCubes, newCapacity)
+    }
+
+    // --------------- Access --------------
+
+    boolean isBounded(int i, int dim) {
+        return (boundedMask[i * wordsPerBox + (dim >>> 6)] & (1L << (dim & 63))) != 0L
+    }
+
+    double getLower(int i, int dim) {
+        return lower[i * nDims + dim]
+    }
+
+    double getUpper(int i, int dim) {
+        return upper[i * nDims + dim]
+    }
+
+    /** Copies the lower (or upper) bounds of all boxes at dim into target (allocated if null or too small) */
+    double[] column(int dim, boolean upperBounds, double[] target = null) {
+        if (target == null || target.length < size)
+            target = new double[size]
+        double[] source = upperBounds ? upper : lower
+        for (int i = 0; i < size; i++)
+            target[i] = source[i * nDims + dim]
+        return target
+    }
+
+    /** Same semantics as Cube.intersects: only dimensions bounded in both boxes are compared, adjacent boxes do not intersect */
+    boolean intersects(int i, ColumnarBoxSet other, int j) {
+        int offsetThis = i * nDims
+        int offsetOther = j * nDims
+        int maskOffsetThis = i * wordsPerBox
+        int maskOffsetOther = j * wordsPerBox
+        for (int word = 0; word < wordsPerBox; word++) {
+            long bothBounded = boundedMask[maskOffsetThis + word] & other.boundedMask[maskOffsetOther + word]
+            while (bothBounded != 0L) {
+                int dim = (word << 6) + Long.numberOfTrailingZeros(bothBounded)
+                if (lower[offsetThis + dim] >= other.upper[offsetOther + dim] || upper[offsetThis + dim] <= other.lower[offsetOther + dim])
+                    return false
+                bothBounded &= bothBounded - 1
+            }
+        }
+        return true
+    }
+
+    /** Returns the ClassCube of box i: the source cube if available, otherwise a newly materialized one */
+    ClassCube getCube(int i) {
+        ClassCube cube = sourceCubes[i]
+        return cube != null ? cube : materialize(i)
+    }
+
+    /** Creates a new ClassCube with the bounds and class data of box i */
+    ClassCube materialize(int i) {
+        def cube = new ClassCube(nDims)
+        int offset = i * nDims
+        for (int dim = 0; dim < nDims; dim++) {
+            if (isBounded(i, dim))
+                cube.setBounds(dim, lower[offset + dim], upper[offset + dim])
+        }
+        cube.numInstances = numInstances[i]
+        cube.setClassValue(classIdx[i])
+        cube.setConfidence(confidence[i])
+        cube.classData.hasConflict = hasConflict[i]
+        if (numClasses > 0) {
+            double[] distribution = new double[numClasses]
+            System.arraycopy(distributions, i * numClasses, distribution, 0, numClasses)
+            cube.setClassProbDistribution(distribution)
+        }
+        return cube
+    }
+
+    /** Returns all boxes as a BoxSet (reusing the source cubes where available) */
+    BoxSet toBoxSet() {
+        BoxSet result = new BoxSet(size)
+        for (int i = 0; i < size; i++)
+            result << getCube(i)
+        result.boundingBox = boundingBox
+        return result
+    }
+
+    /** Approximate heap use of the arrays in bytes (without the source cubes) */
+    long getEstimatedHeapBytes() {
+        long capacity = classIdx.length
+        long bytes = capacity * (2L * nDims * 8L + wordsPerBox * 8L + 4L + 8L + 1L + 4L + 8L /* sourceCubes reference */)
+        if (distributions != null)
+            bytes += capacity * numClasses * 8L
+        return bytes
+    }
+}
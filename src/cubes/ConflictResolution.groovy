@@ -27,6 +27,7 @@ package cubes
 import edu.pvs.batchrunner.ExperimentResult
 import experiment.ExperimentResultSingletonHolder
 import classifiers.MergedTreeClassifier
+import weka.core.Instance
 import weka.core.Instances
 import weka.core.Utils
 import static experiment.Tools.loadArff
@@ -46,6 +47,9 @@ class ConflictResolution {
         HIGHEST_CONFIDENCE_CLASS /* default */, MERGE_DISTRIBUTIONS, MAJORITY_CLASS, RECURSIVE_SUBDIVISION
     }
 
+    // Strategy "d" subdivides only cubes with more instances than this
+    static final int MIN_INSTANCES_FOR_SUBDIVISION = 100
+
     protected Instances trainingData
     protected Collection<ClassCube> cubes
     ExperimentResult results
@@ -101,20 +105,8 @@ class ConflictResolution {
 
                     // ConflictResolutionType.RECURSIVE_SUBDIVISION
                     // TODO: Parameters
-                    if ((pConf == "d") && (numInstances > 100)) {  // (ii)
-                        it.remove()     // remove current cube from collection, will be replaced by "sub-cubes"
-                        int cubesAdded = -1
-                        def classifier = new MergedTreeClassifier()
-                        def result = classifier.buildClassifierInternal(instancesInCube, false, 1)
-                        for (innerCubeUncut in result) {
-
-                            ClassCube innerCubeCut = innerCubeUncut.intersectBounds((Cube) cube)
-                            if (innerCubeCut != null) {
-                                it.add(innerCubeCut)
-                                cubesAdded += 1
-                            }
-                        }
-                        assert cubesAdded >= 0
+                    if ((pConf == "d") && (numInstances > MIN_INSTANCES_FOR_SUBDIVISION)) {  // (ii)
+                        replaceBySubCubes(cube, instancesInCube, it)
                     } // else: nothing to do, as ConflictResolutionType.RECURSIVE_SUBDIVISION (i) is same as ConflictResolutionType.MAJORITY_CLASS
                 } else { // else: No instances in Cube, nothing to do
                     // TODO: results.instancelessConflictCubes = (results.instancelessConflictCubes as int) + 1
@@ -138,6 +130,126 @@ class ConflictResolution {
         cube.classData.clearConflict()
     }
 
+    /**
+     * Resolves the conflicts of all cubes in cubeList, with the same result as calling resolveConflict for each
+     * conflicting cube. For "c" and "d" the training instances are streamed once through a BoxPointLocator over the
+     * conflicting cubes, accumulating per-cube class histograms (instead of filtering the training data per cube).
+     * Instance subsets are materialized (in a second pass) only for cubes which are subdivided by "d".
+     * @return the number of conflicting cubes
+     */
+    int resolveConflicts(List<ClassCube> cubeList) {
+        List<ClassCube> conflicting = new ArrayList<ClassCube>()
+        for (cube in cubeList) {
+            if (cube.classData.hasConflict)
+                conflicting << cube
+        }
+        if (conflicting.isEmpty())
+            return 0
+
+        def pConf = (String) results.Pconf
+        if (pConf != "c" && pConf != "d") {
+            // strategies without training data need no iterator
+            for (cube in conflicting)
+                resolveConflict(cube, null)
+            return conflicting.size()
+        }
+
+        final int ek = results.getInt("Ek") // #parts into which training set has been split (= #parts to be merged)
+        final int numParts = trainingData ? 1 : ek
+        int numConflicting = conflicting.size()
+        def locator = new BoxPointLocator(conflicting)
+        def hits = new BoxPointLocator.Hits()
+
+        // 1. One pass over the training data: class histograms per conflicting cube
+        double[][] classCounts = null
+        int[] numInstances = new int[numConflicting]
+        for (int part = 0; part < numParts; part++) {
+            Instances instances = trainingData ? trainingData : loadArff("split${part}")
+            if (classCounts == null)
+                classCounts = new double[numConflicting][instances.numClasses()]
+            for (int r = 0; r < instances.numInstances(); r++) {
+                Instance instance = instances.instance(r)
+                locator.findAll(instance, hits)
+                int classIndex = (int) instance.classValue()
+                for (int h = 0; h < hits.size; h++) {
+                    int index = hits.get(h)
+                    classCounts[index][classIndex] += 1
+                    numInstances[index]++
+                }
+            }
+        }
+
+        // 2. Only for "d": second pass collecting the instances of the cubes to be subdivided
+        Instances[] instancesInCube = new Instances[numConflicting]
+        boolean anySubdivision = false
+        if (pConf == "d") {
+            for (int index = 0; index < numConflicting; index++)
+                anySubdivision |= numInstances[index] > MIN_INSTANCES_FOR_SUBDIVISION
+        }
+        if (anySubdivision) {
+            for (int part = 0; part < numParts; part++) {
+                Instances instances = trainingData ? trainingData : loadArff("split${part}")
+                for (int r = 0; r < instances.numInstances(); r++) {
+                    Instance instance = instances.instance(r)
+                    locator.findAll(instance, hits)
+                    for (int h = 0; h < hits.size; h++) {
+                        int index = hits.get(h)
+                        if (numInstances[index] > MIN_INSTANCES_FOR_SUBDIVISION) {
+                            if (instancesInCube[index] == null)
+                                instancesInCube[index] = new Instances(instances, numInstances[index])
+                            instancesInCube[index].add(instance)
+                        }
+                    }
+                }
+            }
+        }
+
+        // 3. Set the classes from the histograms (as in resolveConflict)
+        Map<ClassCube, Integer> toSubdivide = new IdentityHashMap<ClassCube, Integer>()
+        for (int index = 0; index < numConflicting; index++) {
+            ClassCube cube = conflicting[index]
+            if (numInstances[index] > 0) {
+                double[] newProbs = classCounts[index]
+                Utils.normalize(newProbs, numInstances[index])
+                cube.setClassProbDistribution(newProbs)
+                cube.classData.setClassToValueWithHighestProbabilityInDistribution()
+                if (instancesInCube[index] != null)
+                    toSubdivide.put(cube, index)
+            }
+            cube.classData.clearConflict()
+        }
+
+        // 4. Replace the cubes to be subdivided by their sub-cubes
+        if (!toSubdivide.isEmpty()) {
+            def it = cubeList.listIterator()
+            while (it.hasNext()) {
+                def cube = it.next()
+                Integer index = toSubdivide.get(cube)
+                if (index != null)
+                    replaceBySubCubes(cube, instancesInCube[index], it)
+            }
+        }
+        return numConflicting
+    }
+
+    // ConflictResolutionType.RECURSIVE_SUBDIVISION (ii): replaces cube (the current element of it) by the boxes of a
+    // classifier trained on the instances inside the cube, cut to the cube
+    private static void replaceBySubCubes(ClassCube cube, Instances instancesInCube, ListIterator<ClassCube> it) {
+        it.remove()     // remove current cube from collection, will be replaced by "sub-cubes"
+        int cubesAdded = -1
+        def classifier = new MergedTreeClassifier()
+        def result = classifier.buildClassifierInternal(instancesInCube, false, 1, true)
+        for (innerCubeUncut in result) {
+
+            ClassCube innerCubeCut = innerCubeUncut.intersectBounds((Cube) cube)
+            if (innerCubeCut != null) {
+                it.add(innerCubeCut)
+                cubesAdded += 1
+            }
+        }
+        assert cubesAdded >= 0
+    }
+
     // Filters trainingData (Instances) returning only those inside of a cube
     static Instances filterInstancesByCube(Instances trainingData, ClassCube cube, int numPartsOfTrainingData) {
         def filter = new RemoveCube()
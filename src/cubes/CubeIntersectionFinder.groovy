@@ -28,12 +28,52 @@ import groovy.util.logging.Log
 
 @Typed @Log
 class CubeIntersectionFinder {
+
+    // Strategies for finding all intersecting pairs:
+    // DENSE_TRACKER: sweeps every dimension and counts overlaps per pair in an IntersectionTracker (a sizeA x sizeB matrix)
+    // SWEEP_AND_REFINE: sweeps only the most selective dimension to get candidate pairs (filter), then checks
+    //      the remaining dimensions of each candidate directly (refine); memory is linear in the number of intersections
+    // AUTO: DENSE_TRACKER if the matrix has at most DENSE_TRACKER_MAX_CELLS cells, otherwise SWEEP_AND_REFINE
+    static enum IntersectionMode {
+        AUTO /* default */, DENSE_TRACKER, SWEEP_AND_REFINE
+    }
+
+    // Don't use ExperimentResult to switch (as for ClassData.classCmpStrategy)
+    static IntersectionMode intersectionMode = IntersectionMode.AUTO
+
+    // Largest sizeA * sizeB for which AUTO still uses the dense IntersectionTracker (4 MiB of int counters)
+    static long DENSE_TRACKER_MAX_CELLS = 1L << 20
+
+    // Max. number of boxes per collection used to estimate the selectivity of a dimension in SWEEP_AND_REFINE
+    static int SELECTIVITY_SAMPLE_SIZE = 2000
+
     /** Returns a set containing all pairs of cubes in cubesA and cubesB which intersect,  or an empty set if no cubes intersect*/
     static Set<Pair<Cube, Cube>> findIntersections(Collection<Cube> cubesA, Collection<Cube> cubesB) {
-        def startTime = Calendar.getInstance().getTimeInMillis()
+        return findIntersections(cubesA, cubesB, intersectionMode)
+    }
+
+    /** As findIntersections(cubesA, cubesB), but with an explicitly chosen IntersectionMode */
+    static Set<Pair<Cube, Cube>> findIntersections(Collection<Cube> cubesA, Collection<Cube> cubesB, IntersectionMode mode) {
         if (cubesA == null || cubesB == null) return []
         if (cubesA.size() == 0 || cubesB.size() == 0) return []
 
+        if (mode == IntersectionMode.AUTO) {
+            long numCells = ((long) cubesA.size()) * cubesB.size()
+            mode = (numCells <= DENSE_TRACKER_MAX_CELLS) ? IntersectionMode.DENSE_TRACKER : IntersectionMode.SWEEP_AND_REFINE
+        }
+
+        switch (mode) {
+            case IntersectionMode.SWEEP_AND_REFINE:
+                return findIntersectionsBySweepAndRefine(cubesA, cubesB)
+            default:
+                return findIntersectionsByDenseTracker(cubesA, cubesB)
+        }
+    }
+
+    // The original approach: sweeps all dimensions, pairs intersecting in all of them are the result
+    private static Set<Pair<Cube, Cube>> findIntersectionsByDenseTracker(Collection<Cube> cubesA, Collection<Cube> cubesB) {
+        def startTime = Calendar.getInstance().getTimeInMillis()
+
         def intersectionTracker = new IntersectionTracker(cubesA, cubesB)
         def dims = cubesA.iterator().next().getnDims()
         for (int dim in 0..<dims) {
@@ -122,4 +162,226 @@ class CubeIntersectionFinder {
         return intersectionTracker.getPairs(dims)
     }
 
+    // Filter-and-refine on the columnar (primitive) representation of both collections, see findIntersectingIndices
+    private static Set<Pair<Cube, Cube>> findIntersectionsBySweepAndRefine(Collection<Cube> cubesA, Collection<Cube> cubesB) {
+        def columnsA = ColumnarBoxSet.fromBoxes(cubesA, false)
+        def columnsB = ColumnarBoxSet.fromBoxes(cubesB, false)
+        // row i of the columnar sets corresponds to the i-th cube in iteration order
+        Cube[] sourceA = cubesA.toArray(new Cube[cubesA.size()])
+        Cube[] sourceB = cubesB.toArray(new Cube[cubesB.size()])
+
+        IndexPairs indexPairs = findIntersectingIndices(columnsA, columnsB)
+        Set<Pair<Cube, Cube>> pairs = new HashSet<Pair<Cube, Cube>>(Math.max(16, (int) (indexPairs.size / 0.75f) + 1))
+        for (int p = 0; p < indexPairs.size; p++)
+            pairs << new Pair<Cube, Cube>(sourceA[indexPairs.first[p]], sourceB[indexPairs.second[p]])
+        return pairs
+    }
+
+    /**
+     * Returns the row indices of all intersecting pairs of boxesA x boxesB (with the semantics of Cube.intersects).
+     * A single sweep over the most selective dimension yields candidate pairs (filter), each candidate is immediately
+     * checked in all dimensions (refine); only real intersections are stored
+     */
+    static IndexPairs findIntersectingIndices(ColumnarBoxSet boxesA, ColumnarBoxSet boxesB) {
+        def startTime = Calendar.getInstance().getTimeInMillis()
+        IndexPairs result = new IndexPairs()
+        if (boxesA.size == 0 || boxesB.size == 0)
+            return result
+
+        int sweepDim = selectSweepDimension(boxesA, boxesB)
+
+        // Split the rows into bounded and unbounded ones (in sweepDim)
+        int[] boundedA = new int[boxesA.size]
+        int[] unboundedA = new int[boxesA.size]
+        int numBoundedA = 0
+        int numUnboundedA = 0
+        for (int i = 0; i < boxesA.size; i++) {
+            if (boxesA.isBounded(i, sweepDim))
+                boundedA[numBoundedA++] = i
+            else
+                unboundedA[numUnboundedA++] = i
+        }
+        int[] boundedB = new int[boxesB.size]
+        int[] unboundedB = new int[boxesB.size]
+        int numBoundedB = 0
+        int numUnboundedB = 0
+        for (int j = 0; j < boxesB.size; j++) {
+            if (boxesB.isBounded(j, sweepDim))
+                boundedB[numBoundedB++] = j
+            else
+                unboundedB[numUnboundedB++] = j
+        }
+
+        long numCandidates = 0
+
+        // All (in sweepDim) unbounded boxesA are candidates for all boxesB, and all unbounded boxesB for the bounded boxesA
+        for (int u = 0; u < numUnboundedA; u++) {
+            int i = unboundedA[u]
+            for (int j = 0; j < boxesB.size; j++)
+                refineAndAdd(boxesA, i, boxesB, j, result)
+        }
+        numCandidates += ((long) numUnboundedA) * boxesB.size
+        for (int u = 0; u < numUnboundedB; u++) {
+            int j = unboundedB[u]
+            for (int k = 0; k < numBoundedA; k++)
+                refineAndAdd(boxesA, boundedA[k], boxesB, j, result)
+        }
+        numCandidates += ((long) numUnboundedB) * numBoundedA
+
+        // Sweep over the bounded boxes in the order of their lower bounds. The active lists hold the boxes started so far;
+        // boxes ending at or before the current start are dropped lazily, all others overlap the starting box in sweepDim.
+        // Each overlapping pair is thus reported exactly once, namely at the start of its "later" box
+        double[] lowerA = boxesA.column(sweepDim, false)
+        double[] upperA = boxesA.column(sweepDim, true)
+        double[] lowerB = boxesB.column(sweepDim, false)
+        double[] upperB = boxesB.column(sweepDim, true)
+        IndexSort.sort(boundedA, 0, numBoundedA, lowerA)
+        IndexSort.sort(boundedB, 0, numBoundedB, lowerB)
+
+        int[] activeA = new int[Math.max(numBoundedA, 1)]
+        int[] activeB = new int[Math.max(numBoundedB, 1)]
+        int numActiveA = 0
+        int numActiveB = 0
+        int nextA = 0
+        int nextB = 0
+        while (nextA < numBoundedA || nextB < numBoundedB) {
+            boolean takeA = nextB >= numBoundedB || (nextA < numBoundedA && lowerA[boundedA[nextA]] <= lowerB[boundedB[nextB]])
+            if (takeA) {
+                int i = boundedA[nextA++]
+                double start = lowerA[i]
+                int numKept = 0
+                for (int k = 0; k < numActiveB; k++) {
+                    int j = activeB[k]
+                    if (upperB[j] > start) {
+                        activeB[numKept++] = j
+                        refineAndAdd(boxesA, i, boxesB, j, result)
+                    }
+                }
+                numActiveB = numKept
+                numCandidates += numKept
+                activeA[numActiveA++] = i
+            } else {
+                int j = boundedB[nextB++]
+                double start = lowerB[j]
+                int numKept = 0
+                for (int k = 0; k < numActiveA; k++) {
+                    int i = activeA[k]
+                    if (upperA[i] > start) {
+                        activeA[numKept++] = i
+                        refineAndAdd(boxesA, i, boxesB, j, result)
+                    }
+                }
+                numActiveA = numKept
+                numCandidates += numKept
+                activeB[numActiveB++] = j
+            }
+        }
+
+        def runTime = Calendar.getInstance().getTimeInMillis() - startTime
+        if (runTime > 1000)
+            log.warning("CIF.findIntersectingIndices() took $runTime ms! Collections had ${boxesA.size} and ${boxesB.size} boxes, sweep dim $sweepDim gave $numCandidates candidates and ${result.size} intersections")
+
+        return result
+    }
+
+    private static void refineAndAdd(ColumnarBoxSet boxesA, int i, ColumnarBoxSet boxesB, int j, IndexPairs result) {
+        if (boxesA.intersects(i, boxesB, j))
+            result.add(i, j)
+    }
+
+    /**
+     * Finds the dimension whose sweep yields the fewest candidate pairs. The number of candidates (pairs overlapping
+     * in a dimension, including pairs with a box unbounded there) is counted on a sample of both collections.
+     */
+    protected static int selectSweepDimension(ColumnarBoxSet boxesA, ColumnarBoxSet boxesB) {
+        int[] sampleA = sampleIndices(boxesA.size, SELECTIVITY_SAMPLE_SIZE)
+        int[] sampleB = sampleIndices(boxesB.size, SELECTIVITY_SAMPLE_SIZE)
+
+        int bestDim = 0
+        long minCandidates = Long.MAX_VALUE
+        for (int dim = 0; dim < boxesA.nDims; dim++) {
+            long numCandidates = countCandidatePairs(boxesA, sampleA, boxesB, sampleB, dim)
+            if (numCandidates < minCandidates) {
+                minCandidates = numCandidates
+                bestDim = dim
+            }
+        }
+        return bestDim
+    }
+
+    // Counts (without enumerating them) the pairs of rowsA x rowsB which overlap in dimension dim: all pairs minus those
+    // where one box ends at or before the start of the other one
+    protected static long countCandidatePairs(ColumnarBoxSet boxesA, int[] rowsA, ColumnarBoxSet boxesB, int[] rowsB, int dim) {
+        double[] lowersA = new double[rowsA.length]
+        double[] uppersA = new double[rowsA.length]
+        int numBoundedA = 0
+        for (int i in rowsA) {
+            if (boxesA.isBounded(i, dim)) {
+                lowersA[numBoundedA] = boxesA.getLower(i, dim)
+                uppersA[numBoundedA] = boxesA.getUpper(i, dim)
+                numBoundedA++
+            }
+        }
+        double[] lowersB = new double[rowsB.length]
+        double[] uppersB = new double[rowsB.length]
+        int numBoundedB = 0
+        for (int j in rowsB) {
+            if (boxesB.isBounded(j, dim)) {
+                lowersB[numBoundedB] = boxesB.getLower(j, dim)
+                uppersB[numBoundedB] = boxesB.getUpper(j, dim)
+                numBoundedB++
+            }
+        }
+        Arrays.sort(lowersA, 0, numBoundedA)
+        Arrays.sort(uppersA, 0, numBoundedA)
+        Arrays.sort(lowersB, 0, numBoundedB)
+        Arrays.sort(uppersB, 0, numBoundedB)
+
+        long numUnboundedA = rowsA.length - numBoundedA
+        long numUnboundedB = rowsB.length - numBoundedB
+        long result = numUnboundedA * rowsB.length + numBoundedA * numUnboundedB
+        result += ((long) numBoundedA) * numBoundedB
+        result -= countLessOrEqualPairs(uppersA, numBoundedA, lowersB, numBoundedB)
+        result -= countLessOrEqualPairs(uppersB, numBoundedB, lowersA, numBoundedA)
+        return result
+    }
+
+    // Number of pairs (x, y) with x <= y, for sorted arrays xs[0..numX-1] and ys[0..numY-1]
+    private static long countLessOrEqualPairs(double[] xs, int numX, double[] ys, int numY) {
+        long result = 0
+        int x = 0
+        for (int y = 0; y < numY; y++) {
+            while (x < numX && xs[x] <= ys[y])
+                x++
+            result += x
+        }
+        return result
+    }
+
+    // Returns at most maxSize row indices out of 0..n-1, taken with a fixed stride
+    private static int[] sampleIndices(int n, int maxSize) {
+        int stride = n <= maxSize ? 1 : (int) Math.ceil(n / (double) maxSize)
+        int[] result = new int[(n + stride - 1).intdiv(stride)]
+        for (int k = 0; k < result.length; k++)
+            result[k] = k * stride
+        return result
+    }
+
+    /** A growable list of pairs of row indices (first[k], second[k]) */
+    static class IndexPairs {
+        int size
+        int[] first = new int[16]
+        int[] second = new int[16]
+
+        void add(int i, int j) {
+            if (size == first.length) {
+                first = Arrays.copyOf(first, size * 2)
+                second = Arrays.copyOf(second, size * 2)
+            }
+            first[size] = i
+            second[size] = j
+            size++
+        }
+    }
+
 }
@@ -0,0 +1,238 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+import groovy.util.logging.Log
+
+/**
+ * External-memory variant of BoxSet.mergeBoxSetsViaIntersections for two box sets: both sets are written to disk in
+ * runs sorted by the lower bound in a sweep dimension (chosen on samples as in CubeIntersectionFinder), and a sweep
+ * over the runs (read via MappedBoxSetReader) computes the intersections, which are written to an output file with a
+ * BoxSetWriter. Only the boxes spanning the current sweep position are kept on the heap, instead of all candidate
+ * pairs and the intersections; the result is read back after the inputs have been released.
+ * The intersections are computed as boxA.getIntersection(boxB), i.e. as in the in-memory merge of A with B.
+ */
+@Typed @Log
+class ExternalBoxSetMerger {
+
+    // Max. number of boxes of a sorted run (each run is a file)
+    static int RUN_SIZE = 1 << 18
+
+    private final File directory
+    private final int nDims
+    private final int numClasses
+
+    int sweepDim = 0
+
+    ExternalBoxSetMerger(int nDims, int numClasses, File directory = null) {
+        this.nDims = nDims
+        this.numClasses = numClasses
+        this.directory = directory ?: new File(System.getProperty("java.io.tmpdir"))
+    }
+
+    /**
+     * Merges boxesA and boxesB as BoxSet.mergeBoxSetsViaIntersections; the lists of inputs are cleared after
+     * spilling so that their boxes can be collected (if not referenced elsewhere) before the result is read back
+     */
+    static BoxSet merge(List<BoxSet> inputs, File directory = null) {
+        assert inputs.size() == 2
+        BoxSet boxesA = inputs[0]
+        BoxSet boxesB = inputs[1]
+        Cube boundingBox = boxesA.boundingBox
+        if (boundingBox != null && boxesB.boundingBox != null)
+            boundingBox = boundingBox.getEnclosing(boxesB.boundingBox)
+        if (boxesA.isEmpty() || boxesB.isEmpty()) {
+            BoxSet result = new BoxSet(boxesA.isEmpty() ? boxesB : boxesA)
+            result.boundingBox = boundingBox
+            return result
+        }
+
+        ClassCube firstBox = boxesA.get(0)
+        double[] distribution = firstBox.classData?.classProbDistribution
+        def merger = new ExternalBoxSetMerger(firstBox.nDims, (distribution != null) ? distribution.length : 0, directory)
+        merger.sweepDim = selectSweepDimension(boxesA, boxesB)
+
+        List<File> runsA = new ArrayList<File>()
+        List<File> runsB = new ArrayList<File>()
+        File fileOut = File.createTempFile("merged", ".boxes", merger.directory)
+        try {
+            merger.writeSortedRuns(boxesA, "boxesA", runsA)
+            merger.writeSortedRuns(boxesB, "boxesB", runsB)
+            inputs.clear()
+            boxesA = null
+            boxesB = null
+
+            merger.sweep(runsA, runsB, fileOut, boundingBox)
+            deleteAll(runsA)
+            deleteAll(runsB)
+
+            return MappedBoxSetReader.read(fileOut)
+        } finally {
+            deleteAll(runsA)
+            deleteAll(runsB)
+            fileOut.delete()
+        }
+    }
+
+    private static void deleteAll(List<File> files) {
+        for (file in files)
+            file.delete()
+    }
+
+    // The sweep dimension with the fewest candidate pairs on samples of both sets
+    private static int selectSweepDimension(BoxSet boxesA, BoxSet boxesB) {
+        return CubeIntersectionFinder.selectSweepDimension(ColumnarBoxSet.fromBoxes(sample(boxesA), false),
+                ColumnarBoxSet.fromBoxes(sample(boxesB), false))
+    }
+
+    private static List<ClassCube> sample(BoxSet boxes) {
+        int stride = Math.max(1, (int) Math.ceil(boxes.size() / (double) CubeIntersectionFinder.SELECTIVITY_SAMPLE_SIZE))
+        List<ClassCube> result = new ArrayList<ClassCube>()
+        for (int i = 0; i < boxes.size(); i += stride)
+            result << boxes.get(i)
+        return result
+    }
+
+    // ------------ Sorted runs ------------
+
+    /** Writes the boxes as runs (files added to runFiles) sorted by the lower bound in sweepDim */
+    void writeSortedRuns(List<ClassCube> boxes, String prefix, List<File> runFiles) {
+        Comparator<ClassCube> byLower = new Comparator<ClassCube>() {
+            int compare(ClassCube a, ClassCube b) {
+                return Double.compare(a.getLower(sweepDim), b.getLower(sweepDim))
+            }
+        }
+        for (int from = 0; from < boxes.size(); from += RUN_SIZE) {
+            List<ClassCube> run = new ArrayList<ClassCube>(boxes.subList(from, Math.min(boxes.size(), from + RUN_SIZE)))
+            Collections.sort(run, byLower)
+            File file = File.createTempFile(prefix, ".run", directory)
+            runFiles << file
+            def writer = new BoxSetWriter(file, nDims, numClasses)
+            try {
+                for (box in run)
+                    writer.write(box)
+            } finally {
+                writer.close()
+            }
+        }
+    }
+
+    // Merges the runs into a single stream sorted by the lower bound in sweepDim
+    private class SortedStream {
+        private final PriorityQueue<Pair<ClassCube, MappedBoxSetReader>> queue
+        private final List<MappedBoxSetReader> readers = new ArrayList<MappedBoxSetReader>()
+
+        SortedStream(List<File> runFiles) {
+            queue = new PriorityQueue<Pair<ClassCube, MappedBoxSetReader>>(Math.max(1, runFiles.size()),
+                    new Comparator<Pair<ClassCube, MappedBoxSetReader>>() {
+                        int compare(Pair<ClassCube, MappedBoxSetReader> a, Pair<ClassCube, MappedBoxSetReader> b) {
+                            return Double.compare(a.first.getLower(sweepDim), b.first.getLower(sweepDim))
+                        }
+                    })
+            for (file in runFiles) {
+                def reader = new MappedBoxSetReader(file)
+                readers << reader
+                if (reader.next())
+                    queue.add(new Pair<ClassCube, MappedBoxSetReader>(reader.toClassCube(), reader))
+            }
+        }
+
+        ClassCube peek() {
+            return queue.isEmpty() ? null : queue.peek().first
+        }
+
+        ClassCube next() {
+            def head = queue.poll()
+            MappedBoxSetReader reader = head.second
+            if (reader.next())
+                queue.add(new Pair<ClassCube, MappedBoxSetReader>(reader.toClassCube(), reader))
+            return head.first
+        }
+
+        void close() {
+            for (reader in readers)
+                reader.close()
+        }
+    }
+
+    // ------------ Sweep ------------
+
+    /** Computes the intersections of the boxes in runsA and runsB, writes them to fileOut and returns their number */
+    long sweep(List<File> runsA, List<File> runsB, File fileOut, Cube boundingBox = null) {
+        def streamA = new SortedStream(runsA)
+        def streamB = new SortedStream(runsB)
+        def writer = new BoxSetWriter(fileOut, nDims, numClasses, boundingBox)
+        int maxActive = 0
+        try {
+            // Boxes which started before the sweep position (and may still end after it)
+            List<ClassCube> activeA = new ArrayList<ClassCube>()
+            List<ClassCube> activeB = new ArrayList<ClassCube>()
+
+            while (streamA.peek() != null || streamB.peek() != null) {
+                ClassCube nextA = streamA.peek()
+                ClassCube nextB = streamB.peek()
+                boolean takeA = nextB == null || (nextA != null && nextA.getLower(sweepDim) <= nextB.getLower(sweepDim))
+                if (takeA) {
+                    ClassCube boxA = streamA.next()
+                    removeEnded(activeB, boxA.getLower(sweepDim))
+                    for (boxB in activeB) {
+                        ClassCube intersection = boxA.getIntersection(boxB)
+                        if (intersection != null)
+                            writer.write(intersection)
+                    }
+                    activeA << boxA
+                } else {
+                    ClassCube boxB = streamB.next()
+                    removeEnded(activeA, boxB.getLower(sweepDim))
+                    for (boxA in activeA) {
+                        ClassCube intersection = boxA.getIntersection(boxB)
+                        if (intersection != null)
+                            writer.write(intersection)
+                    }
+                    activeB << boxB
+                }
+                maxActive = Math.max(maxActive, activeA.size() + activeB.size())
+            }
+        } finally {
+            writer.close()
+            streamA.close()
+            streamB.close()
+        }
+        log.info "External merge in dim $sweepDim: ${writer.numBoxes} boxes, at most $maxActive active boxes"
+        return writer.numBoxes
+    }
+
+    // Removes the boxes which end at or before position (they cannot intersect boxes starting there)
+    private void removeEnded(List<ClassCube> active, double position) {
+        int kept = 0
+        for (int i = 0; i < active.size(); i++) {
+            ClassCube box = active.get(i)
+            if (box.getUpper(sweepDim) > position)
+                active.set(kept++, box)
+        }
+        while (active.size() > kept)
+            active.remove(active.size() - 1)
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+class ExternalBoxSetMergerTest extends GroovyTestCase {
+
+    void testExternalMerge() {
+        def inMemory = new BoxSet()
+        inMemory.mergeBoxSetsViaIntersections(ExampleCubesFromPaper.getA())
+        inMemory.mergeBoxSetsViaIntersections(ExampleCubesFromPaper.getB())
+
+        List<BoxSet> inputs = [new BoxSet(ExampleCubesFromPaper.getA()), new BoxSet(ExampleCubesFromPaper.getB())]
+        def external = ExternalBoxSetMerger.merge(inputs)
+        assertEquals(inMemory.size(), external.size())
+        assertEquals(new HashSet<ClassCube>(inMemory), new HashSet<ClassCube>(external))
+    }
+
+    // Inputs larger than a run: each input is spilled as several sorted runs, which the sweep merges
+    void testExternalMergeOfSeveralRuns() {
+        int oldRunSize = ExternalBoxSetMerger.RUN_SIZE
+        ExternalBoxSetMerger.RUN_SIZE = 4
+        try {
+            def random = new Random(11)
+            for (int round = 0; round < 10; round++) {
+                BoxSet a = MultiWayBoxSetMergerTest.randomPartition(random, null)
+                BoxSet b = MultiWayBoxSetMergerTest.randomPartition(random, null)
+                assertTrue(a.size() > ExternalBoxSetMerger.RUN_SIZE)
+
+                def inMemory = new BoxSet()
+                inMemory.mergeBoxSetsViaIntersections(a)
+                inMemory.mergeBoxSetsViaIntersections(b)
+
+                def external = ExternalBoxSetMerger.merge([a, b])
+                assertEquals(inMemory.size(), external.size())
+                assertEquals(new HashSet<ClassCube>(inMemory), new HashSet<ClassCube>(external))
+                assertEquals(inMemory.boundingBox, external.boundingBox)
+            }
+        } finally {
+            ExternalBoxSetMerger.RUN_SIZE = oldRunSize
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+/**
+ * Sorting of index arrays by primitive double keys, i.e. without boxing and comparators.
+ * Used by the sweeps over ColumnarBoxSet (CubeIntersectionFinder, trees.NodeModel)
+ */
+@Typed
+class IndexSort {
+
+    // Ranges up to this size are sorted by insertion sort
+    private static final int INSERTION_SORT_THRESHOLD = 16
+
+    /** Returns the indices 0..n-1 sorted ascending by keys[index] */
+    static int[] sortedIndices(double[] keys, int n) {
+        int[] indices = new int[n]
+        for (int i = 0; i < n; i++)
+            indices[i] = i
+        sort(indices, 0, n, keys)
+        return indices
+    }
+
+    /** Sorts indices[from..to-1] ascending by keys[indices[i]] (not stable) */
+    static void sort(int[] indices, int from, int to, double[] keys) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            // median of three as pivot
+            int mid = (from + to) >>> 1
+            double pivot = median(keys[indices[from]], keys[indices[mid]], keys[indices[to - 1]])
+
+            // Hoare partition
+            int i = from
+            int j = to - 1
+            while (i <= j) {
+                while (keys[indices[i]] < pivot) i++
+                while (keys[indices[j]] > pivot) j--
+                if (i <= j) {
+                    int tmp = indices[i]
+                    indices[i] = indices[j]
+                    indices[j] = tmp
+                    i++
+                    j--
+                }
+            }
+            // recurse into the smaller part, loop on the larger one (limits the stack depth to O(log n))
+            if (j + 1 - from < to - i) {
+                sort(indices, from, j + 1, keys)
+                from = i
+            } else {
+                sort(indices, i, to, keys)
+                to = j + 1
+            }
+        }
+        insertionSort(indices, from, to, keys)
+    }
+
+    private static void insertionSort(int[] indices, int from, int to, double[] keys) {
+        for (int i = from + 1; i < to; i++) {
+            int index = indices[i]
+            double key = keys[index]
+            int j = i - 1
+            while (j >= from && keys[indices[j]] > key) {
+                indices[j + 1] = indices[j]
+                j--
+            }
+            indices[j + 1] = index
+        }
+    }
+
+    private static double median(double a, double b, double c) {
+        if (a < b) {
+            if (b < c) return b
+            return a < c ? c : a
+        } else {
+            if (a < c) return a
+            return b < c ? c : b
+        }
+    }
+}
@@ -24,7 +24,6 @@
 
 package cubes
 
-import com.google.common.collect.ArrayListMultimap
 import experiment.PerfUtils
 import groovy.util.logging.Log
 
@@ -40,144 +39,187 @@ class JoinAdjacentCubes implements PerfUtils {
     // Collection on which we operate
     private BoxSet cubes
 
-    private static Integer thresholdForUsingHashSet = new Integer(50)
+    // Safety limit for the number of passes over all dimensions (each pass with joins reduces the number of boxes)
+    static int MAX_PASSES = 100
 
     // Or better a Static Factory Method?  see Effective Java #1, http://goo.gl/hpiru
     JoinAdjacentCubes(BoxSet newCubeCollection) {
-
-/*
-        // Since we use add/remove for cubes, it is worth to use a HashSet if newCubeCollection is "large"
-        if (newCubeCollection instanceof List && newCubeCollection.size() > thresholdForUsingHashSet)
-            this.cubes = new HashSet<ClassCube>(newCubeCollection)
-        else
-*/
         this.cubes = newCubeCollection
     }
 
     int totalJoinedCubes
 
+    // Number of joins in each pass over all dimensions (the last pass has 0 joins unless MAX_PASSES was reached)
+    List<Integer> joinsPerPass = []
+
     /*
-       boundaries2cubes - a data structure for sorting all cubes along their boundaries.
-       Each key of this sorted map is a boundary b, and a value is a pair of 2 lists: one of cubes starting at b (pair.first)
-       and second (pair.second) of cubes ending at b
+       The boxes during joining, in columnar form (see ColumnarBoxSet); joined boxes are appended as new rows.
+       Removed (joined) rows are only marked in removed (tombstones) and compacted once at the end
     */
-    private SortedMap<Double, Pair> boundaries2cubes = new TreeMap<Double, Pair>()
-    // Auxiliary structure which stores removed parent cubes  (to prevent using same "source" cube multiple times)
-    private Set removedCubes = new HashSet<ClassCube>()
+    private ColumnarBoxSet work
+    private boolean[] removed
 
     BoxSet joinAdjacentCubes() {
         totalJoinedCubes = 0
-        removedCubes.clear()
+        joinsPerPass.clear()
+        // joined boxes are no longer the leaves of the source tree
+        cubes.sourceTree = null
 
         def t0 = tic()
         if (cubes.size() > 0) {
-            def dims = cubes.iterator().next().getnDims()
-            for (int dim in 0..<dims) {
-                joinCubesOneDim(dim)
+            work = ColumnarBoxSet.fromBoxes(cubes, false)
+            removed = new boolean[Math.max(16, work.size)]
+            def dims = work.nDims
+            int joinsInPass
+            // repeat until no more joins happen
+            while (true) {
+                joinsInPass = 0
+                for (int dim in 0..<dims) {
+                    joinsInPass += joinCubesOneDim(dim)
+                }
+                joinsPerPass << joinsInPass
+                totalJoinedCubes += joinsInPass
+                if (joinsInPass == 0 || joinsPerPass.size() >= MAX_PASSES)
+                    break
+            }
+
+            // compact: replace the contents of cubes by the remaining rows (reusing the original objects)
+            cubes.clear()
+            for (int i = 0; i < work.size; i++) {
+                if (!removed[i])
+                    cubes << work.getCube(i)
             }
+            work = null
+            removed = null
         }
         def t1 = tic()
-        int numRemovedCubes = removedCubes.size()
-        boundaries2cubes.clear()
-        removedCubes.clear()
-        // log.info "Run of joinAdjacentCubes on ${cubes.size()} (joined: $totalJoinedCubes ,  removed: $numRemovedCubes) took: ${toDiffString(t0, t1)}"
-        // assert 2*totalJoinedCubes == numRemovedCubes, "# joined and # removed are wrong!"
+        log.fine "Run of joinAdjacentCubes on ${cubes.size() + totalJoinedCubes} boxes (joins per pass: $joinsPerPass) took: ${toDiffString(t0, t1)}"
         return cubes
     }
 
-
-
-    protected joinCubesOneDim(int dim) {
-        boundaries2cubes.clear()
-        // 1. fill in the starts and ends for (half)bounded cubes
-        for (ClassCube cube in cubes) {
-            if (cube.isBounded(dim)) {
-                addCubeByBoundaries(cube, dim, boundaries2cubes)
+    /**
+     * Joins the adjacent boxes along dim. Each box is hashed by (class, bounds on all other dims, lower / upper bound on dim),
+     * so the neighbour of a box is found by a single hash probe. Chains of adjacent boxes are joined from their head
+     * (a box without joinable predecessor) to the end. Boxes joined in this call are not considered again before the next dim.
+     * @return the number of joins
+     */
+    protected int joinCubesOneDim(int dim) {
+        int numRows = work.size
+        // boxes by (class, other bounds, lower bound at dim) and by (class, other bounds, upper bound at dim)
+        Map<JoinKey, Integer> byLower = new HashMap<JoinKey, Integer>(2 * numRows)
+        Map<JoinKey, Integer> byUpper = new HashMap<JoinKey, Integer>(2 * numRows)
+        for (int i = 0; i < numRows; i++) {
+            if (isCandidate(i, dim)) {
+                def lowerKey = new JoinKey(work, i, dim, false)
+                if (!byLower.containsKey(lowerKey))
+                    byLower.put(lowerKey, i)
+                def upperKey = new JoinKey(work, i, dim, true)
+                if (!byUpper.containsKey(upperKey))
+                    byUpper.put(upperKey, i)
             }
         }
 
-        // 2a. iterate all starting boundaries, for each find all cubes with same ending b. and check the Carthesian product of both lists
-        for (cutpoint in boundaries2cubes.keySet()) {
-            // 1. get starting and ending cubes at cutpoint
-            Pair<List, List> pair = boundaries2cubes.get(cutpoint)
-            List<ClassCube> starting = pair.first   // Starting boxes at this cutpoint
-            List<ClassCube> ending = pair.second    // Boxes ending at this cutpoint
-
-            // 2b. generate Carthesian product of startingCubes, endingCubes, check and possibly add to joinedCubesOneDim
-            if (starting?.size() > 0 && ending?.size() > 0)
-                checkAllPairsAndAdd(starting, ending, dim)
+        int joins = 0
+        for (int i = 0; i < numRows; i++) {
+            if (!isCandidate(i, dim))
+                continue
+            // only start at the head of a chain; the other boxes are joined from there. A box whose predecessor cannot
+            // be joined to it is a head: the JoinKey already matches the bounds, so (as in joinAtDim) the class data decides
+            Integer predecessor = byUpper.get(new JoinKey(work, i, dim, false))
+            if (predecessor != null && predecessor != i && !removed[predecessor] &&
+                    work.getCube(predecessor).classData.isJoinable(work.getCube(i).classData))
+                continue
+
+            ClassCube joined = null
+            int current = i
+            while (true) {
+                Integer next = byLower.get(new JoinKey(work, current, dim, true))
+                if (next == null || next == current || removed[next])
+                    break
+                ClassCube left = joined != null ? joined : work.getCube(i)
+                ClassCube join = left.joinAtDim(work.getCube(next), dim)
+                if (join == ClassCube.EMPTY_CLASSCUBE)
+                    break
+                removed[i] = true
+                removed[next] = true
+                joined = join
+                current = next
+                joins++
+            }
+            if (joined != null)
+                addRow(joined)
         }
+        return joins
     }
 
+    // Rows which may take part in a join at dim
+    private boolean isCandidate(int i, int dim) {
+        return !removed[i] && !work.hasConflict[i] && work.isBounded(i, dim)
+    }
 
-    protected checkAllPairsAndAdd(List<ClassCube> cubesA, List<ClassCube> cubesB, int dim) {
-
-        ArrayListMultimap<Double, ClassCube> cubesAMap = ArrayListMultimap.create()
-        ArrayListMultimap<Double, ClassCube> cubesBMap = ArrayListMultimap.create()
+    private void addRow(ClassCube cube) {
+        int i = work.add(cube)
+        if (i >= removed.length)
+            removed = Arrays.copyOf(removed, removed.length * 2)
+    }
 
-        for (cA in cubesA)
-            cubesAMap.put(Double.valueOf(cA.classValue), cA)
-        for (cB in cubesB)
-            cubesBMap.put(Double.valueOf(cB.classValue), cB)
+    /*
+     Hash key of a row for joining at dim: class index, the bounds at all other dims, and the lower or upper bound at dim.
+     A key with the upper bound of box a equals the key with the lower bound of box b iff b starts where a ends and
+     both agree in class and all other bounds (bounds are compared bitwise, as keys of a TreeMap<Double, ...> would be)
+     */
+    private static final class JoinKey {
+        private final ColumnarBoxSet boxes
+        private final int row
+        private final int dim
+        private final double boundary
+        private final int hash
+
+        JoinKey(ColumnarBoxSet boxes, int row, int dim, boolean upperBound) {
+            this.boxes = boxes
+            this.row = row
+            this.dim = dim
+            this.boundary = upperBound ? boxes.getUpper(row, dim) : boxes.getLower(row, dim)
+
+            int h = boxes.classIdx[row]
+            h = 31 * h + hashDouble(boundary)
+            for (int d = 0; d < boxes.nDims; d++) {
+                if (d != dim) {
+                    h = 31 * h + hashDouble(boxes.getLower(row, d))
+                    h = 31 * h + hashDouble(boxes.getUpper(row, d))
+                }
+            }
+            this.hash = h
+        }
 
+        private static int hashDouble(double value) {
+            long bits = Double.doubleToLongBits(value)
+            return (int) (bits ^ (bits >>> 32))
+        }
 
-        for (classValue in cubesAMap.keySet()) {
-            List<ClassCube> cAs = cubesAMap.get(classValue)
-            List<ClassCube> cBs = cubesBMap.get(classValue)
+        @Override
+        int hashCode() {
+            return hash
+        }
 
-            for (cA in cAs) {
-                if (removedCubes.contains(cA))
-                    continue
-                for (cB in cBs) {
-                    if (removedCubes.contains(cB))
-                        continue
-                    ClassCube join = cA.joinAtDim(cB, dim)
-                    // 2. if joinable, join, remove parents from cubes and add result to cubes
-                    if (join != ClassCube.EMPTY_CLASSCUBE) {
-                        // debug
-/*
-                    if (!cubes.contains(cA))
-                        log.warning("########## Cube not found in cubes collection (col. size=${cubes.size()}, cube = $cA)")
-                    if (!cubes.contains(cB))
-                        log.warning("########## Cube not found in cubes collection (col. size=${cubes.size()}, cube = $cB)")
-                    if (cubes.contains(join))
-                        log.warning("########## Cube is already in cubes collection; cube=$join")
-*/
-                        // remove parents, add join; since cubes is a HashSet for cubes.size > X, this is efficient
-                        cubes.remove(cA)
-                        cubes.remove(cB)
-                        removedCubes << cA
-                        removedCubes << cB
-
-                        cubes.add(join)
-                        totalJoinedCubes++
-                    }
+        @Override
+        boolean equals(Object o) {
+            if (!(o instanceof JoinKey)) return false
+            JoinKey other = (JoinKey) o
+            if (hash != other.hash || dim != other.dim) return false
+            if (boxes.classIdx[row] != other.boxes.classIdx[other.row]) return false
+            if (!sameBits(boundary, other.boundary)) return false
+            for (int d = 0; d < boxes.nDims; d++) {
+                if (d != dim) {
+                    if (!sameBits(boxes.getLower(row, d), other.boxes.getLower(other.row, d))) return false
+                    if (!sameBits(boxes.getUpper(row, d), other.boxes.getUpper(other.row, d))) return false
                 }
             }
+            return true
         }
-    }
-
-    // todo: this method and getPairOrCreate are identical as in NodeModel - make a trait for "line sweep"
-    private addCubeByBoundaries(ClassCube cube, int dim, Map<Double, Pair> boundaries2cubes) {
-        double lower = cube.getLower(dim)
-        Pair<List, List> pair = getPairOrCreate(lower, boundaries2cubes)
-        pair.first << cube
-
-        double upper = cube.getUpper(dim)
-        pair = getPairOrCreate(upper, boundaries2cubes)
-        pair.second << cube
-    }
 
-    private Pair getPairOrCreate(double key, Map<Double, Pair> boundaries2cubes) {
-        if (boundaries2cubes.containsKey(key))
-            return boundaries2cubes.get(key)
-        else {
-            def pair = new Pair<List, List>()
-            // todo: later - more efficient is to create only one list (in a separate method)
-            pair.first = new ArrayList(2)
-            pair.second = new ArrayList(2)
-            boundaries2cubes.put(key, pair)
-            return pair
+        private static boolean sameBits(double a, double b) {
+            return Double.doubleToLongBits(a) == Double.doubleToLongBits(b)
         }
     }
 }
@@ -36,4 +36,70 @@ class JoinAdjacentCubesTest extends GroovyTestCase {
         assertEquals 8, joinedCubes.size()
 
     }
+
+    // A box with bounds [lower0, upper0] x [lower1, upper1] (infinite values for unbounded ends)
+    private static ClassCube box(double lower0, double upper0, double lower1, double upper1, int classValue) {
+        def cube = new ClassCube(2)
+        cube.setBounds(0, lower0, upper0)
+        cube.setBounds(1, lower1, upper1)
+        cube.setClassValue(classValue)
+        cube.classData.classProbDistribution = (classValue == 1) ? [0.0, 1.0] as double[] : [1.0, 0.0] as double[]
+        return cube
+    }
+
+    void testChainOfThreeInAnyOrder() {
+        // the head of the chain is not the first box
+        def boxes = new BoxSet([box(1.0, 2.0, 0.0, 1.0, 1), box(2.0, 3.0, 0.0, 1.0, 1), box(0.0, 1.0, 0.0, 1.0, 1)])
+        def joiner = new JoinAdjacentCubes(boxes)
+        def joined = joiner.joinAdjacentCubes()
+        assertEquals(1, joined.size())
+        assertEquals(2, joiner.totalJoinedCubes)
+        assertEquals(0.0, joined[0].getLower(0))
+        assertEquals(3.0, joined[0].getUpper(0))
+        assertEquals(0.0, joined[0].getLower(1))
+        assertEquals(1.0, joined[0].getUpper(1))
+    }
+
+    void testClassMismatchBreaksChain() {
+        def boxes = new BoxSet([box(0.0, 1.0, 0.0, 1.0, 1), box(1.0, 2.0, 0.0, 1.0, 0), box(2.0, 3.0, 0.0, 1.0, 0)])
+        def joined = new JoinAdjacentCubes(boxes).joinAdjacentCubes()
+        assertEquals(2, joined.size())
+        def upper = joined.find { it.classValue == 0.0 }
+        assertEquals(1.0, upper.getLower(0))
+        assertEquals(3.0, upper.getUpper(0))
+    }
+
+    void testConflictingBoxesAreNotJoined() {
+        def conflicting = box(1.0, 2.0, 0.0, 1.0, 1)
+        conflicting.classData.hasConflict = true
+        def boxes = new BoxSet([box(0.0, 1.0, 0.0, 1.0, 1), conflicting, box(2.0, 3.0, 0.0, 1.0, 1)])
+        def joined = new JoinAdjacentCubes(boxes).joinAdjacentCubes()
+        assertEquals(3, joined.size())
+        assertTrue(joined.contains(conflicting))
+    }
+
+    void testUnboundedDims() {
+        double inf = Double.POSITIVE_INFINITY
+        // unbounded at dim 1, half-bounded at dim 0: joined to a box unbounded at both dims
+        def boxes = new BoxSet([box(-inf, 1.0, -inf, inf, 1), box(1.0, inf, -inf, inf, 1)])
+        def joined = new JoinAdjacentCubes(boxes).joinAdjacentCubes()
+        assertEquals(1, joined.size())
+        assertFalse(joined[0].isBounded(0))
+        assertFalse(joined[0].isBounded(1))
+
+        // no join along a dim where the boxes are unbounded (they overlap there, and differ at dim 0)
+        boxes = new BoxSet([box(0.0, 1.0, -inf, inf, 1), box(2.0, 3.0, -inf, inf, 1)])
+        assertEquals(2, new JoinAdjacentCubes(boxes).joinAdjacentCubes().size())
+    }
+
+    void testJoinsAcrossDimsInSeveralPasses() {
+        // a 2 x 2 grid of boxes of the same class ends as one box
+        def boxes = new BoxSet([box(0.0, 1.0, 0.0, 1.0, 1), box(1.0, 2.0, 0.0, 1.0, 1),
+                box(0.0, 1.0, 1.0, 2.0, 1), box(1.0, 2.0, 1.0, 2.0, 1)])
+        def joiner = new JoinAdjacentCubes(boxes)
+        def joined = joiner.joinAdjacentCubes()
+        assertEquals(1, joined.size())
+        assertEquals(3, joiner.totalJoinedCubes)
+        assertEquals(0, joiner.joinsPerPass.last())
+    }
 }
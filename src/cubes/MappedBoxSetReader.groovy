@@ -0,0 +1,177 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Reads the binary BoxSet format of BoxSetWriter via a memory mapping of the file (remapped in windows for large
+ * files). next() advances to the following box and decodes it into reused primitive arrays, so that the boxes can
+ * be iterated without creating objects; toClassCube() and read() create ClassCubes.
+ */
+@Typed
+class MappedBoxSetReader implements Closeable {
+
+    // Max. size of a mapped window
+    static long WINDOW_BYTES = Integer.MAX_VALUE
+
+    final int nDims
+    final int numClasses
+    final long numBoxes
+    final Cube boundingBox
+
+    private final FileChannel channel
+    private final long fileSize
+    private final int maxRecordBytes
+    private MappedByteBuffer buffer
+    private long windowStart
+    private long boxesRead = 0
+
+    // The current box (unbounded dims have -inf/+inf)
+    private final long[] mask
+    final double[] lower
+    final double[] upper
+    int classIndex
+    double confidence
+    boolean hasConflict
+    boolean hasDistribution
+    final double[] distribution
+
+    MappedBoxSetReader(File file) {
+        channel = new RandomAccessFile(file, "r").getChannel()
+        fileSize = channel.size()
+        map(0L)
+
+        int magic = buffer.getInt()
+        if (magic != BoxSetWriter.MAGIC)
+            throw new IOException("Not a box set file: $file")
+        int version = buffer.getInt()
+        if (version != BoxSetWriter.VERSION)
+            throw new IOException("Unsupported version $version of box set file $file")
+        nDims = buffer.getInt()
+        numClasses = buffer.getInt()
+        numBoxes = buffer.getLong()
+        int headerFlags = buffer.getInt()
+
+        maxRecordBytes = BoxSetWriter.maxRecordBytes(nDims, numClasses)
+        mask = new long[BoxSetWriter.maskWords(nDims)]
+        lower = new double[nDims]
+        upper = new double[nDims]
+        distribution = new double[numClasses]
+
+        if ((headerFlags & BoxSetWriter.HEADER_FLAG_BOUNDING_BOX) != 0) {
+            readBounds()
+            boundingBox = new Cube(nDims)
+            setBounds(boundingBox)
+        } else {
+            boundingBox = null
+        }
+    }
+
+    /** Reads all boxes of file into a BoxSet (with the bounding box) */
+    static BoxSet read(File file) {
+        def reader = new MappedBoxSetReader(file)
+        try {
+            assert reader.numBoxes <= Integer.MAX_VALUE
+            BoxSet result = new BoxSet((int) reader.numBoxes)
+            result.boundingBox = reader.boundingBox
+            while (reader.next())
+                result << reader.toClassCube()
+            return result
+        } finally {
+            reader.close()
+        }
+    }
+
+    private void map(long offset) {
+        windowStart = offset
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW_BYTES, fileSize - offset))
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+    }
+
+    /** Advances to the next box, false if there is none */
+    boolean next() {
+        if (boxesRead >= numBoxes)
+            return false
+        if (buffer.remaining() < maxRecordBytes && windowStart + buffer.limit() < fileSize)
+            map(windowStart + buffer.position())
+
+        readBounds()
+        classIndex = buffer.getInt()
+        confidence = buffer.getDouble()
+        int flags = buffer.get()
+        hasConflict = (flags & BoxSetWriter.BOX_FLAG_CONFLICT) != 0
+        hasDistribution = (flags & BoxSetWriter.BOX_FLAG_DISTRIBUTION) != 0
+        if (hasDistribution)
+            for (int c = 0; c < numClasses; c++)
+                distribution[c] = buffer.getDouble()
+        boxesRead++
+        return true
+    }
+
+    boolean isBounded(int dim) {
+        return (mask[dim >>> 6] & (1L << (dim & 63))) != 0
+    }
+
+    private void readBounds() {
+        for (int word = 0; word < mask.length; word++)
+            mask[word] = buffer.getLong()
+        for (int dim = 0; dim < nDims; dim++) {
+            if (isBounded(dim)) {
+                lower[dim] = buffer.getDouble()
+                upper[dim] = buffer.getDouble()
+            } else {
+                lower[dim] = Double.NEGATIVE_INFINITY
+                upper[dim] = Double.POSITIVE_INFINITY
+            }
+        }
+    }
+
+    private void setBounds(Cube cube) {
+        for (int dim = 0; dim < nDims; dim++)
+            if (isBounded(dim))
+                cube.setBounds(dim, lower[dim], upper[dim])
+    }
+
+    /** A new ClassCube with the current box */
+    ClassCube toClassCube() {
+        ClassCube box = new ClassCube(nDims)
+        setBounds(box)
+        ClassData classData = box.classData
+        classData.classValue = classIndex
+        classData.confidence = confidence
+        classData.hasConflict = hasConflict
+        if (hasDistribution)
+            classData.classProbDistribution = (double[]) distribution.clone()
+        return box
+    }
+
+    void close() {
+        buffer = null
+        channel.close()
+    }
+}
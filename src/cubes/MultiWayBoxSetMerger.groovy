@@ -0,0 +1,182 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+/**
+ * Merges k box sets (each partitioning the space) in one pass, instead of k-1 binary
+ * BoxSet.mergeBoxSetsViaIntersections calls which create a full intermediate BoxSet with merged ClassData at each level.
+ * The boxes of the smallest set are extended depth-first by an intersecting box of each further set (found via a
+ * BoxPointLocator), narrowing the current region as primitive bounds; a ClassCube is only created for the non-empty
+ * intersections of all k sets. The class data of such a k-way intersection is merged as in ClassData.mergeClassData:
+ * the class of the part with highest confidence, the minimum confidence, the average distribution and a conflict if
+ * any part has one or the classes of the parts do not agree (detected while descending).
+ */
+@Typed
+class MultiWayBoxSetMerger {
+
+    private final int k
+    private final int nDims
+
+    // The parts ordered by size (smallest first) and their indexes (for parts 1..k-1)
+    private final List<ClassCube>[] parts
+    private final BoxPointLocator[] locators
+
+    private final Cube boundingBox
+
+    // State of the descent: region of the intersection of the boxes chosen for parts 0..j in lower[j]/upper[j]
+    private double[][] lower
+    private double[][] upper
+    private ClassData[] chosen
+    private boolean[] conflict
+    private BoxPointLocator.Hits[] hits
+
+    // Number of emitted boxes with a conflict
+    int numConflicts = 0
+
+    MultiWayBoxSetMerger(List<BoxSet> boxSets) {
+        assert boxSets != null && boxSets.size() > 0
+        List<BoxSet> ordered = new ArrayList<BoxSet>(boxSets)
+        Collections.sort(ordered, new Comparator<BoxSet>() {
+            int compare(BoxSet a, BoxSet b) {
+                return a.size() <=> b.size()
+            }
+        })
+
+        k = ordered.size()
+        parts = (List<ClassCube>[]) new List[k]
+        locators = new BoxPointLocator[k]
+        Cube enclosing = null
+        for (int j = 0; j < k; j++) {
+            parts[j] = ordered[j]
+            if (j > 0)
+                locators[j] = new BoxPointLocator(parts[j])
+            Cube partBoundingBox = ordered[j].boundingBox
+            if (partBoundingBox != null)
+                enclosing = enclosing == null ? partBoundingBox : enclosing.getEnclosing(partBoundingBox)
+        }
+        boundingBox = enclosing
+        nDims = (parts[0].size() > 0) ? parts[0].get(0).nDims : 0
+    }
+
+    /** Returns the non-empty intersections of all k box sets */
+    BoxSet merge() {
+        BoxSet result = new BoxSet()
+        result.boundingBox = boundingBox
+        numConflicts = 0
+        if (k == 1) {
+            result.addAll(parts[0])
+            return result
+        }
+
+        lower = new double[k][nDims]
+        upper = new double[k][nDims]
+        chosen = new ClassData[k]
+        conflict = new boolean[k]
+        hits = new BoxPointLocator.Hits[k]
+        for (int j = 1; j < k; j++)
+            hits[j] = new BoxPointLocator.Hits()
+
+        for (ClassCube cube in parts[0]) {
+            for (int dim = 0; dim < nDims; dim++) {
+                lower[0][dim] = cube.getLower(dim)
+                upper[0][dim] = cube.getUpper(dim)
+            }
+            chosen[0] = cube.classData
+            conflict[0] = cube.classData.hasConflict
+            descend(1, result)
+        }
+        return result
+    }
+
+    // Extends the intersection of parts 0..j-1 by each intersecting box of part j
+    private void descend(int j, BoxSet result) {
+        double[] parentLower = lower[j - 1]
+        double[] parentUpper = upper[j - 1]
+        BoxPointLocator.Hits partHits = hits[j]
+        locators[j].findIntersecting(parentLower, parentUpper, partHits)
+
+        for (int h = 0; h < partHits.size; h++) {
+            ClassCube cube = parts[j].get(partHits.get(h))
+            for (int dim = 0; dim < nDims; dim++) {
+                lower[j][dim] = Math.max(parentLower[dim], cube.getLower(dim))
+                upper[j][dim] = Math.min(parentUpper[dim], cube.getUpper(dim))
+            }
+            chosen[j] = cube.classData
+            conflict[j] = conflict[j - 1] || cube.classData.hasConflict || chosen[0].isLocalConflict(cube.classData)
+
+            if (j < k - 1)
+                descend(j + 1, result)
+            else
+                result << createIntersection()
+        }
+    }
+
+    // The ClassCube for the current region of all k parts
+    private ClassCube createIntersection() {
+        ClassCube cube = new ClassCube(nDims)
+        double[] regionLower = lower[k - 1]
+        double[] regionUpper = upper[k - 1]
+        for (int dim = 0; dim < nDims; dim++) {
+            if (regionLower[dim] != Double.NEGATIVE_INFINITY || regionUpper[dim] != Double.POSITIVE_INFINITY)
+                cube.setBounds(dim, regionLower[dim], regionUpper[dim])
+        }
+
+        ClassData classData = new ClassData()
+        int best = 0
+        double minConfidence = chosen[0].confidence
+        for (int j = 1; j < k; j++) {
+            if (chosen[j].confidence >= chosen[best].confidence)
+                best = j
+            minConfidence = Math.min(minConfidence, chosen[j].confidence)
+        }
+        classData.classValue = chosen[best].classValue
+        classData.confidence = minConfidence
+        classData.hasConflict = conflict[k - 1]
+        classData.classProbDistribution = averageDistribution()
+        cube.classData = classData
+
+        if (classData.hasConflict)
+            numConflicts++
+        return cube
+    }
+
+    private double[] averageDistribution() {
+        double[] first = chosen[0].classProbDistribution
+        if (first == null)
+            return null
+        double[] result = new double[first.length]
+        for (int j = 0; j < k; j++) {
+            double[] distribution = chosen[j].classProbDistribution
+            if (distribution == null)
+                return null
+            assert distribution.length == result.length, "Vectors of class. prob. distributions to be merged have different lengths"
+            for (int c = 0; c < result.length; c++)
+                result[c] += distribution[c]
+        }
+        for (int c = 0; c < result.length; c++)
+            result[c] /= k
+        return result
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package cubes
+
+class MultiWayBoxSetMergerTest extends GroovyTestCase {
+
+    static final double[] COARSE_CUTS = [1.0, 2.0] as double[]
+
+    /**
+     * A random partition of the plane into a grid: the cuts per dim are COARSE_CUTS plus random further cuts.
+     * Each box has a random confidence and class distribution; its class is random, or (if coarseClasses != null) the
+     * class of the coarse cell containing it, so that partitions with the same coarseClasses never conflict.
+     */
+    static BoxSet randomPartition(Random random, int[][] coarseClasses) {
+        List<Double>[] cuts = new List[2]
+        for (int dim = 0; dim < 2; dim++) {
+            Set<Double> dimCuts = new TreeSet<Double>(COARSE_CUTS.toList())
+            for (int c = 0; c < 3; c++)
+                dimCuts << Math.round(random.nextDouble() * 30) / 10.0
+            cuts[dim] = [Double.NEGATIVE_INFINITY] + dimCuts.toList() + [Double.POSITIVE_INFINITY]
+        }
+        BoxSet boxes = new BoxSet()
+        for (int i = 0; i < cuts[0].size() - 1; i++) {
+            for (int j = 0; j < cuts[1].size() - 1; j++) {
+                def cube = new ClassCube(2)
+                cube.setBounds(0, cuts[0][i], cuts[0][i + 1])
+                cube.setBounds(1, cuts[1][j], cuts[1][j + 1])
+                int classValue = coarseClasses == null ? random.nextInt(2) :
+                    coarseClasses[coarseCell(cuts[0][i])][coarseCell(cuts[1][j])]
+                cube.setClassValue(classValue)
+                cube.setConfidence(random.nextDouble())
+                double p = random.nextDouble()
+                cube.setClassProbDistribution([p, 1.0 - p] as double[])
+                boxes << cube
+            }
+        }
+        boxes.boundingBox = new Cube(2)
+        boxes.boundingBox.setBounds(0, 0.0, 3.0)
+        boxes.boundingBox.setBounds(1, 0.0, 3.0)
+        return boxes
+    }
+
+    // Index of the coarse cell in which a grid cell starting at lower lies
+    private static int coarseCell(double lower) {
+        int cell = 0
+        while (cell < COARSE_CUTS.length && lower >= COARSE_CUTS[cell])
+            cell++
+        return cell
+    }
+
+    private static BoxSet pairwise(BoxSet a, BoxSet b) {
+        def result = new BoxSet()
+        result.mergeBoxSetsViaIntersections(a)
+        result.mergeBoxSetsViaIntersections(b)
+        return result
+    }
+
+    void testTwoPartitionsAsPairwiseMerge() {
+        def random = new Random(3)
+        for (int round = 0; round < 10; round++) {
+            // random classes, i.e. with conflicts
+            BoxSet a = randomPartition(random, null)
+            BoxSet b = randomPartition(random, null)
+            BoxSet expected = pairwise(a, b)
+            BoxSet actual = new MultiWayBoxSetMerger([a, b]).merge()
+            assertSameBoxes(expected, actual, 0.0)
+        }
+    }
+
+    void testFourPartitionsAsBalancedPairwiseMerges() {
+        def random = new Random(5)
+        for (int round = 0; round < 10; round++) {
+            int[][] coarseClasses = new int[3][3]
+            for (int i = 0; i < 3; i++)
+                for (int j = 0; j < 3; j++)
+                    coarseClasses[i][j] = random.nextInt(2)
+            List<BoxSet> parts = []
+            for (int p = 0; p < 4; p++)
+                parts << randomPartition(random, coarseClasses)
+
+            // as the reducers' merge tree ((0, 1), (2, 3)): its distributions are averages of all four
+            BoxSet expected = pairwise(pairwise(parts[0], parts[1]), pairwise(parts[2], parts[3]))
+            BoxSet actual = new MultiWayBoxSetMerger(parts).merge()
+            assertSameBoxes(expected, actual, 1e-12)
+            assertEquals(0, actual.count { it.classData.hasConflict })
+        }
+    }
+
+    // Same boxes (bounds, class, confidence, conflict) up to order, distributions equal within tolerance
+    private void assertSameBoxes(BoxSet expected, BoxSet actual, double tolerance) {
+        assertEquals(expected.size(), actual.size())
+        Map<String, double[]> expectedByKey = new HashMap<String, double[]>()
+        for (ClassCube cube in expected)
+            expectedByKey.put(key(cube), cube.classData.classProbDistribution)
+        assertEquals(expected.size(), expectedByKey.size())
+        for (ClassCube cube in actual) {
+            double[] distribution = expectedByKey.get(key(cube))
+            assertNotNull("unexpected box ${key(cube)}", distribution)
+            for (int c = 0; c < distribution.length; c++)
+                assertEquals(distribution[c], cube.classData.classProbDistribution[c], tolerance)
+        }
+    }
+
+    private static String key(ClassCube cube) {
+        StringBuilder sb = new StringBuilder()
+        for (int dim = 0; dim < cube.nDims; dim++)
+            sb.append("[${cube.getLower(dim)}, ${cube.getUpper(dim)}]")
+        sb.append(" class=${cube.classValue} confidence=${cube.classData.confidence} conflict=${cube.classData.hasConflict}")
+        return sb.toString()
+    }
+}
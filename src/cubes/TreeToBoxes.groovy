@@ -37,6 +37,8 @@ abstract class TreeToBoxes<T> {
     List<T> leaves = []
     // index of the child for the same father (i.e. first child is 0 etc.)
     Map<T, Integer> index = [:]
+    // The root of the tree passed to getReverseDAG
+    T root
 
     // The pattern of the nominal attributes generated by the Discretize filter
     private String fpre = "[-+]?([0-9]*\\.)?[0-9]+([eE][-+]?[0-9]+)?"
@@ -50,6 +52,7 @@ abstract class TreeToBoxes<T> {
             // this is root, has no father
             fathers[node] = null
             index[node] = -1    // special constant for root
+            root = node
         }
         if (isLeaf(node)) {
             leaves << node
@@ -165,12 +168,49 @@ abstract class TreeToBoxes<T> {
 
     abstract int getNumInstances(T t)
 
+    // Returns the boxes of all leaves; the tree itself is kept as boxes.sourceTree (referencing the same boxes)
     BoxSet getBoxes() {
         def boxes = BoxSet.create(leaves.size())
+        Map<T, ClassCube> leafCubes = new HashMap<T, ClassCube>()
         for (it in leaves) {
-            boxes << this.leafToCube(it)
+            def cube = this.leafToCube(it)
+            leafCubes[it] = cube
+            boxes << cube
         }
+        if (root != null)
+            boxes.sourceTree = getBoxTree(root, leafCubes)
         return boxes
     }
 
+    // Converts the subtree at node into a BoxTree whose leaves are the cubes in leafCubes
+    BoxTree getBoxTree(T node, Map<T, ClassCube> leafCubes) {
+        if (isLeaf(node))
+            return BoxTree.createLeaf([leafCubes[node]])
+
+        List<T> children = getChildren(node)
+        int attIndex = getAttributeIndex(node)
+        double[] lower = new double[children.size()]
+        double[] upper = new double[children.size()]
+        List<BoxTree> subTrees = new ArrayList<BoxTree>(children.size())
+        for (int i = 0; i < children.size(); i++) {
+            def child = children[i]
+            if (isNumericBinarySplit(node)) {
+                def splitPoint = getSplitPoint(node)
+                if (isLesserChild(child)) { // lesser (<= splitpoint) child
+                    lower[i] = Double.NEGATIVE_INFINITY
+                    upper[i] = splitPoint
+                } else {
+                    lower[i] = splitPoint
+                    upper[i] = Double.POSITIVE_INFINITY
+                }
+            } else {
+                def bounds = getBounds(node, i)
+                lower[i] = bounds != null ? bounds.first.doubleValue() : Double.NEGATIVE_INFINITY
+                upper[i] = bounds != null ? bounds.second.doubleValue() : Double.POSITIVE_INFINITY
+            }
+            subTrees << getBoxTree(child, leafCubes)
+        }
+        return BoxTree.createSplit(attIndex, lower, upper, subTrees)
+    }
+
 }
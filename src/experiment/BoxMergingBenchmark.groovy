@@ -0,0 +1,90 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package experiment
+
+import cubes.BoxSet
+import cubes.BuildTreeAndGetBoxSet
+import cubes.CubeIntersectionFinder
+import weka.core.Instances
+
+/**
+ * Benchmark of merging tree-derived box sets: CubeIntersectionFinder (dense tracker and sweep-and-refine) vs. tree overlay
+ * (see BoxSet.MergeMode). The data set is split into k parts, a J48 box set is built from each part, and the box sets
+ * are merged sequentially, as in the reducers of the MergedTreeClassifier (but without conflict resolution).
+ * Usage: BoxMergingBenchmark <ARFF-file> [k] [repetitions]
+ *      the last attribute of the ARFF file is the class attribute
+ */
+
+if (args.size() < 1) {
+    println "Usage: BoxMergingBenchmark <ARFF-file> [k] [repetitions]"
+    System.exit(0)
+}
+
+Instances data = Tools.loadArff(args[0])
+int k = args.size() > 1 ? args[1].toInteger() : 4
+int repetitions = args.size() > 2 ? args[2].toInteger() : 3
+
+// 1. Build the box sets (each keeps its J48 tree as sourceTree)
+def builder = new BuildTreeAndGetBoxSet()
+List<BoxSet> boxSets = []
+data.randomize(new Random(1))
+for (int i in 0..<k) {
+    def part = data.testCV(k, i)
+    def boxSet = builder.buildCubes(part)
+    println "Part #$i: ${part.numInstances()} instances, ${boxSet.size()} boxes, tree depth ${boxSet.sourceTree.getDepth()}"
+    boxSets << boxSet
+}
+
+// Merges all box sets as the reducers do, i.e. the result of the first merge is copied from the first box set
+def mergeAll = { BoxSet.MergeMode mode ->
+    def container = new BoxSet()
+    for (boxSet in boxSets)
+        container.mergeBoxSetsViaIntersections(new BoxSet(boxSet), mode)
+    return container
+}
+
+// 2. Time the variants
+def variants = [
+        "dense tracker": { CubeIntersectionFinder.intersectionMode = CubeIntersectionFinder.IntersectionMode.DENSE_TRACKER; mergeAll(BoxSet.MergeMode.INTERSECTION_FINDER) },
+        "sweep-and-refine": { CubeIntersectionFinder.intersectionMode = CubeIntersectionFinder.IntersectionMode.SWEEP_AND_REFINE; mergeAll(BoxSet.MergeMode.INTERSECTION_FINDER) },
+        "tree overlay": { mergeAll(BoxSet.MergeMode.TREE_OVERLAY) }
+]
+
+def resultSizes = [:]
+for (variant in variants) {
+    long minTime = Long.MAX_VALUE
+    int size = -1
+    for (int r in 0..<repetitions) {
+        long start = System.nanoTime()
+        BoxSet merged = variant.value.call()
+        minTime = Math.min(minTime, System.nanoTime() - start)
+        size = merged.size()
+    }
+    resultSizes[variant.key] = size
+    println "${variant.key}: ${size} boxes after merging, best of $repetitions runs: ${minTime / 1000000} ms"
+}
+CubeIntersectionFinder.intersectionMode = CubeIntersectionFinder.IntersectionMode.AUTO
+
+assert resultSizes.values().unique().size() == 1, "Variants yielded different numbers of boxes: $resultSizes"
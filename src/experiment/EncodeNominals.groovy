@@ -37,7 +37,8 @@ def Map<String, Integer> conversionMap =
      "Distance": 0, "Greedy": 1,
      "J48": 0, "RandomForest": 1,
      "Linear": 0, "DAC": 1,
-     "MIN_NUM_SPLITS": 0, "INFO_GAIN": 1,
+     "MIN_NUM_SPLITS": 0, "INFO_GAIN": 1, "INFO_GAIN_WEIGHTED_BY_INSTANCE_NUM": 2, "PLAIN_INFO_GAIN": 3, "GINI": 4,
+     "APPROX_MIN_NUM_SPLITS": 5, "APPROX_INFO_GAIN": 6, "APPROX_GINI": 7,
      "TRAINING_DATA": 0, "SEPARATE_PRUNING_DATA": 1,
      "j48": 0, "rf": 1, "mtc": 2, "cd": 3, "vc": 4, "tc": 5, "fcc": 6, "opc": 7, "rsc": 8,
      "false": 0, "true": 1,
@@ -0,0 +1,169 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package experiment
+
+import edu.pvs.batchrunner.ExperimentResult
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * The process-wide executor for mappers, reducers and other parallel work (see Tools.getExecutorService()), so that
+ * repeated buildClassifier calls reuse threads and nested parallel work shares one pool instead of oversubscribing.
+ * The type is set by the ExperimentResult parameter Ebackend, the parallelism by Eparallel (0 = unlimited):
+ * FIXED - a fixed (Eparallel > 0) or cached thread pool,
+ * FORK_JOIN - a work-stealing ForkJoinPool, also used for fork-join tree building and batch prediction,
+ * THREAD_PER_TASK - a new (virtual, if the JVM supports it) thread per task.
+ * The executor is shared, callers must not shut it down. A replaced backend is not shut down either, as other callers
+ * may still hold (and submit to) it; its threads end once they are idle for IDLE_SECONDS.
+ * Tasks on the executor must not block waiting for further tasks on it (a fixed pool may have no thread left for them);
+ * nested builds therefore run their single mapper in the calling thread (see MergedTreeClassifier).
+ */
+@Typed
+class ExecutionBackend implements PerfUtils {
+
+    static enum Type {
+        FIXED /* default */, FORK_JOIN, THREAD_PER_TASK
+    }
+
+    // Idle time after which the threads of FIXED pools end (those of the other types end on their own)
+    static final long IDLE_SECONDS = 60L
+
+    // Read without locking by getForkJoinPool() and isForkJoin()
+    private static volatile ExecutionBackend current
+
+    final Type type
+    final int parallelism
+    final ExecutorService executor
+
+    // Max. numbers of active threads and queued tasks seen by sample()
+    private int maxActive = 0
+    private long maxQueued = 0
+
+    private ExecutionBackend(Type type, int parallelism) {
+        this.type = type
+        this.parallelism = parallelism
+        switch (type) {
+            case Type.FORK_JOIN:
+                executor = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors())
+                break
+            case Type.THREAD_PER_TASK:
+                executor = createThreadPerTaskExecutor()
+                break
+            default:
+                executor = parallelism > 0 ? createFixedThreadPool(parallelism) : Executors.newCachedThreadPool()
+        }
+    }
+
+    /** Returns the backend for the settings in experimentResult; it is replaced only if these settings change */
+    static synchronized ExecutionBackend get(ExperimentResult experimentResult = ExperimentResultSingletonHolder.getInstance()) {
+        Type type = (experimentResult && experimentResult.Ebackend) ? experimentResult.getEnum("Ebackend", Type.class) : Type.FIXED
+        int parallelism = (experimentResult && experimentResult.Eparallel != null) ? Integer.parseInt(experimentResult.Eparallel as String) : 0
+        parallelism = Math.max(parallelism, 0)
+        ExecutionBackend backend = current
+        if (backend == null || backend.type != type || backend.parallelism != parallelism) {
+            backend = new ExecutionBackend(type, parallelism)
+            current = backend
+        }
+        return backend
+    }
+
+    /** The fork-join pool for fork-join tasks: the backend's pool for FORK_JOIN, otherwise the common pool */
+    static ForkJoinPool getForkJoinPool() {
+        ExecutionBackend backend = current
+        if (backend != null && backend.type == Type.FORK_JOIN)
+            return (ForkJoinPool) backend.executor
+        return ForkJoinPool.commonPool()
+    }
+
+    /** True if fork-join work should run on the shared backend (instead of an own pool) */
+    static boolean isForkJoin() {
+        ExecutionBackend backend = current
+        return backend != null && backend.type == Type.FORK_JOIN
+    }
+
+    // A fixed pool whose threads (including the core threads) end when idle, so that a replaced pool winds down
+    private static ExecutorService createFixedThreadPool(int parallelism) {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(parallelism)
+        pool.setKeepAliveTime(IDLE_SECONDS, TimeUnit.SECONDS)
+        pool.allowCoreThreadTimeOut(true)
+        return pool
+    }
+
+    // Virtual threads need JDK 21+, on older JVMs this falls back to an unbounded (cached) pool
+    private static ExecutorService createThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null)
+        } catch (NoSuchMethodException e) {
+            return Executors.newCachedThreadPool()
+        }
+    }
+
+    // ------------ Statistics ------------
+
+    int getActiveCount() {
+        if (executor instanceof ForkJoinPool)
+            return ((ForkJoinPool) executor).getActiveThreadCount()
+        if (executor instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor) executor).getActiveCount()
+        return -1
+    }
+
+    long getQueuedCount() {
+        if (executor instanceof ForkJoinPool)
+            return ((ForkJoinPool) executor).getQueuedTaskCount() + ((ForkJoinPool) executor).getQueuedSubmissionCount()
+        if (executor instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor) executor).getQueue().size()
+        return -1L
+    }
+
+    // Completed tasks (FIXED) resp. stolen tasks (FORK_JOIN), -1 if unknown
+    long getCompletedCount() {
+        if (executor instanceof ForkJoinPool)
+            return ((ForkJoinPool) executor).getStealCount()
+        if (executor instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor) executor).getCompletedTaskCount()
+        return -1L
+    }
+
+    /** Records the current number of active threads and queued tasks (maxima since the last appendStats) */
+    synchronized void sample() {
+        maxActive = Math.max(maxActive, getActiveCount())
+        maxQueued = Math.max(maxQueued, getQueuedCount())
+    }
+
+    /**
+     * Appends an "ExecutorStats" entry to the perf log: parallelism, max. active threads, max. queue depth and
+     * completed (or stolen) tasks; then resets the maxima
+     */
+    synchronized void appendStats(ExperimentResult experimentResult) {
+        sample()
+        appendPerfLogEntry(experimentResult, "ExecutorStats", parallelism, maxActive, maxQueued, getCompletedCount(), -1L, -1L)
+        maxActive = 0
+        maxQueued = 0
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package experiment
+
+import weka.core.Instance
+import weka.core.Instances
+
+/**
+ * A read-only view of instances without copying them: the concatenation of one or more Instances (with the same
+ * header), optionally restricted to a selection of its rows. Used for the pruning data forwarded through the reducers
+ * instead of Tools.mergeInstances and Instances.trainCV, which copy all rows at every reduce step.
+ */
+@Typed
+class InstancesView {
+
+    private final Instances[] parts
+    // Index of the first row of each part in the concatenation (and the total number of rows at the end)
+    private final int[] partStarts
+    // Selected rows of the concatenation, null for all rows
+    private final int[] rows
+
+    private InstancesView(Instances[] parts, int[] rows) {
+        this.parts = parts
+        this.rows = rows
+        partStarts = new int[parts.length + 1]
+        for (int p = 0; p < parts.length; p++)
+            partStarts[p + 1] = partStarts[p] + parts[p].numInstances()
+    }
+
+    /** A view of all rows of data, null if data is null */
+    static InstancesView of(Instances data) {
+        if (data == null)
+            return null
+        Instances[] parts = new Instances[1]
+        parts[0] = data
+        return new InstancesView(parts, null)
+    }
+
+    /** The rows of first followed by those of second, null-tolerant as Tools.mergeInstances */
+    static InstancesView concat(InstancesView first, InstancesView second) {
+        if (first == null)
+            return second
+        if (second == null)
+            return first
+        if (first.numInstances() > 0 && second.numInstances() > 0 && !first.header().checkInstance(second.instance(0)))
+            throw new IllegalArgumentException("The instance sets are incompatible.")
+        Instances[] parts = new Instances[first.parts.length + second.parts.length]
+        System.arraycopy(first.parts, 0, parts, 0, first.parts.length)
+        System.arraycopy(second.parts, 0, parts, first.parts.length, second.parts.length)
+        if (first.rows == null && second.rows == null)
+            return new InstancesView(parts, null)
+
+        int offset = first.partStarts[first.parts.length]
+        int[] rows = new int[first.numInstances() + second.numInstances()]
+        for (int i = 0; i < first.numInstances(); i++)
+            rows[i] = first.rowAt(i)
+        for (int i = 0; i < second.numInstances(); i++)
+            rows[first.numInstances() + i] = offset + second.rowAt(i)
+        return new InstancesView(parts, rows)
+    }
+
+    int numInstances() {
+        return (rows != null) ? rows.length : partStarts[parts.length]
+    }
+
+    // Row of the concatenation at position i of this view
+    private int rowAt(int i) {
+        return (rows != null) ? rows[i] : i
+    }
+
+    Instance instance(int i) {
+        int row = rowAt(i)
+        int part = 0
+        if (parts.length > 1) {
+            // binary search for the last part starting at or before row
+            int lo = 0
+            int hi = parts.length - 1
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1
+                if (partStarts[mid] <= row)
+                    lo = mid
+                else
+                    hi = mid - 1
+            }
+            part = lo
+        }
+        return parts[part].instance(row - partStarts[part])
+    }
+
+    /** The header (attributes and class index) of the instances */
+    Instances header() {
+        return parts[0]
+    }
+
+    int numClasses() {
+        return parts[0].numClasses()
+    }
+
+    /** The view of the rows at the given positions of this view */
+    InstancesView select(int[] positions) {
+        int[] selected = new int[positions.length]
+        for (int i = 0; i < positions.length; i++)
+            selected[i] = rowAt(positions[i])
+        return new InstancesView(parts, selected)
+    }
+
+    /**
+     * The same rows (in the same order) as stratify(2) followed by trainCV(2, 1) on a copy of this view, i.e. the
+     * first half of a stratified 2-fold split. Instances.stratify groups the rows by class (by swapping) and
+     * interleaves them, so the first fold consists of every second row of the grouped order.
+     */
+    InstancesView stratifiedHalf() {
+        int n = numInstances()
+        int[] positions = new int[(n + 1).intdiv(2)]
+        if (!header().classAttribute().isNominal()) {
+            // no stratification: the first half of the rows
+            for (int i = 0; i < positions.length; i++)
+                positions[i] = i
+            return select(positions)
+        }
+
+        int[] order = new int[n]
+        for (int i = 0; i < n; i++)
+            order[i] = i
+        // as Instances.stratify: sort by class
+        int index = 1
+        while (index < n) {
+            Instance instance1 = instance(order[index - 1])
+            for (int j = index; j < n; j++) {
+                Instance instance2 = instance(order[j])
+                if ((instance1.classValue() == instance2.classValue()) ||
+                        (instance1.classIsMissing() && instance2.classIsMissing())) {
+                    int tmp = order[index]
+                    order[index] = order[j]
+                    order[j] = tmp
+                    index++
+                }
+            }
+            index++
+        }
+        // as Instances.stratStep(2) and trainCV(2, 1): rows 0, 2, 4, ... of the grouped order
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = order[2 * i]
+        return select(positions)
+    }
+
+    /** The rows as Instances (the underlying Instances if the view is exactly one of them, otherwise a copy) */
+    Instances toInstances() {
+        if (rows == null && parts.length == 1)
+            return parts[0]
+        Instances result = new Instances(header(), numInstances())
+        for (int i = 0; i < numInstances(); i++)
+            result.add(instance(i))
+        return result
+    }
+}
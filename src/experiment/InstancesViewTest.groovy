@@ -0,0 +1,120 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package experiment
+
+import weka.core.Instance
+import weka.core.Instances
+import static experiment.Tools.loadArff
+
+class InstancesViewTest extends GroovyTestCase {
+
+    final String irisDatasetFileName = "data/arff/iris.arff"
+
+    // As the reducers did before: stratify(2) and trainCV(2, 1) on a copy of the rows
+    private static Instances wekaHalf(Instances data) {
+        Instances copy = new Instances(data)
+        copy.stratify(2)
+        return copy.trainCV(2, 1)
+    }
+
+    private static void assertSameRows(Instances expected, InstancesView actual) {
+        assertEquals(expected.numInstances(), actual.numInstances())
+        for (int i = 0; i < expected.numInstances(); i++)
+            assertTrue("row $i differs", Arrays.equals(expected.instance(i).toDoubleArray(), actual.instance(i).toDoubleArray()))
+    }
+
+    // Iris in a random order, with n rows
+    private Instances shuffledIris(Random random, int n) {
+        Instances data = loadArff(irisDatasetFileName)
+        data.randomize(random)
+        while (data.numInstances() > n)
+            data.delete(data.numInstances() - 1)
+        return data
+    }
+
+    void testAsWekaStratifiedSplit() {
+        def random = new Random(7)
+        for (int n in [150, 149, 31, 2]) {
+            Instances data = shuffledIris(random, n)
+            assertSameRows(wekaHalf(data), InstancesView.of(data).stratifiedHalf())
+        }
+    }
+
+    // Concatenated views (as the pruning data of a reducer), halved at every level
+    void testAsWekaStratifiedSplitOfConcatenation() {
+        def random = new Random(8)
+        Instances first = shuffledIris(random, 61)
+        Instances second = shuffledIris(random, 40)
+        InstancesView view = InstancesView.concat(InstancesView.of(first), InstancesView.of(second))
+        Instances expected = Tools.mergeInstances(first, second)
+        for (int level = 0; level < 3; level++) {
+            view = view.stratifiedHalf()
+            expected = wekaHalf(expected)
+            assertSameRows(expected, view)
+        }
+    }
+
+    void testMissingClassValues() {
+        def random = new Random(9)
+        Instances data = shuffledIris(random, 51)
+        for (int i = 0; i < data.numInstances(); i += 4)
+            data.instance(i).setClassMissing()
+        assertSameRows(wekaHalf(data), InstancesView.of(data).stratifiedHalf())
+    }
+
+    void testClassProportionsAndDeterminism() {
+        Instances data = shuffledIris(new Random(10), 137)
+        InstancesView view = InstancesView.of(data)
+        InstancesView half = view.stratifiedHalf()
+
+        int[] all = classCounts(view)
+        int[] halved = classCounts(half)
+        for (int c = 0; c < data.numClasses(); c++)
+            assertTrue("class $c: ${halved[c]} of ${all[c]}", Math.abs(2 * halved[c] - all[c]) <= 1)
+
+        InstancesView again = view.stratifiedHalf()
+        assertEquals(half.numInstances(), again.numInstances())
+        for (int i = 0; i < half.numInstances(); i++)
+            assertSame(half.instance(i), again.instance(i))
+    }
+
+    void testNumericClassTakesFirstHalf() {
+        Instances data = shuffledIris(new Random(11), 21)
+        data.setClassIndex(0)
+        InstancesView half = InstancesView.of(data).stratifiedHalf()
+        assertSameRows(wekaHalf(data), half)
+        for (int i = 0; i < half.numInstances(); i++)
+            assertSame(data.instance(i), half.instance(i))
+    }
+
+    private static int[] classCounts(InstancesView view) {
+        int[] counts = new int[view.numClasses()]
+        for (int i = 0; i < view.numInstances(); i++) {
+            Instance instance = view.instance(i)
+            counts[(int) instance.classValue()]++
+        }
+        return counts
+    }
+}
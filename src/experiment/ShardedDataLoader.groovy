@@ -0,0 +1,164 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package experiment
+
+import edu.pvs.batchrunner.ExperimentResult
+import weka.core.Instance
+import weka.core.Instances
+import weka.core.converters.ArffSaver
+import weka.core.converters.Saver
+
+/**
+ * Writes the k splits of Tools.splitIntoDkInstances as ARFF shard files while streaming over the data once, instead
+ * of creating k filtered copies in memory; each mapper then loads only its own shard. The splits are the same as
+ * those of splitIntoDkInstances: shard i gets the i-th block of numUnlikeInstancesPerDi rows (or all rows if there
+ * are no such blocks), plus numSimilarInstancePerDi rows drawn with replacement from the pool of the first
+ * similarityFraction of the rows (the same draws for all shards if useSameRandomSamples). The draws are made before
+ * streaming, so the similar rows appear in the shard files at their position in the input, not appended at the end.
+ */
+@Typed
+class ShardedDataLoader {
+
+    final int k
+    final double similarityFraction
+    final boolean useSameRandomSamples
+    private final Random random
+
+    // Layout for the current input
+    private int numUnlikeInstancesPerDi
+    private boolean disjointBlocks
+    private int poolSize
+    // For each shard, the sorted pool indices of its similar rows (with repetitions)
+    private int[][] similarRows
+    private int[] similarCursor
+
+    ShardedDataLoader(int k, double similarityFraction = 0.0, boolean useSameRandomSamples = false, Random random = new Random()) {
+        assert 0.0 <= similarityFraction && similarityFraction <= 1.0, "Wrong similarity percentage supplied (percentage = $similarityFraction)"
+        this.k = k
+        this.similarityFraction = similarityFraction
+        this.useSameRandomSamples = useSameRandomSamples
+        this.random = random
+    }
+
+    /** A loader with the similarity settings Esim and EuseSameRandomSamples of results (as Tools.createKSplits) */
+    static ShardedDataLoader create(int k, ExperimentResult results) {
+        if (results)
+            return new ShardedDataLoader(k, results.getDouble("Esim"), results.getBool("EuseSameRandomSamples"))
+        return new ShardedDataLoader(k)
+    }
+
+    /** The shard files written by writeShards */
+    static List<File> shardFiles(File directory, int k) {
+        List<File> result = new ArrayList<File>(k)
+        for (int i = 0; i < k; i++)
+            result << new File(directory, "shard" + i + ".arff")
+        return result
+    }
+
+    /** Writes the shards of the instances in memory to directory */
+    List<File> writeShards(Instances data, File directory) {
+        plan(data.numInstances())
+        List<File> files = shardFiles(directory, k)
+        ArffSaver[] savers = openSavers(new Instances(data, 0), files)
+        for (int row = 0; row < data.numInstances(); row++)
+            route(row, data.instance(row), savers)
+        closeSavers(savers)
+        return files
+    }
+
+    // Computes the layout of splitIntoDkInstances for numInstances rows and draws the similar rows
+    private void plan(int numInstances) {
+        int numInstancesPerDi = numInstances.intdiv(k)
+        numUnlikeInstancesPerDi = (int) Math.floor(numInstancesPerDi * (1.0 - similarityFraction))
+        int numSimilarInstancePerDi = numInstancesPerDi - numUnlikeInstancesPerDi
+        // as in splitIntoDkInstances: a block of (1-based) rows start..end with start < end, otherwise all rows
+        disjointBlocks = similarityFraction < 1.0 && numUnlikeInstancesPerDi > 1
+
+        similarRows = new int[k][]
+        similarCursor = new int[k]
+        poolSize = 0
+        if (similarityFraction > 0.0 && numSimilarInstancePerDi > 0) {
+            // the pool kept by RemovePercentage with inverted selection: the first similarityFraction of the rows
+            poolSize = (int) Math.round(numInstances * similarityFraction)
+            assert poolSize > 0, "There are no samples left to use as random samples."
+            for (int i = 0; i < k; i++)
+                similarRows[i] = new int[numSimilarInstancePerDi]
+            for (int n = 0; n < numSimilarInstancePerDi; n++) {
+                if (useSameRandomSamples) {
+                    int randomIndexFromPool = random.nextInt(poolSize)
+                    for (int i = 0; i < k; i++)
+                        similarRows[i][n] = randomIndexFromPool
+                } else {
+                    for (int i = 0; i < k; i++)
+                        similarRows[i][n] = random.nextInt(poolSize)
+                }
+            }
+            for (int i = 0; i < k; i++)
+                Arrays.sort(similarRows[i])
+        } else {
+            for (int i = 0; i < k; i++)
+                similarRows[i] = new int[0]
+        }
+    }
+
+    // Writes the row to the shards of its disjoint block and, as often as drawn, of its similar rows
+    private void route(int row, Instance instance, ArffSaver[] savers) {
+        if (disjointBlocks) {
+            int block = row.intdiv(numUnlikeInstancesPerDi)
+            if (block < k)
+                savers[block].writeIncremental(instance)
+        } else {
+            for (saver in savers)
+                saver.writeIncremental(instance)
+        }
+
+        if (row < poolSize) {
+            for (int i = 0; i < k; i++) {
+                int[] rows = similarRows[i]
+                while (similarCursor[i] < rows.length && rows[similarCursor[i]] == row) {
+                    savers[i].writeIncremental(instance)
+                    similarCursor[i]++
+                }
+            }
+        }
+    }
+
+    private ArffSaver[] openSavers(Instances structure, List<File> files) {
+        ArffSaver[] savers = new ArffSaver[files.size()]
+        for (int i = 0; i < files.size(); i++) {
+            def saver = new ArffSaver()
+            saver.setRetrieval(Saver.INCREMENTAL)
+            saver.setInstances(structure)
+            saver.setFile(files[i])
+            savers[i] = saver
+        }
+        return savers
+    }
+
+    private static void closeSavers(ArffSaver[] savers) {
+        for (saver in savers)
+            saver.writeIncremental(null)
+    }
+}
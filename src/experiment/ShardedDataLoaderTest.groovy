@@ -0,0 +1,69 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package experiment
+
+import weka.core.Instances
+import static experiment.Tools.loadArff
+
+class ShardedDataLoaderTest extends GroovyTestCase {
+
+    final String irisDatasetFileName = "data/arff/iris.arff"
+
+    // The rows of data as sorted strings, i.e. their multiset (the shards keep the similar rows at their input position)
+    private static List<String> rows(Instances data) {
+        List<String> result = new ArrayList<String>(data.numInstances())
+        for (int i = 0; i < data.numInstances(); i++)
+            result << Arrays.toString(data.instance(i).toDoubleArray())
+        Collections.sort(result)
+        return result
+    }
+
+    void testSameRowsAsSplitIntoDkInstances() {
+        Instances data = loadArff(irisDatasetFileName)
+        File directory = File.createTempFile("shards", "")
+        directory.delete()
+        directory.mkdirs()
+        try {
+            for (k in [3, 4]) {
+                for (similarity in [0.0d, 0.3d, 1.0d]) {
+                    for (sameSamples in [false, true]) {
+                        String message = "k=$k, similarity=$similarity, same samples=$sameSamples"
+                        List<Instances> expected = Tools.splitIntoDkInstances(data, k, similarity, sameSamples, new Random(7))
+                        List<File> shards = new ShardedDataLoader(k, similarity, sameSamples, new Random(7)).writeShards(data, directory)
+                        assertEquals(message, k, shards.size())
+                        for (int i = 0; i < k; i++) {
+                            Instances shard = loadArff(shards[i].getPath(), data.classIndex())
+                            assertEquals(message + ", shard $i", rows(expected[i]), rows(shard))
+                        }
+                    }
+                }
+            }
+            // the splits are copies, the input is unchanged
+            assertEquals(150, data.numInstances())
+        } finally {
+            directory.deleteDir()
+        }
+    }
+}
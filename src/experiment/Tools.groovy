@@ -27,13 +27,13 @@ package experiment
 import cubes.ClassCube
 import edu.pvs.batchrunner.ExperimentResult
 import java.util.concurrent.ExecutorService
-import java.util.concurrent.Executors
 import weka.classifiers.Classifier
 import weka.classifiers.Evaluation
 import weka.classifiers.trees.J48
 import weka.core.Instances
 import weka.core.Range
 import weka.core.converters.ConverterUtils.DataSource
+import weka.core.converters.ArffSaver
 import weka.filters.Filter
 import weka.filters.supervised.attribute.Discretize
 import weka.filters.unsupervised.instance.RemovePercentage
@@ -78,6 +78,15 @@ class Tools {
         return data
     }
 
+    // Writes data as ARFF file (the class index is not stored, see loadArff)
+    @Typed
+    static void saveArff(Instances data, File file) {
+        ArffSaver saver = new ArffSaver()
+        saver.setInstances(data)
+        saver.setFile(file)
+        saver.writeBatch()
+    }
+
     @Typed
     static Map splitInstances(Instances input, double percentageForTraining) {
         // See http://old.nabble.com/Dividing-data-set-into-training,-validation-and-testing-set-td14697677.html
@@ -151,10 +160,12 @@ class Tools {
      * @param k number of data fragments to create
      * @param similarityFraction ratio numSimilarInstancePerDi / numInstancesPerDi
      * @param useSameRandomSamples
+     * @param random source of the draws of the similar instances
      * @return k Di splits with a given similarity percentage using the same random samples for each Di if set.
      */
     @Typed
-    static List<Instances> splitIntoDkInstances(Instances input, Integer k = 1, Double similarityFraction = 0.0, Boolean useSameRandomSamples = false) {
+    static List<Instances> splitIntoDkInstances(Instances input, Integer k = 1, Double similarityFraction = 0.0, Boolean useSameRandomSamples = false,
+                                                Random random = new Random()) {
         assert 0.0 <= similarityFraction && similarityFraction <= 1.0, "Wrong similarity percentage supplied (percentage = $similarityFraction)"
 
         List<Instances> result = new ArrayList<Instances>(k);
@@ -164,6 +175,8 @@ class Tools {
         int numUnlikeInstancesPerDi = Math.floor(numInstancesPerDi * (1.0 - similarityFraction)) as int
         int numSimilarInstancePerDi = numInstancesPerDi - numUnlikeInstancesPerDi as int
 
+        boolean addSimilar = similarityFraction > 0.0 && numSimilarInstancePerDi > 0
+
         // fill each split i with numUnlikeInstancesPerDi instances building the i-th block from the begin of "input"
         for (int i = 0; i < k; i++) {
 
@@ -180,11 +193,11 @@ class Tools {
                 filter.setInputFormat(input)
                 result.add(useFilter(input, filter))
             } else
-                result.add(input)
+                result.add(addSimilar ? new Instances(input) : input)   // own copies if similar instances are added below
         }
 
         // add numSimilarInstancePerDi to each of the Di's splits if necessary
-        if (similarityFraction > 0.0 && numSimilarInstancePerDi > 0) {
+        if (addSimilar) {
 
             // todo: check - are the removed instances exactly those stored in result in the loop above?
             // Remove all "blocks" of disjunct instances; the reminder is a pool for similar instances
@@ -200,7 +213,6 @@ class Tools {
                 println "Bad case: numRandomInstances <= 0"
                 assert numRandomInstances > 0, "There are no samples left to use as random samples."
             }
-            Random random = new Random()
 
             for (int n = 0; n < numSimilarInstancePerDi; n++) {
 
@@ -409,16 +421,12 @@ class Tools {
     // ----------- Non-Weka routines --------------------------
 
     /**
-     * Creates a new ExecutorService which executes as many tasks concurrently as the ExperimentResult.Eparallel dictates
-     * @return a thread pool executor
+     * Returns the shared ExecutorService which executes as many tasks concurrently as the ExperimentResult.Eparallel
+     * dictates, of the type given by ExperimentResult.Ebackend (see ExecutionBackend). Do not shut it down.
+     * @return the executor of the execution backend
      */
     static ExecutorService getExecutorService() {
-        ExperimentResult er = ExperimentResultSingletonHolder.getInstance()
-        int tps = Integer.parseInt(er.Eparallel as String)
-        if (tps > 0)
-            return Executors.newFixedThreadPool(tps)
-        else
-            return Executors.newCachedThreadPool()
+        return ExecutionBackend.get(ExperimentResultSingletonHolder.getInstance()).executor
     }
     
     static int getHashSum(Collection<ClassCube> cubes) {
@@ -244,7 +244,7 @@ class Visualization {
         models[3] = new JoinAdjacentCubes(boxSet).joinAdjacentCubes()
 
         // def treeBuilder = TreeFromBoxesBuilder.create(models[3], datas[3], true)  // AA: original code before 16.06.2012
-        def treeBuilder = TreeFromBoxesBuilder.create(models[3], datas[3], 2)   // last arg  is pruningType
+        def treeBuilder = TreeFromBoxesBuilder.create(models[3], InstancesView.of(datas[3]), 2)   // last arg  is pruningType
         treeBuilder.buildTree()
         models[4] = treeBuilder.getBoxSet()
 
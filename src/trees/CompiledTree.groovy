@@ -0,0 +1,236 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package trees
+
+import weka.core.Instance
+import weka.core.Instances
+
+/**
+ * A built TreeOfBoxesNode "compiled" into flat primitive arrays for fast classification: node n is a leaf iff
+ * splitDim[n] < 0, otherwise its children are left[n] (values <= splitPoint[n], or as in findCubeForAttributeVector)
+ * and right[n]. The class distribution of leaf n is dists[leafDistIndex[n] ..< leafDistIndex[n] + numClasses].
+ * Classification is a loop over these arrays reading the attribute values directly from the Instance; batches of rows
+ * are routed through the tree together (see addDistributions).
+ */
+@Typed
+class CompiledTree {
+
+    final int numNodes
+    final int numClasses
+
+    // Max. number of edges from the root to a leaf
+    int maxDepth
+
+    final int[] splitDim
+    final double[] splitPoint
+    final int[] left
+    final int[] right
+    final int[] leafDistIndex
+    final double[] dists
+
+    private CompiledTree(int numNodes, int numLeafs, int numClasses) {
+        this.numNodes = numNodes
+        this.numClasses = numClasses
+        splitDim = new int[numNodes]
+        splitPoint = new double[numNodes]
+        left = new int[numNodes]
+        right = new int[numNodes]
+        leafDistIndex = new int[numNodes]
+        dists = new double[numLeafs * numClasses]
+    }
+
+    /** Compiles a built tree (nodes in pre-order, i.e. left[n] == n + 1 for inner nodes) */
+    static CompiledTree compile(TreeOfBoxesNode root) {
+        assert root.isComputed, "Attempting to compile a tree before it is built - call buildTree() first."
+        int[] counts = new int[2]
+        countNodes(root, counts)
+        int numClasses = firstLeaf(root).getFirstCube().classData.classProbDistribution.length
+
+        def result = new CompiledTree(counts[0], counts[1], numClasses)
+        int[] next = new int[2]     // next free node, next free leaf
+        result.addNode(root, 0, next)
+        return result
+    }
+
+    private static void countNodes(TreeOfBoxesNode node, int[] counts) {
+        counts[0]++
+        if (node.isLeaf()) {
+            counts[1]++
+        } else {
+            for (TreeOfBoxesNode child in node.children)
+                countNodes(child, counts)
+        }
+    }
+
+    private static TreeOfBoxesNode firstLeaf(TreeOfBoxesNode node) {
+        while (!node.isLeaf())
+            node = node.children[0]
+        return node
+    }
+
+    // Adds node (at depth) and its subtree in pre-order, returns the index of node
+    private int addNode(TreeOfBoxesNode node, int depth, int[] next) {
+        int n = next[0]++
+        maxDepth = Math.max(maxDepth, depth)
+        if (node.isLeaf()) {
+            double[] distribution = node.getFirstCube().classData.classProbDistribution
+            assert distribution.length == numClasses, "Leaf distribution has length ${distribution.length}, expected $numClasses"
+            splitDim[n] = -1
+            splitPoint[n] = Double.NaN
+            left[n] = -1
+            right[n] = -1
+            leafDistIndex[n] = next[1] * numClasses
+            System.arraycopy(distribution, 0, dists, leafDistIndex[n], numClasses)
+            next[1]++
+        } else {
+            assert node.children.size() == 2 && !Double.isNaN(node.model.splitPoint)
+            splitDim[n] = node.model.splitDim
+            splitPoint[n] = node.model.splitPoint
+            leafDistIndex[n] = -1
+            left[n] = addNode(node.children[0], depth + 1, next)
+            right[n] = addNode(node.children[1], depth + 1, next)
+        }
+        return n
+    }
+
+    /** Descends the tree for instance and returns the leaf node (missing values, i.e. NaN, go right as in TreeOfBoxesNode) */
+    int findLeaf(Instance instance) {
+        int n = 0
+        int dim = splitDim[0]
+        while (dim >= 0) {
+            n = instance.value(dim) <= splitPoint[n] ? left[n] : right[n]
+            dim = splitDim[n]
+        }
+        return n
+    }
+
+    /** Same as findLeaf(Instance), for an attribute vector */
+    int findLeaf(double[] attributeVector) {
+        int n = 0
+        int dim = splitDim[0]
+        while (dim >= 0) {
+            n = attributeVector[dim] <= splitPoint[n] ? left[n] : right[n]
+            dim = splitDim[n]
+        }
+        return n
+    }
+
+    /** Copies the class distribution for instance into target (without allocation) */
+    void distributionForInstance(Instance instance, double[] target) {
+        System.arraycopy(dists, leafDistIndex[findLeaf(instance)], target, 0, numClasses)
+    }
+
+    /** Adds weight * class distribution for instance to target */
+    void addDistribution(Instance instance, double[] target, double weight) {
+        int offset = leafDistIndex[findLeaf(instance)]
+        for (int c = 0; c < numClasses; c++)
+            target[c] += weight * dists[offset + c]
+    }
+
+    /** Returns (a copy of) the class distribution for instance */
+    double[] distributionForInstance(Instance instance) {
+        double[] result = new double[numClasses]
+        distributionForInstance(instance, result)
+        return result
+    }
+
+    /** The most probable class for instance (the first one on ties), without copying the distribution */
+    int classifyInstance(Instance instance) {
+        int offset = leafDistIndex[findLeaf(instance)]
+        int best = 0
+        for (int c = 1; c < numClasses; c++) {
+            if (dists[offset + c] > dists[offset + best])
+                best = c
+        }
+        return best
+    }
+
+    /**
+     * Adds weight * distribution of each row in [from, to) to out[row] (for a single tree with weight 1.0 on a zeroed
+     * out this is the distribution itself). The values are read from data, or if data == null from the column-major
+     * columns[attIndex][row]. The rows are routed together: each node partitions the segment of rows reaching it into
+     * the rows going left and right, so one split test is looked up per node and batch instead of per row.
+     */
+    void addDistributions(Instances data, double[][] columns, int from, int to, double[][] out, double weight) {
+        int numRows = to - from
+        if (numRows <= 0)
+            return
+        int[] rows = new int[numRows]
+        for (int k = 0; k < numRows; k++)
+            rows[k] = from + k
+
+        // segments (node, start, end) of rows still to route; at most one pending sibling per level
+        int[] stackNode = new int[maxDepth + 2]
+        int[] stackStart = new int[maxDepth + 2]
+        int[] stackEnd = new int[maxDepth + 2]
+        stackNode[0] = 0
+        stackStart[0] = 0
+        stackEnd[0] = numRows
+        int top = 1
+        while (top > 0) {
+            top--
+            int n = stackNode[top]
+            int start = stackStart[top]
+            int end = stackEnd[top]
+            if (start >= end)
+                continue
+
+            int dim = splitDim[n]
+            if (dim < 0) {
+                int offset = leafDistIndex[n]
+                for (int k = start; k < end; k++) {
+                    double[] target = out[rows[k]]
+                    for (int c = 0; c < numClasses; c++)
+                        target[c] += weight * dists[offset + c]
+                }
+                continue
+            }
+
+            // partition rows[start..<end]: values <= splitPoint to the front (missing values go right)
+            double sp = splitPoint[n]
+            int i = start
+            int j = end - 1
+            while (i <= j) {
+                double value = data != null ? data.instance(rows[i]).value(dim) : columns[dim][rows[i]]
+                if (value <= sp) {
+                    i++
+                } else {
+                    int tmp = rows[i]
+                    rows[i] = rows[j]
+                    rows[j] = tmp
+                    j--
+                }
+            }
+            stackNode[top] = right[n]
+            stackStart[top] = i
+            stackEnd[top] = end
+            top++
+            stackNode[top] = left[n]
+            stackStart[top] = start
+            stackEnd[top] = i
+            top++
+        }
+    }
+}
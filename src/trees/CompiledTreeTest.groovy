@@ -0,0 +1,93 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package trees
+
+import cubes.BoxSet
+import classifiers.BatchPrediction
+import weka.core.Instance
+
+class CompiledTreeTest extends GroovyTestCase {
+
+    void testSameLeafAsTreeOfBoxesNode() {
+        def random = new Random(11)
+        for (int round = 0; round < 5; round++) {
+            BoxSet boxes = PresortedBoxesTest.gridPartition(random, 5)
+            def root = new TreeOfBoxesNode(boxes)
+            root.buildTree()
+            def compiled = CompiledTree.compile(root)
+
+            // the nodes in the pre-order of CompiledTree
+            List<TreeOfBoxesNode> nodes = []
+            collectPreOrder(root, nodes)
+            assertEquals(nodes.size(), compiled.numNodes)
+            List<Double> splitPoints = []
+            for (int n = 0; n < compiled.numNodes; n++) {
+                if (compiled.splitDim[n] >= 0)
+                    splitPoints << compiled.splitPoint[n]
+            }
+
+            int numRows = 500
+            double[][] columns = new double[3][numRows]
+            int[] expectedLeaf = new int[numRows]
+            for (int row = 0; row < numRows; row++) {
+                double[] vector = new double[3]
+                for (int dim = 0; dim < 2; dim++) {
+                    int kind = random.nextInt(10)
+                    // missing values (go right) and values exactly at split points (go left) are frequent
+                    if (kind == 0)
+                        vector[dim] = Double.NaN
+                    else if (kind < 4)
+                        vector[dim] = splitPoints[random.nextInt(splitPoints.size())]
+                    else
+                        vector[dim] = random.nextDouble() * 7 - 1
+                    columns[dim][row] = vector[dim]
+                }
+
+                int leaf = compiled.findLeaf(vector)
+                assertTrue(nodes[leaf].isLeaf())
+                assertSame(root.findCubeForAttributeVector(vector), nodes[leaf].getFirstCube())
+                assertEquals(leaf, compiled.findLeaf(new Instance(1.0, vector)))
+                expectedLeaf[row] = leaf
+            }
+
+            // batch routing gives the distributions of the same leaves
+            double[][] out = new double[numRows][]
+            BatchPrediction.prepareOutput(out, numRows, compiled.numClasses)
+            compiled.addDistributions(null, columns, 0, numRows, out, 1.0)
+            for (int row = 0; row < numRows; row++) {
+                double[] expected = nodes[expectedLeaf[row]].getFirstCube().classData.classProbDistribution
+                assertEquals(expected.toList(), out[row].toList())
+            }
+        }
+    }
+
+    private static void collectPreOrder(TreeOfBoxesNode node, List<TreeOfBoxesNode> nodes) {
+        nodes << node
+        if (!node.isLeaf()) {
+            for (TreeOfBoxesNode child in node.children)
+                collectPreOrder(child, nodes)
+        }
+    }
+}
@@ -27,10 +27,13 @@ package trees
 import com.google.common.collect.Iterables
 import cubes.ClassCube
 import cubes.ClassData
+import cubes.ColumnarBoxSet
 import edu.pvs.batchrunner.ExperimentResult
 import experiment.ExperimentResultSingletonHolder
 import experiment.PerfUtils
 import groovy.util.logging.Log
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveAction
 
 /**
  * Created by IntelliJ IDEA.
@@ -43,11 +46,6 @@ import groovy.util.logging.Log
 @Typed @Log
 class NodeModel implements PerfUtils {
 
-    // ########## SETTINGS #########
-    // Max number of cubes in a leaf, important for deciding whether leaf or not
-    static Integer MAX_CUBES_FOR_LEAF = 1
-    static Integer MAX_DEPTH = Integer.MAX_VALUE
-
     // ########## Instance data ########
     // For class of leaves
     ClassData classData
@@ -65,6 +63,18 @@ class NodeModel implements PerfUtils {
 
     protected SplitOptimizer optimizer
 
+    protected SplitOptimizer.SplitSearchType splitSearchType
+
+    protected int numBags
+
+    // For approximate split search types: number of quantile bins per dim, and the min. number of boxes of a node
+    // for using them (smaller nodes are scanned exactly)
+    protected int approxNumBins
+    protected int approxMinBoxes
+
+    // The presorted boxes of the children, set by computeSplit()
+    private List<PresortedBoxes> childPresortedBoxes
+
     protected int nDims
 
     protected int numClasses
@@ -87,13 +97,16 @@ class NodeModel implements PerfUtils {
             nDims = aCube.nDims
 
             numClasses = aCube.classData?.classProbDistribution?.length
-            def int numBags = 2   // we have a binary tree => two bags (for below and above splitpoint)
+            numBags = 2   // we have a binary tree => two bags (for below and above splitpoint)
 
             // Set type of splitpoint search from experimentResult
             def sst = SplitOptimizer.SplitSearchType.MIN_NUM_SPLITS
             if (experimentResult != null)
                 sst = SplitOptimizer.SplitSearchType.valueOf((String) experimentResult.Pgrow)
+            splitSearchType = sst
             optimizer = SplitOptimizer.create(sst, numBags, numClasses)
+            approxNumBins = (experimentResult && experimentResult.PgrowBins) ? experimentResult.getInt("PgrowBins") : 256
+            approxMinBoxes = (experimentResult && experimentResult.PgrowApproxMinBoxes) ? experimentResult.getInt("PgrowApproxMinBoxes") : 100000
         }
     }
 
@@ -139,7 +152,7 @@ class NodeModel implements PerfUtils {
     }
 
     boolean isLeafDecision() {
-        boolean result = node.boxes.size() <= MAX_CUBES_FOR_LEAF || node.treeDepth >= MAX_DEPTH
+        boolean result = node.boxes.size() <= node.context.maxCubesForLeaf || node.treeDepth >= node.context.maxDepth
         if (node.pruneUntestableSubtrees)
             result |= (node.pruningData == null) || (node.pruningData.numInstances() == 0)
         return result
@@ -205,19 +218,24 @@ class NodeModel implements PerfUtils {
     List<List<ClassCube>> computeSplit() {
 
         // log.info("Starting model.computeSplit for ${this.cubes.size()} cubes")
+        // 0. the scans run over the presorted boxes - inherited from the father, sorted here only at the root
+        PresortedBoxes presorted = node.presortedBoxes != null ? node.presortedBoxes : PresortedBoxes.create(node.boxes)
+        node.presortedBoxes = null
+
         // 1. for each dim, get best split according to optimization criterion
         double minCriterionValue = Double.MAX_VALUE
         int bestDimension = -1
         Map resultsBestDim
 
+        Map[] resultsPerDim = node.context.isParallelFor(presorted.size) ? scanDimsInParallel(presorted) : null
         for (int dim in 0..<nDims) {
-            // 1a. remember for each R(dim) the sets of cut cubes and what cubes are left and which right of h(R(dim)
+            // 1a. scan the boundaries of all boxes along dim
             // def t0 = tic()
-            Map resultThisDim = scanBoxesOneDim(dim)
+            Map resultThisDim = resultsPerDim != null ? resultsPerDim[dim] : scanBoxesOneDim(presorted, dim, optimizer)
             // def t1 = tic()
             // log.info("NodeModel: scanning dim $dim took ${toDiffString(t0, t1)}")
 
-            // 2a. Find best dim and R(dim)
+            // 2a. Find best dim and R(dim) - in dim order, so ties are broken as in the sequential scan
             def minCriterionForDim = resultThisDim.minCriterionValue
             if (minCriterionForDim < minCriterionValue) {
                 minCriterionValue = minCriterionForDim
@@ -230,61 +248,124 @@ class NodeModel implements PerfUtils {
         // 2b. best split-dim and split-point are now in resultsBestDim
         this.splitDim = bestDimension
         this.splitPoint = resultsBestDim.bestCutpoint
+        if (Double.isNaN(splitPoint)) {   // for debugging, to stop before assert fails
+            assert !Double.isNaN(splitPoint), "Best dim for tree cutpoint has only unbounded boxes to be cut (resultForDim = $resultsBestDim)"
+        }
 
-        // 3. Cut the intersected cubes (=> two new small sets C_left and C_right) AND unbounded cubes and record all unwanted cubes
-        def cutResults = cutIntersectedBoxes(resultsBestDim) // result is [lowerSplitted: lowers, upperSplitted: uppers, fathers: fathers]
-
-        Collection boxesToBeCut = (Collection) cutResults.fathers
-        numBoxesCut = boxesToBeCut.size()
+        // 3. Cut the intersected and unbounded boxes and distribute all boxes to the sides of the splitpoint
+        int[] lowerIndex = new int[presorted.size]
+        int[] upperIndex = new int[presorted.size]
+        List<List<ClassCube>> segregationResult = segregateBoxesBySplitpoint(presorted.columns, splitDim, splitPoint, lowerIndex, upperIndex)
 
-        // 4. Create TreeOfBoxesNode for cubes left of h(R(dim) \cup C_left and right of h(R(dim) \cup C_right
-        SortedMap<Double, Pair> boundaries2cubes = resultsBestDim.boundaries2cubes
-        List<List<ClassCube>> segregationResult = segregateBoxesBySplitpoint(boundaries2cubes, (Collection<ClassCube>) cutResults.lowerSplitted,
-                (Collection<ClassCube>) cutResults.upperSplitted, (Collection<ClassCube>) cutResults.fathers, this.splitPoint)
+        // 4. partition the sorted index arrays for the children
+        childPresortedBoxes = presorted.partition(splitDim, splitPoint, lowerIndex, upperIndex, segregationResult[0], segregationResult[1])
 
-        // log.info "Entered with ${cubes.size()} boxes, of which ${boxesToBeCut.size()} were cut => created set with ${segregationResult[0].size()} lower and ${segregationResult[1].size()} upper boxes"
+        // log.info "Entered with ${cubes.size()} boxes, of which $numBoxesCut were cut => created set with ${segregationResult[0].size()} lower and ${segregationResult[1].size()} upper boxes"
         return segregationResult
     }
 
-    protected Map scanBoxesOneDim(int dim) {
+    // The presorted boxes for child childIdx (0 = lower, 1 = upper) of the last computeSplit(), handed out only once
+    PresortedBoxes takeChildPresortedBoxes(int childIdx) {
+        if (childPresortedBoxes == null)
+            return null
+        PresortedBoxes result = childPresortedBoxes[childIdx]
+        childPresortedBoxes[childIdx] = null
+        return result
+    }
+
+    /**
+     * Scans all dims concurrently as fork-join tasks, each with an own SplitOptimizer (the boxes are only read)
+     * @return the results of scanBoxesOneDim indexed by dim
+     */
+    protected Map[] scanDimsInParallel(PresortedBoxes presorted) {
+        Map[] results = new Map[nDims]
+        List<ScanDimTask> tasks = new ArrayList<ScanDimTask>(nDims)
+        for (int dim in 0..<nDims)
+            tasks << new ScanDimTask(this, presorted, dim, results)
+
+        if (ForkJoinTask.inForkJoinPool())
+            ForkJoinTask.invokeAll(tasks)
+        else
+            node.context.getPool().invoke(new ScanAllDimsTask(tasks))
+        return results
+    }
+
+    static class ScanDimTask extends RecursiveAction {
+        private final NodeModel model
+        private final PresortedBoxes presorted
+        private final int dim
+        private final Map[] results
+
+        ScanDimTask(NodeModel model, PresortedBoxes presorted, int dim, Map[] results) {
+            this.model = model
+            this.presorted = presorted
+            this.dim = dim
+            this.results = results
+        }
+
+        @Override
+        protected void compute() {
+            def dimOptimizer = SplitOptimizer.create(model.splitSearchType, model.numBags, model.numClasses)
+            results[dim] = model.scanBoxesOneDim(presorted, dim, dimOptimizer)
+        }
+    }
+
+    static class ScanAllDimsTask extends RecursiveAction {
+        private final List<ScanDimTask> tasks
+
+        ScanAllDimsTask(List<ScanDimTask> tasks) {
+            this.tasks = tasks
+        }
+
+        @Override
+        protected void compute() {
+            ForkJoinTask.invokeAll(tasks)
+        }
+    }
+
+    protected Map scanBoxesOneDim(PresortedBoxes presorted, int dim, SplitOptimizer optimizer) {
         /*
-        boundaries2cubes - a data structure for sorting all cubes along their boundaries.
-        Each key of this sorted map is a boundary b, and a value is a pair of 2 lists: one of cubes starting at b (pair.first)
-        and second (pair.second) of cubes ending at b
+        The boundaries of the (half)bounded boxes are visited in ascending order via the presorted index arrays: one
+        sorted by the lower bounds (boxes starting at a position) and one by the upper bounds (boxes ending at a position)
          */
-        SortedMap<Double, Pair> boundaries2cubes = new TreeMap<Double, Pair>()
-        List<ClassCube> unboundedCubes = []
+        ColumnarBoxSet columns = presorted.columns
+        int[] byLower = presorted.byLower[dim]
+        int[] byUpper = presorted.byUpper[dim]
+        int numBounded = presorted.numBounded[dim]
+        // we do not add unbounded, because they are always cut!
+        int numUnbounded = columns.size - numBounded
         int[] classFrequenciesBounded = new int[this.numClasses]
+        for (int j = 0; j < numBounded; j++)
+            classFrequenciesBounded[columns.classIdx[byLower[j]]] += 1
+        optimizer.reset(numUnbounded, classFrequenciesBounded)
 
-        // 1. fill in the starts and ends for (half)bounded cubes
-        for (ClassCube cube in node.boxes) {
-            if (cube.isBounded(dim)) {
-                addCubeByBoundaries(cube, dim, boundaries2cubes)
-                int classIndex = (int) cube.getClassValue()
-                classFrequenciesBounded[classIndex] += 1
-            } else {
-                // we do not add unbounded, because they are always cut!
-                unboundedCubes << cube
-            }
-        }
-        optimizer.reset(unboundedCubes.size(), classFrequenciesBounded)
-        // optimizer.numUnbounded = unboundedCubes.size()
-        // optimizer.classFrequenciesBounded = classFrequenciesBounded
+        if (SplitOptimizer.isApproximate(splitSearchType) && presorted.size >= approxMinBoxes)
+            return scanBoxesOneDimApprox(presorted, dim, optimizer)
 
-        if (boundaries2cubes.size() < 3) {
+        int numKeys = countDistinctBoundaries(presorted, dim)
+        if (numKeys < 3) {
             // we are ready as there is at most one box (or 2 boundaries) at this dimension
-            def result = [dim: dim, minCriterionValue: Double.MAX_VALUE, bestCutpoint: Double.NaN, unboundedCubes: unboundedCubes]
+            def result = [dim: dim, minCriterionValue: Double.MAX_VALUE, bestCutpoint: Double.NaN]
             return result
         }
 
-        int numKeys = boundaries2cubes.size()
+        ClassCube[] boxes = columns.sourceCubes
+        List<ClassCube> starting = new ArrayList<ClassCube>()   // Starting boxes at a cutpoint
+        List<ClassCube> ending = new ArrayList<ClassCube>()     // Boxes ending at a cutpoint
+        int nextLower = 0
+        int nextUpper = 0
         int loopIndex = 0
-        // do da loop - as b2c is sorted, iteration over keySet happens in natural order (http://goo.gl/xKdpG)
-        for (cutpoint in boundaries2cubes.keySet()) {
+        // do da loop - visit the distinct boundaries in natural order
+        while (nextLower < numBounded || nextUpper < numBounded) {
+            double cutpoint = nextBoundary(presorted, dim, nextLower, nextUpper)
+
             // 1. get starting and ending cubes at cutpoint
-            Pair<List, List> pair = boundaries2cubes.get(cutpoint)
-            List<ClassCube> starting = pair.first   // Starting boxes at this cutpoint
-            List<ClassCube> ending = pair.second    // Boxes ending at this cutpoint
+            ending.clear()
+            while (nextUpper < numBounded && presorted.getUpper(byUpper[nextUpper], dim) == cutpoint)
+                ending << boxes[byUpper[nextUpper++]]
+            starting.clear()
+            while (nextLower < numBounded && presorted.getLower(byLower[nextLower], dim) == cutpoint)
+                starting << boxes[byLower[nextLower++]]
             // log.info "Scan dim $dim w/ cutpoint $cutpoint; #starting boxes = ${starting.size()}, #ending boxes = ${ending.size()}"
 
             // update active set (for ending boxes)
@@ -301,99 +382,113 @@ class NodeModel implements PerfUtils {
             loopIndex++
         }
 
-        def result = [dim: dim, minCriterionValue: optimizer.getMinCriterionResult(), bestCutpoint: optimizer.getBestCutpoint(),
-                boundaries2cubes: boundaries2cubes, unboundedCubes: unboundedCubes, bestActiveSet: optimizer.getBestActiveSet()]
+        def result = [dim: dim, minCriterionValue: optimizer.getMinCriterionResult(), bestCutpoint: optimizer.getBestCutpoint()]
         return result
     }
 
-    private addCubeByBoundaries(ClassCube cube, int dim, Map<Double, Pair> boundaries2cubes) {
-        double lower = cube.getLower(dim)
-        Pair<List, List> pair = getPairOrCreate(lower, boundaries2cubes)
-        pair.first << cube
+    /**
+     * As scanBoxesOneDim, but evaluates only up to 2 * approxNumBins candidate cutpoints: the boundaries at the
+     * approxNumBins-quantiles of the lower and of the upper bounds. As the boxes are presorted, these quantiles are
+     * exact and read off the index arrays. Between candidates the boxes are moved to their bags without evaluating
+     * the criterion. The optimizer must have been reset.
+     */
+    protected Map scanBoxesOneDimApprox(PresortedBoxes presorted, int dim, SplitOptimizer optimizer) {
+        ColumnarBoxSet columns = presorted.columns
+        int[] byLower = presorted.byLower[dim]
+        int[] byUpper = presorted.byUpper[dim]
+        int numBounded = presorted.numBounded[dim]
+        if (numBounded == 0)
+            return [dim: dim, minCriterionValue: Double.MAX_VALUE, bestCutpoint: Double.NaN]
+
+        // as in scanBoxesOneDim, the first and the last boundary are no cutpoints
+        double firstBoundary = nextBoundary(presorted, dim, 0, 0)
+        double lastBoundary = Math.max(presorted.getLower(byLower[numBounded - 1], dim), presorted.getUpper(byUpper[numBounded - 1], dim))
+        double[] candidates = new double[2 * approxNumBins]
+        int numCandidates = 0
+        for (int k = 1; k < approxNumBins; k++) {
+            int pos = (int) (((long) k * numBounded).intdiv(approxNumBins))
+            candidates[numCandidates++] = presorted.getLower(byLower[pos], dim)
+            candidates[numCandidates++] = presorted.getUpper(byUpper[pos], dim)
+        }
+        Arrays.sort(candidates, 0, numCandidates)
+
+        int nextLower = 0
+        int nextUpper = 0
+        double previous = firstBoundary
+        for (int c = 0; c < numCandidates; c++) {
+            double cutpoint = candidates[c]
+            if (cutpoint <= previous || cutpoint >= lastBoundary)
+                continue
+            previous = cutpoint
+            // the state of the exact scan at cutpoint: boxes starting before it added, boxes ending at or before it removed
+            while (nextLower < numBounded && presorted.getLower(byLower[nextLower], dim) < cutpoint)
+                optimizer.addStartingBox(columns.classIdx[byLower[nextLower++]])
+            while (nextUpper < numBounded && presorted.getUpper(byUpper[nextUpper], dim) <= cutpoint)
+                optimizer.removeEndingBox(columns.classIdx[byUpper[nextUpper++]])
+            optimizer.testForNewOptimum(cutpoint)
+        }
 
-        double upper = cube.getUpper(dim)
-        pair = getPairOrCreate(upper, boundaries2cubes)
-        pair.second << cube
+        return [dim: dim, minCriterionValue: optimizer.getMinCriterionResult(), bestCutpoint: optimizer.getBestCutpoint()]
     }
 
-    private Pair getPairOrCreate(double key, Map<Double, Pair> boundaries2cubes) {
-        if (boundaries2cubes.containsKey(key))
-            return boundaries2cubes.get(key)
-        else {
-            def pair = new Pair<List, List>()
-            // todo: later - more efficient is to create only one list (in a separate method)
-            pair.first = new ArrayList(2)
-            pair.second = new ArrayList(2)
-            boundaries2cubes.put(key, pair)
-            return pair
-        }
+    // The smallest boundary not yet visited, i.e. min of the next lower and the next upper bound
+    private static double nextBoundary(PresortedBoxes presorted, int dim, int nextLower, int nextUpper) {
+        int numBounded = presorted.numBounded[dim]
+        if (nextLower >= numBounded)
+            return presorted.getUpper(presorted.byUpper[dim][nextUpper], dim)
+        if (nextUpper >= numBounded)
+            return presorted.getLower(presorted.byLower[dim][nextLower], dim)
+        return Math.min(presorted.getLower(presorted.byLower[dim][nextLower], dim), presorted.getUpper(presorted.byUpper[dim][nextUpper], dim))
     }
 
-    /**
-     *
-     * @param resultForDim a map with same format as returned by scanBoxesOneDim
-     * @return
-     */
-    protected Map cutIntersectedBoxes(Map resultForDim) {
-        // the in-paramer can have two forms:
-        // A. only unbounded boxes are cut (if they exist) - we don't want to cut at this dim, sth is wrong!
-        // def result = [dim: dim, minActive: unboundedCubes.size(), bestCutpoint: Double.NaN, unboundedCubes: unboundedCubes]
-        // B. there are (possibly) active set boxes in addition to unbounded
-        // [dim: dim, minActive: unboundedCubes.size() + minActive, bestCutpoint: bestCutpoint, boundaries2cubes: boundaries2cubes, unboundedCubes: unboundedCubes, bestActiveSet: bestActiveSet]
-
-        double bestCutpoint = resultForDim.bestCutpoint
-        if (Double.isNaN(bestCutpoint)) {   // for debugging, to stop before assert fails
-            assert !Double.isNaN(bestCutpoint), "Best dim for tree cutpoint has only unbounded boxes to be cut (resultForDim = $resultForDim)"
-        }
-
-        // 1. cut all boxes in resultForDim.unboundedCubes and in resultForDim.bestActiveSet and record fathers for filtering
-        List lowers = []
-        List uppers = []
-        def fathers = new HashSet<ClassCube>()
-        int dim = resultForDim.dim
-        Collection<ClassCube> unboundedCubes = resultForDim.unboundedCubes
-        for (cube in unboundedCubes) {
-            def pair = cube.splitAtDim(cube, dim, bestCutpoint)
-            lowers << pair.first
-            uppers << pair.second
-            fathers << cube
-        }
-        Collection<ClassCube> bestActiveSet = resultForDim.bestActiveSet
-        for (cube in bestActiveSet) {
-            def pair = cube.splitAtDim(cube, dim, bestCutpoint)
-            lowers << pair.first
-            uppers << pair.second
-            fathers << cube
+    private static int countDistinctBoundaries(PresortedBoxes presorted, int dim) {
+        int[] byLower = presorted.byLower[dim]
+        int[] byUpper = presorted.byUpper[dim]
+        int numBounded = presorted.numBounded[dim]
+        int numKeys = 0
+        int nextLower = 0
+        int nextUpper = 0
+        while (nextLower < numBounded || nextUpper < numBounded) {
+            double boundary = nextBoundary(presorted, dim, nextLower, nextUpper)
+            while (nextUpper < numBounded && presorted.getUpper(byUpper[nextUpper], dim) == boundary)
+                nextUpper++
+            while (nextLower < numBounded && presorted.getLower(byLower[nextLower], dim) == boundary)
+                nextLower++
+            numKeys++
         }
-
-        return [lowerSplitted: lowers, upperSplitted: uppers, fathers: fathers]
+        return numKeys
     }
 
-    protected List<List<ClassCube>> segregateBoxesBySplitpoint(SortedMap<Double, Pair> boundaries2cubes, Collection<ClassCube> lowerSplitted, Collection<ClassCube> upperSplitted, Collection<ClassCube> unwantedBoxes, double splitPoint) {
-        // 1. Just copy lowerSplitted / upperSplitted and add to them the other ones (we could re-use the args but this is dangerous)
+    /**
+     * Distributes the boxes to the two sides of the splitpoint: boxes ending at or before splitPoint go to the lower side,
+     * boxes starting at or after it to the upper side. The remaining boxes (unbounded at dim or strictly containing
+     * splitPoint, i.e. the active set at splitPoint) are cut, and their halves go to the respective sides.
+     * Sets numBoxesCut and fills lowerIndex[i] (upperIndex[i]) with the position of box i or its half in the lower
+     * (upper) list, -1 if none.
+     * @return [lowers, uppers]
+     */
+    protected List<List<ClassCube>> segregateBoxesBySplitpoint(ColumnarBoxSet columns, int dim, double splitPoint, int[] lowerIndex, int[] upperIndex) {
         List<ClassCube> lowers = []
-        lowers.addAll lowerSplitted
         List<ClassCube> uppers = []
-        uppers.addAll upperSplitted
-
-        // 2a. Get all in boundaries2cubes whose upper is <= splitPoint and add to lowers but filter out all from unwantedBoxes
-        // 2b. Get all in boundaries2cubes whose lower is >= splitPoint and add to uppers but filter etc.
-        for (Double position in boundaries2cubes.keySet()) {
-            if (position <= splitPoint) {
-                //2a. add lowers
-                List<ClassCube> endingAtPosition = (List<ClassCube>) boundaries2cubes[position].second    // boxes whose upperBounds are at position
-                for (cube in endingAtPosition) {
-                    if (!unwantedBoxes.contains(cube))
-                        lowers << cube
-                }
-            }
-            if (position >= splitPoint) {
-                //2b. add uppers
-                List<ClassCube> startingAtPosition = (List<ClassCube>) boundaries2cubes[position].first   // boxes whose lowerBounds are at position
-                for (cube in startingAtPosition) {
-                    if (!unwantedBoxes.contains(cube))
-                        uppers << cube
-                }
+        numBoxesCut = 0
+
+        for (int i = 0; i < columns.size; i++) {
+            ClassCube cube = columns.sourceCubes[i]
+            lowerIndex[i] = -1
+            upperIndex[i] = -1
+            if (columns.isBounded(i, dim) && columns.getUpper(i, dim) <= splitPoint) {
+                lowerIndex[i] = lowers.size()
+                lowers << cube
+            } else if (columns.isBounded(i, dim) && columns.getLower(i, dim) >= splitPoint) {
+                upperIndex[i] = uppers.size()
+                uppers << cube
+            } else {
+                def pair = cube.splitAtDim(cube, dim, splitPoint)
+                lowerIndex[i] = lowers.size()
+                lowers << pair.first
+                upperIndex[i] = uppers.size()
+                uppers << pair.second
+                numBoxesCut++
             }
         }
 
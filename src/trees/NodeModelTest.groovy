@@ -0,0 +1,125 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package trees
+
+import cubes.BoxSet
+import cubes.ClassCube
+
+class NodeModelTest extends GroovyTestCase {
+
+    // Overlapping boxes with random (distinct) bounds in both dims and a random class out of 2
+    private static BoxSet randomBoxes(Random random, int numBoxes) {
+        BoxSet boxes = new BoxSet()
+        for (int i = 0; i < numBoxes; i++) {
+            def cube = new ClassCube(2)
+            for (int dim = 0; dim < 2; dim++) {
+                double lower = random.nextDouble() * 10
+                cube.setBounds(dim, lower, lower + 0.01 + random.nextDouble() * 3)
+            }
+            int classValue = random.nextInt(2)
+            cube.setClassValue(classValue)
+            cube.setClassProbDistribution(classValue == 1 ? [0.0, 1.0] as double[] : [1.0, 0.0] as double[])
+            boxes << cube
+        }
+        return boxes
+    }
+
+    // The scan result of dim with the given type, approximate with numBins bins or (numBins <= 0) exact
+    private static Map scan(BoxSet boxes, SplitOptimizer.SplitSearchType type, int dim, int numBins) {
+        def node = new TreeOfBoxesNode(boxes)
+        def model = node.model
+        model.splitSearchType = type
+        model.approxNumBins = numBins
+        model.approxMinBoxes = (numBins > 0) ? 0 : Integer.MAX_VALUE
+        return model.scanBoxesOneDim(PresortedBoxes.create(boxes), dim, SplitOptimizer.create(type, 2, 2))
+    }
+
+    static final List<SplitOptimizer.SplitSearchType> APPROX_TYPES = [SplitOptimizer.SplitSearchType.APPROX_MIN_NUM_SPLITS,
+            SplitOptimizer.SplitSearchType.APPROX_INFO_GAIN, SplitOptimizer.SplitSearchType.APPROX_GINI]
+
+    // With at least as many bins as bounded boxes, every boundary is a quantile, so all cutpoints are evaluated
+    void testApproxAsExactIfEveryBoundaryIsQuantile() {
+        def random = new Random(37)
+        for (int round = 0; round < 5; round++) {
+            List<BoxSet> boxSets = [randomBoxes(random, 60), PresortedBoxesTest.gridPartition(random, 7)]
+            for (boxes in boxSets) {
+                for (type in APPROX_TYPES) {
+                    for (int dim = 0; dim < 2; dim++) {
+                        Map exact = scan(boxes, type, dim, 0)
+                        Map approx = scan(boxes, type, dim, boxes.size())
+                        assertEquals("$type, dim $dim", exact.minCriterionValue, approx.minCriterionValue)
+                        assertEquals("$type, dim $dim", exact.bestCutpoint, approx.bestCutpoint)
+                    }
+                }
+            }
+        }
+    }
+
+    // With fewer bins, the approximate scan evaluates a subset of the cutpoints: never better than the exact scan
+    void testApproxNotBetterThanExact() {
+        def random = new Random(41)
+        for (int round = 0; round < 5; round++) {
+            BoxSet boxes = randomBoxes(random, 400)
+            for (type in APPROX_TYPES) {
+                for (int dim = 0; dim < 2; dim++) {
+                    Map exact = scan(boxes, type, dim, 0)
+                    Map approx = scan(boxes, type, dim, 16)
+                    assertTrue("$type, dim $dim", (double) approx.minCriterionValue >= (double) exact.minCriterionValue)
+                }
+            }
+        }
+    }
+
+    /**
+     * MIN_NUM_SPLITS with numBins bins: the approximate result is the number of boxes cut at its cutpoint, and it
+     * exceeds the exact minimum by at most ceil(numBoxes / numBins). With distinct bounds, the boxes cut at the nearest
+     * candidate below the best exact cutpoint are those cut there plus those ending in between, at most that many as
+     * the upper-bound quantiles are candidates; below all candidates, the lowest one adds at most that many starting boxes.
+     */
+    void testApproxMinNumSplitsWithinBound() {
+        def random = new Random(43)
+        int numBoxes = 400
+        for (int numBins in [4, 16, 64]) {
+            for (int round = 0; round < 5; round++) {
+                BoxSet boxes = randomBoxes(random, numBoxes)
+                for (int dim = 0; dim < 2; dim++) {
+                    Map exact = scan(boxes, SplitOptimizer.SplitSearchType.APPROX_MIN_NUM_SPLITS, dim, 0)
+                    Map approx = scan(boxes, SplitOptimizer.SplitSearchType.APPROX_MIN_NUM_SPLITS, dim, numBins)
+                    double cutpoint = (double) approx.bestCutpoint
+                    assertFalse(Double.isNaN(cutpoint))
+                    int numCut = 0
+                    for (box in boxes) {
+                        if (box.getLower(dim) < cutpoint && cutpoint < box.getUpper(dim))
+                            numCut++
+                    }
+                    assertEquals((double) numCut, (double) approx.minCriterionValue)
+                    int bound = (numBoxes + numBins - 1).intdiv(numBins)
+                    assertTrue("$numBins bins, dim $dim: ${approx.minCriterionValue} vs. ${exact.minCriterionValue}",
+                            (double) approx.minCriterionValue <= (double) exact.minCriterionValue + bound)
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package trees
+
+import cubes.ClassCube
+import cubes.ColumnarBoxSet
+import cubes.IndexSort
+
+/**
+ * The boxes of a tree node in columnar form together with, for each dim, the indices of the boxes bounded at this dim
+ * sorted by their lower resp. upper bounds (as the presorted attribute lists of SLIQ/SPRINT).
+ * The sorting is done once at the root; at a split the sorted index arrays are partitioned stably into the two
+ * children (see partition()), so no node below the root sorts again.
+ * The columns are copied from the ClassCubes once at the root; the children's columns are derived from the parent's
+ * arrays by index. A node's columns are an additional copy of the bounds and class indices of its boxes (which remain
+ * ClassCubes), held until the node is split: this layout targets the cache behaviour of the sweeps, not heap size.
+ */
+@Typed
+class PresortedBoxes {
+
+    final ColumnarBoxSet columns
+
+    // byLower[dim][0..numBounded[dim]-1] are the boxes bounded at dim, ascending by lower bound; byUpper[dim] likewise
+    final int[][] byLower
+    final int[][] byUpper
+    final int[] numBounded
+
+    private PresortedBoxes(ColumnarBoxSet columns, int[][] byLower, int[][] byUpper, int[] numBounded) {
+        this.columns = columns
+        this.byLower = byLower
+        this.byUpper = byUpper
+        this.numBounded = numBounded
+    }
+
+    /** Copies boxes into columnar form and sorts the bounded boxes of each dim (bounds and class indices only) */
+    static PresortedBoxes create(Collection<ClassCube> boxes) {
+        ColumnarBoxSet columns = ColumnarBoxSet.fromBoxes(boxes, false)
+        int nDims = columns.nDims
+        int[][] byLower = new int[nDims][]
+        int[][] byUpper = new int[nDims][]
+        int[] numBounded = new int[nDims]
+        double[] keys = new double[columns.size]
+
+        for (int dim = 0; dim < nDims; dim++) {
+            int[] bounded = new int[columns.size]
+            int n = 0
+            for (int i = 0; i < columns.size; i++) {
+                if (columns.isBounded(i, dim))
+                    bounded[n++] = i
+            }
+            numBounded[dim] = n
+            byLower[dim] = Arrays.copyOf(bounded, n)
+            byUpper[dim] = Arrays.copyOf(bounded, n)
+            IndexSort.sort(byLower[dim], 0, n, columns.column(dim, false, keys))
+            IndexSort.sort(byUpper[dim], 0, n, columns.column(dim, true, keys))
+        }
+        return new PresortedBoxes(columns, byLower, byUpper, numBounded)
+    }
+
+    int getSize() {
+        return columns.size
+    }
+
+    double getLower(int i, int dim) {
+        return columns.lower[i * columns.nDims + dim]
+    }
+
+    double getUpper(int i, int dim) {
+        return columns.upper[i * columns.nDims + dim]
+    }
+
+    /**
+     * Creates the presorted boxes of the two children after a split at (dim, splitPoint).
+     * lowerIndex[i] (upperIndex[i]) is the index of box i (resp. of its lower/upper half if it was cut) in lowers
+     * (uppers), or -1 if box i has no part in this child; lowers and uppers are the boxes of the children.
+     * At dims other than dim the bounds are unchanged, so the children's orders follow from a stable partition.
+     * At dim the halves of the cut boxes end (start) at splitPoint, i.e. at or after (before) all other boxes of the
+     * child; halves of boxes unbounded at dim become bounded with an infinite lower (upper) bound.
+     * @return [lower child, upper child]
+     */
+    List<PresortedBoxes> partition(int dim, double splitPoint, int[] lowerIndex, int[] upperIndex, List<ClassCube> lowers, List<ClassCube> uppers) {
+        ColumnarBoxSet lowerColumns = deriveColumns(lowerIndex, upperIndex, lowers, dim, splitPoint, true)
+        ColumnarBoxSet upperColumns = deriveColumns(upperIndex, lowerIndex, uppers, dim, splitPoint, false)
+        int nDims = columns.nDims
+        int[][] lowerByLower = new int[nDims][]
+        int[][] lowerByUpper = new int[nDims][]
+        int[] lowerNumBounded = new int[nDims]
+        int[][] upperByLower = new int[nDims][]
+        int[][] upperByUpper = new int[nDims][]
+        int[] upperNumBounded = new int[nDims]
+
+        for (int d = 0; d < nDims; d++) {
+            if (d == dim)
+                continue
+            int[] sorted = byLower[d]
+            int n = numBounded[d]
+            int numLower = countMapped(sorted, n, lowerIndex)
+            int numUpper = countMapped(sorted, n, upperIndex)
+            lowerNumBounded[d] = numLower
+            upperNumBounded[d] = numUpper
+            lowerByLower[d] = mapStable(sorted, n, lowerIndex, numLower)
+            upperByLower[d] = mapStable(sorted, n, upperIndex, numUpper)
+            lowerByUpper[d] = mapStable(byUpper[d], n, lowerIndex, numLower)
+            upperByUpper[d] = mapStable(byUpper[d], n, upperIndex, numUpper)
+        }
+
+        // at dim, every box of both children is bounded (the halves of the cut boxes end resp. start at splitPoint)
+        lowerNumBounded[dim] = lowerColumns.size
+        upperNumBounded[dim] = upperColumns.size
+        lowerByLower[dim] = new int[lowerColumns.size]
+        lowerByUpper[dim] = new int[lowerColumns.size]
+        upperByLower[dim] = new int[upperColumns.size]
+        upperByUpper[dim] = new int[upperColumns.size]
+        int numBoxes = columns.size
+
+        // lower child: halves of boxes unbounded at dim first (lower bound -inf), then the parent's order by lower bound
+        int k = 0
+        for (int i = 0; i < numBoxes; i++) {
+            if (!columns.isBounded(i, dim))
+                lowerByLower[dim][k++] = lowerIndex[i]
+        }
+        int[] sorted = byLower[dim]
+        for (int j = 0; j < numBounded[dim]; j++) {
+            if (lowerIndex[sorted[j]] >= 0)
+                lowerByLower[dim][k++] = lowerIndex[sorted[j]]
+        }
+        // ... by upper bound: the boxes ending at or before splitPoint, then the halves ending at splitPoint
+        k = 0
+        sorted = byUpper[dim]
+        for (int j = 0; j < numBounded[dim]; j++) {
+            int i = sorted[j]
+            if (lowerIndex[i] >= 0 && upperIndex[i] < 0)
+                lowerByUpper[dim][k++] = lowerIndex[i]
+        }
+        for (int i = 0; i < numBoxes; i++) {
+            if (lowerIndex[i] >= 0 && upperIndex[i] >= 0)
+                lowerByUpper[dim][k++] = lowerIndex[i]
+        }
+
+        // upper child: by lower bound the halves starting at splitPoint, then the boxes starting at or after splitPoint
+        k = 0
+        for (int i = 0; i < numBoxes; i++) {
+            if (lowerIndex[i] >= 0 && upperIndex[i] >= 0)
+                upperByLower[dim][k++] = upperIndex[i]
+        }
+        sorted = byLower[dim]
+        for (int j = 0; j < numBounded[dim]; j++) {
+            int i = sorted[j]
+            if (upperIndex[i] >= 0 && lowerIndex[i] < 0)
+                upperByLower[dim][k++] = upperIndex[i]
+        }
+        // ... by upper bound: the parent's order, then the halves of boxes unbounded at dim (upper bound +inf)
+        k = 0
+        sorted = byUpper[dim]
+        for (int j = 0; j < numBounded[dim]; j++) {
+            if (upperIndex[sorted[j]] >= 0)
+                upperByUpper[dim][k++] = upperIndex[sorted[j]]
+        }
+        for (int i = 0; i < numBoxes; i++) {
+            if (!columns.isBounded(i, dim))
+                upperByUpper[dim][k++] = upperIndex[i]
+        }
+
+        return [new PresortedBoxes(lowerColumns, lowerByLower, lowerByUpper, lowerNumBounded),
+                new PresortedBoxes(upperColumns, upperByLower, upperByUpper, upperNumBounded)]
+    }
+
+    /**
+     * The columns of a child from those of this node: row childIndex[i] is a copy of row i; boxes in both children
+     * (otherIndex[i] >= 0 too) were cut, their halves end (lowerChild) resp. start at splitPoint and are bounded at dim.
+     * No distributions are copied, as in create().
+     */
+    private ColumnarBoxSet deriveColumns(int[] childIndex, int[] otherIndex, List<ClassCube> childBoxes, int dim,
+                                         double splitPoint, boolean lowerChild) {
+        int nDims = columns.nDims
+        int words = columns.wordsPerBox
+        def result = new ColumnarBoxSet(nDims, 0, childBoxes.size())
+        for (int i = 0; i < columns.size; i++) {
+            int k = childIndex[i]
+            if (k < 0)
+                continue
+            System.arraycopy(columns.lower, i * nDims, result.lower, k * nDims, nDims)
+            System.arraycopy(columns.upper, i * nDims, result.upper, k * nDims, nDims)
+            System.arraycopy(columns.boundedMask, i * words, result.boundedMask, k * words, words)
+            result.classIdx[k] = columns.classIdx[i]
+            result.confidence[k] = columns.confidence[i]
+            result.hasConflict[k] = columns.hasConflict[i]
+            result.numInstances[k] = columns.numInstances[i]
+            result.sourceCubes[k] = childBoxes.get(k)
+            if (otherIndex[i] >= 0) {
+                if (lowerChild)
+                    result.upper[k * nDims + dim] = splitPoint
+                else
+                    result.lower[k * nDims + dim] = splitPoint
+                result.boundedMask[k * words + (dim >>> 6)] |= (1L << (dim & 63))
+            }
+        }
+        result.size = childBoxes.size()
+        return result
+    }
+
+    private static int countMapped(int[] sorted, int n, int[] childIndex) {
+        int count = 0
+        for (int j = 0; j < n; j++) {
+            if (childIndex[sorted[j]] >= 0)
+                count++
+        }
+        return count
+    }
+
+    // The child indices of the entries of sorted which have a part in the child, in the order of sorted
+    private static int[] mapStable(int[] sorted, int n, int[] childIndex, int numMapped) {
+        int[] result = new int[numMapped]
+        int k = 0
+        for (int j = 0; j < n; j++) {
+            int index = childIndex[sorted[j]]
+            if (index >= 0)
+                result[k++] = index
+        }
+        return result
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package trees
+
+import cubes.BoxSet
+import cubes.ClassCube
+
+class PresortedBoxesTest extends GroovyTestCase {
+
+    /**
+     * A random partition of the space into a grid of cellsPerDim^2 boxes (2 dims): the cuts per dim are random, the
+     * outer cells are unbounded, and each cell has a random class of two (with a pure class distribution)
+     */
+    static BoxSet gridPartition(Random random, int cellsPerDim) {
+        double[][] cuts = new double[2][cellsPerDim + 1]
+        for (int dim = 0; dim < 2; dim++) {
+            cuts[dim][0] = Double.NEGATIVE_INFINITY
+            cuts[dim][cellsPerDim] = Double.POSITIVE_INFINITY
+            for (int c = 1; c < cellsPerDim; c++)
+                cuts[dim][c] = c + random.nextDouble() * 0.8
+        }
+        BoxSet boxes = new BoxSet()
+        for (int i = 0; i < cellsPerDim; i++) {
+            for (int j = 0; j < cellsPerDim; j++) {
+                def cube = new ClassCube(2)
+                cube.setBounds(0, cuts[0][i], cuts[0][i + 1])
+                cube.setBounds(1, cuts[1][j], cuts[1][j + 1])
+                int classValue = random.nextInt(2)
+                cube.setClassValue(classValue)
+                cube.setClassProbDistribution(classValue == 1 ? [0.0, 1.0] as double[] : [1.0, 0.0] as double[])
+                boxes << cube
+            }
+        }
+        return boxes
+    }
+
+    void testPartitionEqualsSortingTheChildren() {
+        def random = new Random(7)
+        for (int round = 0; round < 5; round++) {
+            BoxSet boxes = gridPartition(random, 6)
+            checkSplits(boxes, PresortedBoxes.create(boxes), 0)
+        }
+    }
+
+    // Splits the node of boxes and compares the partitioned index arrays of both children with sorting them anew
+    private void checkSplits(List<ClassCube> boxes, PresortedBoxes presorted, int depth) {
+        def node = new TreeOfBoxesNode(boxes)
+        node.presortedBoxes = presorted
+        List<List<ClassCube>> halves = node.model.computeSplit()
+        for (int i = 0; i < 2; i++) {
+            PresortedBoxes child = node.model.takeChildPresortedBoxes(i)
+            assertSameOrder(PresortedBoxes.create(halves[i]), child)
+            if (halves[i].size() > 1 && depth < 8)
+                checkSplits(halves[i], child, depth + 1)
+        }
+    }
+
+    private void assertSameOrder(PresortedBoxes expected, PresortedBoxes actual) {
+        assertEquals(expected.size, actual.size)
+        // the columns derived from the parent equal those copied from the boxes
+        for (int i = 0; i < expected.size; i++) {
+            assertSame(expected.columns.sourceCubes[i], actual.columns.sourceCubes[i])
+            assertEquals(expected.columns.classIdx[i], actual.columns.classIdx[i])
+            for (int dim = 0; dim < 2; dim++) {
+                assertEquals(expected.columns.isBounded(i, dim), actual.columns.isBounded(i, dim))
+                assertEquals(expected.getLower(i, dim), actual.getLower(i, dim))
+                assertEquals(expected.getUpper(i, dim), actual.getUpper(i, dim))
+            }
+        }
+        for (int dim = 0; dim < 2; dim++) {
+            int n = expected.numBounded[dim]
+            assertEquals(n, actual.numBounded[dim])
+            // the same boxes, and the same sequence of bounds (ties may be ordered differently)
+            assertEquals(asSet(expected.byLower[dim], n), asSet(actual.byLower[dim], n))
+            assertEquals(asSet(expected.byUpper[dim], n), asSet(actual.byUpper[dim], n))
+            for (int j = 0; j < n; j++) {
+                assertEquals(expected.getLower(expected.byLower[dim][j], dim), actual.getLower(actual.byLower[dim][j], dim))
+                assertEquals(expected.getUpper(expected.byUpper[dim][j], dim), actual.getUpper(actual.byUpper[dim][j], dim))
+            }
+        }
+    }
+
+    private static Set<Integer> asSet(int[] indices, int n) {
+        Set<Integer> result = new HashSet<Integer>()
+        for (int j = 0; j < n; j++)
+            result << indices[j]
+        return result
+    }
+}
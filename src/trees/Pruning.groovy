@@ -26,9 +26,8 @@ package trees
 
 import groovy.transform.Canonical
 import groovy.util.logging.Log
-import weka.core.Instances
-import weka.filters.Filter
-import weka.filters.unsupervised.instance.RemoveWithValues
+import experiment.InstancesView
+import weka.core.Instance
 
 /**
  * Encapsulates different strategies for pruning a tree of boxes
@@ -40,20 +39,25 @@ import weka.filters.unsupervised.instance.RemoveWithValues
 class Pruning {
 
     TreeOfBoxesNode tree
-    Instances pruningData
+    InstancesView pruningData
     boolean pruneUntestableSubtrees
     double maxLeafOverTreeErrorFraction = 0.4
     int minTestInstancesToCollapseBranch = 5
     int maxLeaves = -1
 
-    Pruning(TreeOfBoxesNode tree, Instances pruningData, boolean pruneUntestableSubtrees) {
+    Pruning(TreeOfBoxesNode tree, InstancesView pruningData, boolean pruneUntestableSubtrees) {
         this.tree = tree
         this.pruningData = pruningData
         this.pruneUntestableSubtrees = pruneUntestableSubtrees
     }
 
+    // The pruning instances (references only) and a row index into them. Each node of the pruning tree owns a range
+    // of rowIndex; the ranges of its children are obtained by partitioning it in place on the split of the node.
+    Instance[] instances
+    int[] rowIndex
+
     void prune() {
-        def pruningTree = new PruningNode(tree, pruningData, this)
+        def pruningTree = createPruningTree()
         int oldNumLeaves = pruningTree.buildTree()
         int numLeaves = pruningTree.prune()
 //        while ((maxLeaves > 0) && (numLeaves > maxLeaves)) {
@@ -64,12 +68,26 @@ class Pruning {
 //        }
         log.info("Pruning finished with $numLeaves leaves: ${oldNumLeaves - numLeaves} leaves pruned.")
     }
+
+    // The root of the pruning tree, owning all pruning instances; buildTree() partitions them among the nodes
+    protected PruningNode createPruningTree() {
+        int numRows = (pruningData != null) ? pruningData.numInstances() : 0
+        instances = new Instance[numRows]
+        rowIndex = new int[numRows]
+        for (int i = 0; i < numRows; i++) {
+            instances[i] = pruningData.instance(i)
+            rowIndex[i] = i
+        }
+        return new PruningNode(tree, 0, numRows, this)
+    }
 }
 
 @Typed @Canonical @Log
 class PruningNode {
     TreeOfBoxesNode node
-    Instances pruningData
+    // this node's pruning instances are pruning.rowIndex[from..<to]
+    int from
+    int to
     Pruning pruning
     List<PruningNode> children
 
@@ -78,10 +96,11 @@ class PruningNode {
             children = new ArrayList<PruningNode>(2)
             def splitDim = node.model.splitDim
             def splitPoint = node.model.splitPoint
-            def childPruningData = splitTestInstances(pruningData, splitPoint, splitDim)
+            int mid = partitionTestInstances(splitPoint, splitDim)
             int numLeaves = 0
             for (int i in 0..<node.children.size()) {
-                def child = new PruningNode(node.children.get(i), childPruningData.get(i), pruning)
+                def child = (i == 0) ? new PruningNode(node.children.get(i), from, mid, pruning) :
+                    new PruningNode(node.children.get(i), mid, to, pruning)
                 numLeaves += child.buildTree()
                 children << child
             }
@@ -90,6 +109,10 @@ class PruningNode {
             return 1
     }
 
+    int numTestInstances() {
+        to - from
+    }
+
     boolean isLeaf() {
         node.isLeaf()
     }
@@ -132,7 +155,7 @@ class PruningNode {
         if (isLeaf()) {
             return errorsForLeaf()
         } else {
-            if (pruningData == null || pruningData.numInstances() <= pruning.minTestInstancesToCollapseBranch) {
+            if (numTestInstances() <= pruning.minTestInstancesToCollapseBranch) {
                 if (pruning.pruneUntestableSubtrees)
                     return Double.POSITIVE_INFINITY   // prune this subtree
 //                else
@@ -148,49 +171,47 @@ class PruningNode {
     }
 
     double errorsForLeaf() {
-        if (pruningData == null || pruningData.numInstances() <= pruning.minTestInstancesToCollapseBranch) {
+        if (numTestInstances() <= pruning.minTestInstancesToCollapseBranch) {
             if (pruning.pruneUntestableSubtrees)
                 return Double.POSITIVE_INFINITY   // prune this leaf
 //            else
 //                return 0.0 // C45PruneableClassifier: No test -> No error, i.e. most likely no pruning of this leaf
         }
-        double total = pruningData.numInstances()
+        double total = numTestInstances()
         double correctlyPredicted = 0.0
-        for (int i in 0..<total) {
-            if (pruningData.instance(i).classValue() == node.model.classData.classValue)
+        double classValue = node.model.classData.classValue
+        Instance[] instances = pruning.instances
+        int[] rowIndex = pruning.rowIndex
+        for (int i = from; i < to; i++) {
+            if (instances[rowIndex[i]].classValue() == classValue)
                 correctlyPredicted++
         }
 
         (total - correctlyPredicted)
     }
 
-    protected List<Instances> splitTestInstances(Instances pruningData, double splitPoint, int splitDim) {
-        Instances lowerPruningData = null
-        Instances upperPruningData = null
-
-        if (pruningData?.numInstances() > 0) {
-            Filter testFilterLower = createTestFilter(pruningData, splitPoint, splitDim, true)
-            lowerPruningData = Filter.useFilter(pruningData, testFilterLower)
-            if (lowerPruningData.numInstances() == 0)
-                lowerPruningData = null
-
-            Filter testFilterUpper = createTestFilter(pruningData, splitPoint, splitDim, false)
-            upperPruningData = Filter.useFilter(pruningData, testFilterUpper)
-            if (upperPruningData.numInstances() == 0)
-                upperPruningData = null
-        }
-        return [lowerPruningData, upperPruningData]
-    }
-
-    private Filter createTestFilter(Instances data, double splitPoint, int splitDim, boolean invertSelection) {
-        def testFilter = new RemoveWithValues()
-        testFilter.with {
-            setAttributeIndex((splitDim + 1).toString())
-            setSplitPoint(splitPoint)
-            setInputFormat(data)
-            setInvertSelection(invertSelection)
+    /**
+     * Partitions rowIndex[from..<to] in place (as in quicksort) such that the instances going to the lower child come
+     * first. The instances are routed as in TreeOfBoxesNode: attribute value <= splitPoint goes to the lower child,
+     * otherwise (including missing values) to the upper child.
+     * @return the start of the upper child's range
+     */
+    protected int partitionTestInstances(double splitPoint, int splitDim) {
+        Instance[] instances = pruning.instances
+        int[] rowIndex = pruning.rowIndex
+        int lo = from
+        int hi = to - 1
+        while (lo <= hi) {
+            if (instances[rowIndex[lo]].value(splitDim) <= splitPoint) {
+                lo++
+            } else {
+                int tmp = rowIndex[lo]
+                rowIndex[lo] = rowIndex[hi]
+                rowIndex[hi] = tmp
+                hi--
+            }
         }
-        return testFilter
+        return lo
     }
 
 }
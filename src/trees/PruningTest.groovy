@@ -0,0 +1,168 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package trees
+
+import cubes.BoxSet
+import experiment.InstancesView
+import weka.core.Attribute
+import weka.core.FastVector
+import weka.core.Instance
+import weka.core.Instances
+import weka.filters.Filter
+import weka.filters.unsupervised.instance.RemoveWithValues
+
+class PruningTest extends GroovyTestCase {
+
+    static final int ID_INDEX = 2
+
+    // Pruning instances with attributes x0, x1 (the dims of the boxes), id (the row number) and a nominal class
+    private static Instances pruningInstances(Random random, int numRows, List<Double> splitPoints) {
+        FastVector attributes = new FastVector()
+        attributes.addElement(new Attribute("x0"))
+        attributes.addElement(new Attribute("x1"))
+        attributes.addElement(new Attribute("id"))
+        FastVector classValues = new FastVector()
+        classValues.addElement("0")
+        classValues.addElement("1")
+        attributes.addElement(new Attribute("class", classValues))
+        Instances data = new Instances("pruning", attributes, numRows)
+        data.setClassIndex(3)
+        for (int row = 0; row < numRows; row++) {
+            double[] values = new double[4]
+            for (int dim = 0; dim < 2; dim++) {
+                int kind = random.nextInt(10)
+                if (splitPoints != null && kind == 0)
+                    values[dim] = Double.NaN
+                else if (splitPoints != null && kind < 4)
+                    values[dim] = splitPoints[random.nextInt(splitPoints.size())]
+                else
+                    values[dim] = random.nextDouble() * 7 - 1
+            }
+            values[ID_INDEX] = row
+            values[3] = random.nextInt(2)
+            data.add(new Instance(1.0, values))
+        }
+        return data
+    }
+
+    private static TreeOfBoxesNode randomTree(Random random) {
+        BoxSet boxes = PresortedBoxesTest.gridPartition(random, 5)
+        def root = new TreeOfBoxesNode(boxes)
+        root.buildTree()
+        return root
+    }
+
+    // Without ties and missing values, each node gets the instances which the former RemoveWithValues filters selected
+    void testPartitionAsFiltering() {
+        def random = new Random(13)
+        for (int round = 0; round < 5; round++) {
+            def root = randomTree(random)
+            Instances data = pruningInstances(random, 400, null)
+            def pruning = new Pruning(root, InstancesView.of(data), false)
+            def pruningTree = pruning.createPruningTree()
+            pruningTree.buildTree()
+            checkAsFiltering(pruningTree, data, pruning)
+        }
+    }
+
+    private void checkAsFiltering(PruningNode pruningNode, Instances expected, Pruning pruning) {
+        assertEquals(ids(expected), ids(pruningNode, pruning))
+        if (pruningNode.isLeaf())
+            return
+        int splitDim = pruningNode.node.model.splitDim
+        double splitPoint = pruningNode.node.model.splitPoint
+        checkAsFiltering(pruningNode.children[0], filter(expected, splitPoint, splitDim, true), pruning)
+        checkAsFiltering(pruningNode.children[1], filter(expected, splitPoint, splitDim, false), pruning)
+    }
+
+    // As the former PruningNode.createTestFilter: inverted selects the values < splitPoint, otherwise those >= splitPoint
+    private static Instances filter(Instances data, double splitPoint, int splitDim, boolean invertSelection) {
+        def testFilter = new RemoveWithValues()
+        testFilter.setAttributeIndex((splitDim + 1).toString())
+        testFilter.setSplitPoint(splitPoint)
+        testFilter.setInputFormat(data)
+        testFilter.setInvertSelection(invertSelection)
+        return Filter.useFilter(data, testFilter)
+    }
+
+    // Values at split points go to the lower child, missing values to the upper child (as in TreeOfBoxesNode)
+    void testPartitionRoutesAsTree() {
+        def random = new Random(17)
+        for (int round = 0; round < 5; round++) {
+            def root = randomTree(random)
+            List<Double> splitPoints = []
+            collectSplitPoints(root, splitPoints)
+            Instances data = pruningInstances(random, 400, splitPoints)
+            def pruning = new Pruning(root, InstancesView.of(data), false)
+            def pruningTree = pruning.createPruningTree()
+            pruningTree.buildTree()
+
+            List<PruningNode> leaves = []
+            collectLeaves(pruningTree, leaves)
+            int numRows = 0
+            for (leaf in leaves) {
+                for (int i = leaf.from; i < leaf.to; i++) {
+                    Instance instance = pruning.instances[pruning.rowIndex[i]]
+                    double[] vector = [instance.value(0), instance.value(1)] as double[]
+                    assertSame(root.findCubeForAttributeVector(vector), leaf.node.getFirstCube())
+                }
+                numRows += leaf.numTestInstances()
+            }
+            assertEquals(data.numInstances(), numRows)
+            assertEquals(ids(data), ids(pruningTree, pruning))
+        }
+    }
+
+    private static void collectSplitPoints(TreeOfBoxesNode node, List<Double> splitPoints) {
+        if (node.isLeaf())
+            return
+        splitPoints << node.model.splitPoint
+        for (TreeOfBoxesNode child in node.children)
+            collectSplitPoints(child, splitPoints)
+    }
+
+    private static void collectLeaves(PruningNode node, List<PruningNode> leaves) {
+        if (node.isLeaf()) {
+            leaves << node
+            return
+        }
+        for (PruningNode child in node.children)
+            collectLeaves(child, leaves)
+    }
+
+    private static Set<Integer> ids(Instances data) {
+        Set<Integer> result = new TreeSet<Integer>()
+        for (int i = 0; i < data.numInstances(); i++)
+            result << (int) data.instance(i).value(ID_INDEX)
+        return result
+    }
+
+    private static Set<Integer> ids(PruningNode node, Pruning pruning) {
+        Set<Integer> result = new TreeSet<Integer>()
+        for (int i = node.from; i < node.to; i++)
+            result << (int) pruning.instances[pruning.rowIndex[i]].value(ID_INDEX)
+        return result
+    }
+}
@@ -59,6 +59,12 @@ class RankedBoxesPruning {
         maxBoxesToKeep = results.getInt("PprunMaxBoxes")
     }
 
+    // With an explicit box budget, e.g. for capping intermediate box sets in the reducers
+    RankedBoxesPruning (BoxSet _boxes, int  _pruningParam, int _maxBoxesToKeep) {
+        this(_boxes, _pruningParam)
+        this.maxBoxesToKeep = _maxBoxesToKeep
+    }
+
 
     BoxSet filterBoxes() {
 
@@ -117,32 +123,21 @@ class RankedBoxesPruning {
             return false
     }
 
-    // For ranking boxes by # of instances inside
-    private final static Comparator<ClassCube> BoxByInstanceNumber_COMPARATOR = new Comparator<ClassCube>() {
-
-        int compare(ClassCube cubeA, ClassCube cubeB) {
-            return (cubeB.numInstances).compareTo(cubeA.numInstances)
-        }
-    }
-
     // Keep at most maxBoxesToKeep boxes which have highest number of instances
     def keepBoxesWithHighestNumInstances() {
 
         if (keepAllIfCollectionBelowLimit())
             return
 
-        // initialize the priority queue with default initial capacity
-        def rankedCubes = new PriorityQueue<ClassCube>(boxes.size(), BoxByInstanceNumber_COMPARATOR)
-        // put all boxes and rank them while adding
-        rankedCubes.addAll(boxes)
+        // rank the boxes while keeping only the best maxBoxesToKeep of them
+        def rankedCubes = new BoundedRanking<CubeMetrics>(maxBoxesToKeep, CubeMetrics.BY_NUM_INSTANCES)
+        int index = 0
+        for (box in boxes)
+            rankedCubes.offer(new CubeMetrics(box, index++))
 
-        // now get at most finalNumBoxes many out of rankedCubes, in order of #instances
-        for (i in 0..<maxBoxesToKeep) {
-            if (rankedCubes.empty)  // are any candidates there?
-                break
-            def nextBox = rankedCubes.poll()
-            out << nextBox
-        }
+        // at most finalNumBoxes many, in order of #instances
+        for (cubeWithMetrics in rankedCubes.toList())
+            out << cubeWithMetrics.inBox
     }
 
 
@@ -155,16 +150,18 @@ class RankedBoxesPruning {
         int minNumInstances = (pruningParam-30)+1
         assert minNumInstances >= 0, "Wrong encoding of minNumInstances via pruningParam (minNumInstances = $minNumInstances, pruningParam = $pruningParam)"
 
-        // assume that "out" is a list, and start removing from the end (lowest coverages per box)
+        // "out" is ranked only if boxes were dropped (otherwise it is in input order), so all of it is checked
         assert out instanceof List, "Field out should be of type List for this filtering method"
         List<ClassCube> outList = (List<ClassCube>) out
 
-        int lastIndex = outList.size()-1
-        while (lastIndex >= 0 && (outList[lastIndex]).numInstances < minNumInstances) {
-            outList.remove(lastIndex)
-            lastIndex--
+        int kept = 0
+        for (int i = 0; i < outList.size(); i++) {
+            if (outList[i].numInstances >= minNumInstances)
+                outList[kept++] = outList[i]
         }
-        // println "Keeping ${lastIndex+1} boxes"
+        while (outList.size() > kept)
+            outList.remove(outList.size() - 1)
+        // println "Keeping ${kept} boxes"
     }
 
     // Keep at most maxBoxesToKeep boxes which have highest relative volume or thickness, or class impurity ...
@@ -173,34 +170,32 @@ class RankedBoxesPruning {
         if (keepAllIfCollectionBelowLimit())
             return
 
-        List<CubeMetrics>  cubeMetrics
+        // rank the boxes while computing their metrics, keeping only the best maxBoxesToKeep of them
+        BoundedRanking<CubeMetrics> rankedCubes
         switch (sortCriterium) {
             case "relVolume":
-                cubeMetrics = computeRelVolumeAndThickness()
-                cubeMetrics.sort { - it.relVolume}      // sort from larger to smaller
+                rankedCubes = new BoundedRanking<CubeMetrics>(maxBoxesToKeep, CubeMetrics.BY_REL_VOLUME)   // larger first
+                computeRelVolumeAndThickness(rankedCubes)
                 break
             case "relThickness":
-                cubeMetrics = computeRelVolumeAndThickness()
-                cubeMetrics.sort {- it.relThickness}    // sort from larger to smaller
+                rankedCubes = new BoundedRanking<CubeMetrics>(maxBoxesToKeep, CubeMetrics.BY_REL_THICKNESS)    // larger first
+                computeRelVolumeAndThickness(rankedCubes)
                 break
             case "classImpurity":
-                cubeMetrics = computeAllClassImpurities()
-                cubeMetrics.sort { it.classImpurity}    // sort from smaller to larger
-                // printCubeMetricsContainer(cubeMetrics, 1000, 1)
+                rankedCubes = new BoundedRanking<CubeMetrics>(maxBoxesToKeep, CubeMetrics.BY_CLASS_IMPURITY)    // smaller first
+                computeAllClassImpurities(rankedCubes)
                 break
             default:
                 throw new IllegalArgumentException("Unknown sorting creterium $sortCriterium")
         }
 
-        // now get at most finalNumBoxes many out of rankedCubes, in order of decreasing criterion value
-        for (i in 0..<maxBoxesToKeep) {
-            def cubeWithMetrics = cubeMetrics[i]
+        // now get at most finalNumBoxes many, in order of decreasing criterion value
+        List<CubeMetrics> cubeMetrics = rankedCubes.toList()
+        for (cubeWithMetrics in cubeMetrics) {
             out << cubeWithMetrics.inBox
         }
         // debug
         // printCubeMetricsContainer(cubeMetrics, maxBoxesToKeep, 1)
-        // release the data
-        cubeMetrics = null
     }
 
 
@@ -223,7 +218,8 @@ class RankedBoxesPruning {
     }
 
     // Computes for each box in this.boxes its relative thickness and relative volume (each stored in CubeMetrics)
-    protected List<CubeMetrics> computeRelVolumeAndThickness() {
+    // and offers it to ranking
+    protected void computeRelVolumeAndThickness(BoundedRanking<CubeMetrics> ranking) {
         assert boxes.boundingBox != null, "Cannot compute rel thickness / rel volume as bounding box of box collections is null"
         Cube bb = boxes.boundingBox     // bb is the bounding box
         int nDims = bb.nDims
@@ -252,25 +248,58 @@ class RankedBoxesPruning {
             bbVolume *= range
 
         // iterate over all boxes and compute rel. thickness + rel. volume individually
-        List<CubeMetrics> result = new ArrayList<CubeMetrics>(boxes.size())
+        int index = 0
         for (ClassCube box in boxes) {
-            CubeMetrics cubeMetrics = new CubeMetrics(box)
+            CubeMetrics cubeMetrics = new CubeMetrics(box, index++)
             cubeMetrics.computeVolumeAndThickness(validDims, ranges, bbVolume, bb)
-            result << cubeMetrics
+            ranking.offer(cubeMetrics)
         }
-        return result
     }
 
-    // Computes for each box in this.boxes its classImpurity (each stored in CubeMetrics)
-    protected computeAllClassImpurities() {
+    // Computes for each box in this.boxes its classImpurity (each stored in CubeMetrics) and offers it to ranking
+    protected void computeAllClassImpurities(BoundedRanking<CubeMetrics> ranking) {
         // iterate over all boxes and compute relative impurity individually
-        List<CubeMetrics> result = new ArrayList<CubeMetrics>(boxes.size())
+        int index = 0
         for (ClassCube box in boxes) {
-            CubeMetrics cubeMetrics = new CubeMetrics(box)
+            CubeMetrics cubeMetrics = new CubeMetrics(box, index++)
             cubeMetrics.computeClassImpurity()
-            result << cubeMetrics
+            ranking.offer(cubeMetrics)
+        }
+    }
+
+    /**
+     * Keeps the best (at most) maxSize of the offered elements, in O(log maxSize) per offer and O(maxSize) memory:
+     * a heap with the worst kept element at its head, replaced whenever a better one is offered.
+     * The comparator orders better elements first.
+     */
+    static class BoundedRanking<T> {
+        private final int maxSize
+        private final Comparator<T> betterFirst
+        private final PriorityQueue<T> heap
+
+        BoundedRanking(int maxSize, Comparator<T> betterFirst) {
+            this.maxSize = maxSize
+            this.betterFirst = betterFirst
+            heap = new PriorityQueue<T>(Math.max(1, maxSize), Collections.reverseOrder(betterFirst))
+        }
+
+        void offer(T element) {
+            if (heap.size() < maxSize) {
+                heap.add(element)
+            } else if (maxSize > 0 && betterFirst.compare(element, heap.peek()) < 0) {
+                heap.poll()
+                heap.add(element)
+            }
+        }
+
+        // The kept elements, best first (empties the ranking)
+        List<T> toList() {
+            List<T> result = new ArrayList<T>(heap.size())
+            while (!heap.isEmpty())
+                result << heap.poll()
+            Collections.reverse(result)
+            return result
         }
-        return result
     }
 
 }
@@ -292,9 +321,42 @@ private class CubeMetrics {
     // reference to the described object
     ClassCube inBox
 
+    // position of inBox in the ranked collection, breaks ties (as a stable sort would)
+    int index
+
     // constructor
-    def CubeMetrics (ClassCube _inBox) {
+    def CubeMetrics (ClassCube _inBox, int _index) {
         this.inBox = _inBox
+        this.index = _index
+    }
+
+    // Orderings for the ranking, better boxes first
+    static final Comparator<CubeMetrics> BY_NUM_INSTANCES = new Comparator<CubeMetrics>() {
+        int compare(CubeMetrics a, CubeMetrics b) {
+            int result = (b.inBox.numInstances).compareTo(a.inBox.numInstances)
+            return (result != 0) ? result : a.index - b.index
+        }
+    }
+
+    static final Comparator<CubeMetrics> BY_REL_VOLUME = new Comparator<CubeMetrics>() {
+        int compare(CubeMetrics a, CubeMetrics b) {
+            int result = Double.compare(b.relVolume, a.relVolume)
+            return (result != 0) ? result : a.index - b.index
+        }
+    }
+
+    static final Comparator<CubeMetrics> BY_REL_THICKNESS = new Comparator<CubeMetrics>() {
+        int compare(CubeMetrics a, CubeMetrics b) {
+            int result = Double.compare(b.relThickness, a.relThickness)
+            return (result != 0) ? result : a.index - b.index
+        }
+    }
+
+    static final Comparator<CubeMetrics> BY_CLASS_IMPURITY = new Comparator<CubeMetrics>() {
+        int compare(CubeMetrics a, CubeMetrics b) {
+            int result = Double.compare(a.classImpurity, b.classImpurity)
+            return (result != 0) ? result : a.index - b.index
+        }
     }
 
     // computes and stores relative thickness and relative volume of the referenced inBox
@@ -0,0 +1,126 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package trees
+
+import cubes.BoxSet
+import cubes.ClassCube
+import cubes.Cube
+import edu.pvs.batchrunner.ExperimentResult
+import experiment.ExperimentResultSingletonHolder
+
+class RankedBoxesPruningTest extends GroovyTestCase {
+
+    static final int N_BOXES = 60
+
+    static final List<double[]> DISTRIBUTIONS = [[1.0, 0.0] as double[], [0.5, 0.5] as double[], [0.75, 0.25] as double[],
+            [0.25, 0.75] as double[]]
+
+    private ExperimentResult oldResults
+
+    void setUp() {
+        oldResults = ExperimentResultSingletonHolder.getInstance()
+        def results = new ExperimentResult("")
+        results.put("PprunMaxBoxes", "0")
+        ExperimentResultSingletonHolder.setInstance(results)
+    }
+
+    void tearDown() {
+        ExperimentResultSingletonHolder.setInstance(oldResults)
+    }
+
+    // Boxes with bounds on the grid 0, 1, ..., 4 (the bounding box), few instances and few class distributions, so
+    // that every criterion has many ties
+    private static BoxSet randomBoxes(Random random) {
+        BoxSet boxes = new BoxSet()
+        for (int i = 0; i < N_BOXES; i++) {
+            def cube = new ClassCube(2)
+            for (int dim = 0; dim < 2; dim++) {
+                int lower = random.nextInt(4)
+                cube.setBounds(dim, lower, lower + 1 + random.nextInt(4 - lower))
+            }
+            cube.numInstances = random.nextInt(6)
+            double[] distribution = DISTRIBUTIONS[random.nextInt(DISTRIBUTIONS.size())]
+            cube.setClassProbDistribution((double[]) distribution.clone())
+            boxes << cube
+        }
+        boxes.boundingBox = new Cube(2)
+        for (int dim = 0; dim < 2; dim++)
+            boxes.boundingBox.setBounds(dim, 0.0, 4.0)
+        return boxes
+    }
+
+    // The value by which pruningParam ranks a box, smaller is better
+    private static double key(int pruningParam, ClassCube box) {
+        double range0 = box.getUpper(0) - box.getLower(0)
+        double range1 = box.getUpper(1) - box.getLower(1)
+        switch (pruningParam.intdiv(100)) {
+            case 0:
+                return -box.numInstances
+            case 1:
+                return -Math.min(range0 / 4.0, range1 / 4.0)
+            case 2:
+                return -(range0 * range1 / 16.0)
+            default:
+                def metrics = new CubeMetrics(box, 0)
+                metrics.computeClassImpurity()
+                return metrics.classImpurity
+        }
+    }
+
+    // The best maxBoxesToKeep boxes by a full stable sort, without those with too few instances for 30..39
+    private static List<ClassCube> expected(BoxSet boxes, int pruningParam, int maxBoxesToKeep) {
+        List<ClassCube> sorted = new ArrayList<ClassCube>(boxes)
+        Collections.sort(sorted, { ClassCube a, ClassCube b -> Double.compare(key(pruningParam, a), key(pruningParam, b)) } as Comparator)
+        List<ClassCube> result = new ArrayList<ClassCube>(sorted.subList(0, Math.min(maxBoxesToKeep, sorted.size())))
+        if (pruningParam >= 30 && pruningParam < 40)
+            result = result.findAll { it.numInstances >= pruningParam - 30 + 1 }
+        return result
+    }
+
+    private static List<Integer> identities(Collection<ClassCube> boxes) {
+        return boxes.collect { System.identityHashCode(it) }
+    }
+
+    void testFilterBoxesAsStableSort() {
+        def random = new Random(11)
+        for (int round = 0; round < 5; round++) {
+            BoxSet boxes = randomBoxes(random)
+            for (pruningParam in [20, 30, 32, 34, 100, 200, 300]) {
+                for (maxBoxesToKeep in [0, 1, N_BOXES.intdiv(3), N_BOXES - 1, N_BOXES, N_BOXES + 5]) {
+                    String message = "pruningParam $pruningParam, maxBoxesToKeep $maxBoxesToKeep"
+                    List<ClassCube> expected = expected(boxes, pruningParam, maxBoxesToKeep)
+                    BoxSet filtered = new RankedBoxesPruning(boxes, pruningParam, maxBoxesToKeep).filterBoxes()
+                    if (maxBoxesToKeep < boxes.size()) {
+                        assertEquals(message, identities(expected), identities(filtered))
+                    } else {
+                        // all boxes fit, they are kept in input order
+                        assertEquals(message, identities(expected).sort(), identities(filtered).sort())
+                    }
+                }
+            }
+            assertEquals(N_BOXES, boxes.size())
+        }
+    }
+}
@@ -25,10 +25,7 @@
 package trees
 
 import cubes.ClassCube
-import cubes.Cube
 import groovy.util.logging.Log
-import weka.classifiers.trees.j48.Distribution
-import weka.classifiers.trees.j48.GainRatioSplitCrit
 
 /**
  * Created by: Artur Andrzejak 
@@ -36,21 +33,33 @@ import weka.classifiers.trees.j48.GainRatioSplitCrit
  * Time: 19:13
  * Base class for splitpoint optimization at scanning one dimension of a cube collection. Methods are called 
  * by a scanner such as in trees.NodeModel#scanBoxesOneDim(int)
+ * The criteria are updated incrementally from counters as boxes enter and leave the active set, so that the scan
+ * allocates nothing per cutpoint; the best active set is not recorded.
  */
 @Log @Typed
 abstract class SplitOptimizer {
 
     // Types of optimization criteria when searching for the best split:
     // MIN_NUM_SPLITS: min number of cuts through other cubes by a hyperplane spanned by a boundary (set by splitpoint X a dim)
-    // INFO_GAIN: information gain (without weighting of cube size or original # of instances there
+    // INFO_GAIN: information gain (without weighting of cube size or original # of instances there), normalized as
+    //      the gain ratio (as weka.classifiers.trees.j48.GainRatioSplitCrit)
+    // PLAIN_INFO_GAIN: information gain without normalization (as weka.classifiers.trees.j48.InfoGainSplitCrit)
+    // GINI: weighted Gini impurity of the boxes below and above the splitpoint
+    // APPROX_*: as the criterion without the prefix, but for nodes with many boxes only quantiles of the box boundaries
+    //      are evaluated as cutpoints (see trees.NodeModel#scanBoxesOneDimApprox)
     // others: not implemented yet
-    static enum SplitSearchType { /* default */ MIN_NUM_SPLITS, INFO_GAIN, INFO_GAIN_WEIGHTED_BY_INSTANCE_NUM
+    static enum SplitSearchType { /* default */ MIN_NUM_SPLITS, INFO_GAIN, INFO_GAIN_WEIGHTED_BY_INSTANCE_NUM,
+        PLAIN_INFO_GAIN, GINI, APPROX_MIN_NUM_SPLITS, APPROX_INFO_GAIN, APPROX_GINI
     }
 
+    static boolean isApproximate(SplitSearchType strategyType) {
+        return strategyType == SplitSearchType.APPROX_MIN_NUM_SPLITS || strategyType == SplitSearchType.APPROX_INFO_GAIN ||
+                strategyType == SplitSearchType.APPROX_GINI
+    }
 
-    def HashSet<Cube> activeSet = new HashSet<Cube>()
 
-    def List<Cube> bestActiveSet
+    // Number of boxes in the active set, i.e. cut by the current cutpoint
+    int numActive
 
     double bestCutpoint = Double.NaN
 
@@ -61,14 +70,13 @@ abstract class SplitOptimizer {
     int numBags = -1
     int numClasses = -1
 
-    // for InfoGainOptimizer only
+    // for the class-based optimizers only
     int[] classFrequenciesBounded
 
     def reset(int newNumUnbounded = -1, int[] newClassFrequenciesBounded = null) {
         bestCutpoint = Double.NaN
         minCriterionValue = Double.MAX_VALUE
-        bestActiveSet = null
-        activeSet.clear()
+        numActive = 0
         this.numUnbounded = newNumUnbounded
         this.classFrequenciesBounded = newClassFrequenciesBounded
     }
@@ -79,21 +87,22 @@ abstract class SplitOptimizer {
      */
 
     def addStartingBoxes(List<ClassCube> starting) {
-        activeSet.addAll starting
+        numActive += starting.size()
     }
 
     def removeEndingBoxes(List<ClassCube> ending) {
-        // Changed because java's java.util.AbstractSet.removeAll is implemented inefficiently:
-        // if ending (a list) is larger than activeSet (should not be!), each element of activeSet is scanned in ending
-        //  => (linear search in ending)*(activeSet.size())
-        // activeSet.removeAll ending
-        int before = activeSet.size()
-        for (ClassCube cube in ending) {
-            activeSet.remove(cube)
-        }
-        int after = activeSet.size()
         int endingSize = ending.size()
-        assert endingSize <= before, "Anomaly at optimizer: removing ending boxes. activeSet (before, after) = $before, $after; #ending = ${ending.size()}"
+        assert endingSize <= numActive, "Anomaly at optimizer: removing ending boxes. #active = $numActive; #ending = $endingSize"
+        numActive -= endingSize
+    }
+
+    // Single-box variants of addStartingBoxes() and removeEndingBoxes() for scans over the columnar class indices
+    void addStartingBox(int classIndex) {
+        numActive++
+    }
+
+    void removeEndingBox(int classIndex) {
+        numActive--
     }
 
     def testForNewOptimum(double cutpoint) {
@@ -103,7 +112,6 @@ abstract class SplitOptimizer {
     protected setNewMinimum(double newCriterionValue, double cutpoint) {
         minCriterionValue = newCriterionValue
         bestCutpoint = cutpoint
-        bestActiveSet = new ArrayList<Cube>(activeSet)   // don't need deep clone here
     }
 
 
@@ -111,10 +119,6 @@ abstract class SplitOptimizer {
         return bestCutpoint
     }
 
-    def List<Cube> getBestActiveSet() {
-        return bestActiveSet
-    }
-
     def double getMinCriterionResult() {
         return minCriterionValue
     }
@@ -126,13 +130,24 @@ abstract class SplitOptimizer {
         switch (strategyType) {
 
             case SplitOptimizer.SplitSearchType.MIN_NUM_SPLITS:
+            case SplitOptimizer.SplitSearchType.APPROX_MIN_NUM_SPLITS:
                 optimizer = new SplitOptimizer.MinSplitCubesOptimizer()
                 break
 
             case SplitSearchType.INFO_GAIN:
+            case SplitSearchType.APPROX_INFO_GAIN:
                 optimizer = new SplitOptimizer.InfoGainOptimizer()
                 break
 
+            case SplitSearchType.PLAIN_INFO_GAIN:
+                optimizer = new SplitOptimizer.PlainInfoGainOptimizer()
+                break
+
+            case SplitSearchType.GINI:
+            case SplitSearchType.APPROX_GINI:
+                optimizer = new SplitOptimizer.GiniOptimizer()
+                break
+
             case SplitSearchType.INFO_GAIN_WEIGHTED_BY_INSTANCE_NUM:
                 throw new UnsupportedOperationException("TODO: INFO_GAIN_WEIGHTED_BY_INSTANCE_NUM")
                 break
@@ -152,7 +167,7 @@ abstract class SplitOptimizer {
 
         @Override
         def testForNewOptimum(double cutpoint) {
-            int currentIntersectionSize = activeSet.size()
+            int currentIntersectionSize = numActive
             if (minCriterionValue > currentIntersectionSize) {
                 setNewMinimum(currentIntersectionSize, cutpoint)
             }
@@ -164,78 +179,215 @@ abstract class SplitOptimizer {
         }
     }
 
-    // Implements following splitpoint search strategy of trees.NodeModel.SplitSearchType
-    // INFO_GAIN: information gain (without weighting of cube size or original # of instances there
-    @Typed static class InfoGainOptimizer extends SplitOptimizer {
-        // minCriterionValue = reciprocal of InfoGain
+    /**
+     * Base for criteria computed from the class frequencies of the boxes below and above the cutpoint. The counts are
+     * updated as boxes start and end; boxes of the active set count for both bags.
+     */
+    @Typed static abstract class ClassCountingOptimizer extends SplitOptimizer {
 
         // perBagPerClass[bagIndex][classIndex] - as in j48.Distribution.Distribution(double [][] table)
         // perBagPerClass[0] is the class freq. distribution for lower part (left or below the splitpoint)
         // perBagPerClass[1] is the class freq. distribution for upper part (right or above the splitpoint)
-        double[][] perBagPerClass
-
-        // We use weka.classifiers.trees.j48.GainRatioSplitCrit.splitCritValue(Distribution bags) to compute info gain
-        static GainRatioSplitCrit splitCriterionTool = new GainRatioSplitCrit()
-
-        // We created Distribution via constructor weka.classifiers.trees.j48.Distribution.Distribution(double [][] table)
-        // where obviously (analysed from code): perBagPerClass[bagIndex][classIndex]
-        // optimize this later by computing InfoGain "in place"
-        protected double computeInfoGain() {
-            // 1. Set up instance -
-            Distribution dist = new Distribution(perBagPerClass)
-            return splitCriterionTool.splitCritValue(dist)
-        }
+        int[][] perBagPerClass
+        int[] perBag
 
-        private setUpData() {
+        private void setUpData() {
             if (perBagPerClass == null) {
-                assert numBags > 0, "numBags must be set before using InfoGainOptimizer"
-                assert numClasses > 0, "numClasses must be set before using InfoGainOptimizer"
-                perBagPerClass = new double[numBags][numClasses]
+                assert numBags > 0, "numBags must be set before using a class-based SplitOptimizer"
+                assert numClasses > 0, "numClasses must be set before using a class-based SplitOptimizer"
+                perBagPerClass = new int[numBags][numClasses]
+                perBag = new int[numBags]
             }
         }
 
         @Override
         def reset(int newNumUnbounded, int[] newClassFrequenciesBounded) {
             super.reset(newNumUnbounded, newClassFrequenciesBounded)
-            perBagPerClass = null
             setUpData()
-            // we need to copy classFrequenciesBounded  to perBagPerClass[1] because at first all boxes are above current cutpoint
-            perBagPerClass[1] = (double[]) classFrequenciesBounded
+            for (int bag = 0; bag < numBags; bag++) {
+                Arrays.fill(perBagPerClass[bag], 0)
+                perBag[bag] = 0
+            }
+            // at first all boxes are above current cutpoint
+            for (int j = 0; j < numClasses; j++) {
+                perBagPerClass[1][j] = classFrequenciesBounded[j]
+                perBag[1] += classFrequenciesBounded[j]
+            }
         }
 
         def addStartingBoxes(List<ClassCube> starting) {
-            activeSet.addAll starting
+            super.addStartingBoxes(starting)
             // add classFreq to perBagPerClass[0] (the staring boxes are now left and right of splitpoint)
-            countFrequenciesAndUpdate(starting, perBagPerClass[0], +1)
+            countFrequenciesAndUpdate(starting, 0, +1)
         }
 
         def removeEndingBoxes(List<ClassCube> ending) {
-            activeSet.removeAll ending
+            super.removeEndingBoxes(ending)
             // remove classFreq count from perBagPerClass[1] (the ending boxes are transferred left of splitpoint)
-            countFrequenciesAndUpdate(ending, perBagPerClass[1], -1)
+            countFrequenciesAndUpdate(ending, 1, -1)
+        }
+
+        @Override
+        void addStartingBox(int classIndex) {
+            super.addStartingBox(classIndex)
+            perBagPerClass[0][classIndex]++
+            perBag[0]++
         }
 
-        def countFrequenciesAndUpdate(List<ClassCube> boxList, double[] targetArray, int posOrNegCount) {
-            for (cube in boxList) {
-                int classIndex = (int) cube.getClassValue()
+        @Override
+        void removeEndingBox(int classIndex) {
+            super.removeEndingBox(classIndex)
+            perBagPerClass[1][classIndex]--
+            perBag[1]--
+        }
+
+        private void countFrequenciesAndUpdate(List<ClassCube> boxList, int bag, int posOrNegCount) {
+            int[] targetArray = perBagPerClass[bag]
+            for (int i = 0; i < boxList.size(); i++) {
+                int classIndex = (int) boxList.get(i).getClassValue()
                 targetArray[classIndex] += posOrNegCount
             }
+            perBag[bag] += posOrNegCount * boxList.size()
         }
 
+        // The criterion (lower is better) for the current counts
+        protected abstract double computeCriterion()
+
         @Override
         def testForNewOptimum(double cutpoint) {
-            double currentInfoGainReciprocal = computeInfoGain()
-            // debug
-            // println "InfoGain found: $currentInfoGainReciprocal"
+            double currentCriterion = computeCriterion()
+            if (minCriterionValue > currentCriterion) {
+                // new minimum found
+                setNewMinimum(currentCriterion, cutpoint)
+            }
+        }
+    }
+
+    /**
+     * Base for the entropy-based criteria: the terms of weka.classifiers.trees.j48.EntropyBasedSplitCrit, summed in
+     * the same order as there (so results are identical), with n*log2(n) of the integer counts taken from a table
+     */
+    @Typed static abstract class EntropyOptimizer extends ClassCountingOptimizer {
+
+        // nLog2n[n] = n * log2(n), as EntropyBasedSplitCrit.logFunc(n)
+        private double[] nLog2n = new double[0]
+
+        private static final double log2 = Math.log(2)
+
+        @Override
+        def reset(int newNumUnbounded, int[] newClassFrequenciesBounded) {
+            super.reset(newNumUnbounded, newClassFrequenciesBounded)
+            // both bags together count each box at most twice
+            int maxCount = 2 * perBag[1]
+            if (nLog2n.length <= maxCount) {
+                int oldLength = nLog2n.length
+                nLog2n = Arrays.copyOf(nLog2n, maxCount + 1)
+                for (int n = Math.max(1, oldLength); n <= maxCount; n++)
+                    nLog2n[n] = n * Math.log(n) / log2
+            }
+        }
+
+        // EntropyBasedSplitCrit.oldEnt
+        protected double oldEnt(int total) {
+            double returnValue = 0
+            for (int j = 0; j < numClasses; j++)
+                returnValue = returnValue + nLog2n[perBagPerClass[0][j] + perBagPerClass[1][j]]
+            return nLog2n[total] - returnValue
+        }
+
+        // EntropyBasedSplitCrit.newEnt
+        protected double newEnt() {
+            double returnValue = 0
+            for (int i = 0; i < numBags; i++) {
+                int[] perClass = perBagPerClass[i]
+                for (int j = 0; j < numClasses; j++)
+                    returnValue = returnValue + nLog2n[perClass[j]]
+                returnValue = returnValue - nLog2n[perBag[i]]
+            }
+            return -returnValue
+        }
+
+        // EntropyBasedSplitCrit.splitEnt
+        protected double splitEnt(int total) {
+            double returnValue = 0
+            for (int i = 0; i < numBags; i++)
+                returnValue = returnValue + nLog2n[perBag[i]]
+            return nLog2n[total] - returnValue
+        }
+
+        protected int total() {
+            int total = 0
+            for (int i = 0; i < numBags; i++)
+                total += perBag[i]
+            return total
+        }
+
+        // as weka.core.Utils.eq
+        protected static boolean eq(double a, double b) {
+            return (a - b < 1e-6) && (b - a < 1e-6)
+        }
+    }
+
+    // Implements following splitpoint search strategy of trees.NodeModel.SplitSearchType
+    // INFO_GAIN: information gain (without weighting of cube size or original # of instances there
+    @Typed static class InfoGainOptimizer extends EntropyOptimizer {
+        // minCriterionValue = reciprocal of the gain ratio, as GainRatioSplitCrit.splitCritValue(Distribution)
+
+        @Override
+        protected double computeCriterion() {
+            int total = total()
+            double numerator = oldEnt(total) - newEnt()
+            // Splits with no gain are useless.
+            double currentInfoGainReciprocal = Double.MAX_VALUE
+            if (!eq(numerator, 0)) {
+                double denumerator = splitEnt(total)
+                // Test if split is trivial.
+                if (!eq(denumerator, 0))
+                    currentInfoGainReciprocal = denumerator / numerator
+            }
             if (currentInfoGainReciprocal == Double.MAX_VALUE) {
                 log.fine("InfoGain of value Double.MAX_VALUE found: boxes below and above splitpoint have same classes. Use cubes.JoinAdjacentCubes before building tree (perBagPerClass = $perBagPerClass)")
                 currentInfoGainReciprocal /= 2
             }
-            if (minCriterionValue > currentInfoGainReciprocal) {
-                // new minimum found
-                setNewMinimum(currentInfoGainReciprocal, cutpoint)
-            }
+            return currentInfoGainReciprocal
+        }
+    }
 
+    // PLAIN_INFO_GAIN: information gain without the normalization by the split entropy
+    @Typed static class PlainInfoGainOptimizer extends EntropyOptimizer {
+        // minCriterionValue = total / InfoGain, as InfoGainSplitCrit.splitCritValue(Distribution)
+
+        @Override
+        protected double computeCriterion() {
+            int total = total()
+            double numerator = oldEnt(total) - newEnt()
+            // Splits with no gain are useless (but better than none, see InfoGainOptimizer)
+            if (eq(numerator, 0))
+                return Double.MAX_VALUE / 2
+            return total / numerator
+        }
+    }
+
+    // GINI: weighted Gini impurity sum_bags (n_bag / n) * (1 - sum_classes (n_bag,class / n_bag)^2)
+    @Typed static class GiniOptimizer extends ClassCountingOptimizer {
+
+        @Override
+        protected double computeCriterion() {
+            double total = 0
+            double weightedImpurity = 0
+            for (int i = 0; i < numBags; i++) {
+                int bagCount = perBag[i]
+                if (bagCount == 0)
+                    continue
+                int[] perClass = perBagPerClass[i]
+                double sumOfSquares = 0
+                for (int j = 0; j < numClasses; j++)
+                    sumOfSquares += ((double) perClass[j]) * perClass[j]
+                // n_bag * (1 - sum (n_bag,class / n_bag)^2)
+                weightedImpurity += bagCount - sumOfSquares / bagCount
+                total += bagCount
+            }
+            return (total > 0) ? weightedImpurity / total : Double.MAX_VALUE / 2
         }
     }
 
@@ -0,0 +1,153 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package trees
+
+import cubes.ClassCube
+import weka.classifiers.trees.j48.Distribution
+import weka.classifiers.trees.j48.GainRatioSplitCrit
+import weka.classifiers.trees.j48.InfoGainSplitCrit
+
+class SplitOptimizerTest extends GroovyTestCase {
+
+    /**
+     * Brings optimizer (after reset) to the counts of a scan position via the single-box updates: per class,
+     * ended[c] boxes lie below the cutpoint, active[c] boxes are cut by it, the others of numBoxes[c] lie above.
+     * Returns the table perBag x perClass as in weka.classifiers.trees.j48.Distribution.
+     */
+    private static double[][] scanTo(SplitOptimizer optimizer, int[] numBoxes, int[] ended, int[] active) {
+        int numClasses = numBoxes.length
+        optimizer.reset(0, numBoxes.clone())
+        double[][] table = new double[2][numClasses]
+        for (int c = 0; c < numClasses; c++) {
+            for (int i = 0; i < ended[c]; i++) {
+                optimizer.addStartingBox(c)
+                optimizer.removeEndingBox(c)
+            }
+            for (int i = 0; i < active[c]; i++)
+                optimizer.addStartingBox(c)
+            table[0][c] = ended[c] + active[c]
+            table[1][c] = numBoxes[c] - ended[c]
+        }
+        return table
+    }
+
+    // Compares the criterion of type with expected(table) at random scan positions
+    private static void checkCriterion(SplitOptimizer.SplitSearchType type, Closure<Double> expected) {
+        def random = new Random(type.ordinal())
+        for (int round = 0; round < 500; round++) {
+            int numClasses = 2 + random.nextInt(3)
+            def optimizer = (SplitOptimizer.ClassCountingOptimizer) SplitOptimizer.create(type, 2, numClasses)
+            int[] numBoxes = new int[numClasses]
+            int[] ended = new int[numClasses]
+            int[] active = new int[numClasses]
+            for (int c = 0; c < numClasses; c++) {
+                // some classes without boxes, and scan positions at the start and end of the boxes
+                numBoxes[c] = random.nextInt(4) == 0 ? 0 : random.nextInt(30)
+                ended[c] = random.nextInt(5) == 0 ? 0 : random.nextInt(numBoxes[c] + 1)
+                active[c] = random.nextInt(numBoxes[c] - ended[c] + 1)
+            }
+            double[][] table = scanTo(optimizer, numBoxes, ended, active)
+            assertEquals("counts $table", expected.call(table), optimizer.computeCriterion(), 1e-9)
+        }
+    }
+
+    // Weka returns Double.MAX_VALUE for splits without gain, the optimizers half of it (better than no split)
+    private static double asOptimizer(double wekaValue) {
+        return (wekaValue == Double.MAX_VALUE) ? Double.MAX_VALUE / 2 : wekaValue
+    }
+
+    void testInfoGainAsGainRatioSplitCrit() {
+        checkCriterion(SplitOptimizer.SplitSearchType.INFO_GAIN) { double[][] table ->
+            asOptimizer(new GainRatioSplitCrit().splitCritValue(new Distribution(table)))
+        }
+    }
+
+    void testPlainInfoGainAsInfoGainSplitCrit() {
+        checkCriterion(SplitOptimizer.SplitSearchType.PLAIN_INFO_GAIN) { double[][] table ->
+            asOptimizer(new InfoGainSplitCrit().splitCritValue(new Distribution(table)))
+        }
+    }
+
+    void testGiniFromScratch() {
+        checkCriterion(SplitOptimizer.SplitSearchType.GINI) { double[][] table ->
+            double total = 0
+            for (bag in table)
+                total += sum(bag)
+            if (total == 0)
+                return Double.MAX_VALUE / 2
+            double gini = 0
+            for (bag in table) {
+                double bagCount = sum(bag)
+                if (bagCount == 0)
+                    continue
+                double impurity = 1
+                for (count in bag)
+                    impurity -= (count / bagCount) * (count / bagCount)
+                gini += bagCount / total * impurity
+            }
+            return gini
+        }
+    }
+
+    private static double sum(double[] values) {
+        double result = 0
+        for (value in values)
+            result += value
+        return result
+    }
+
+    // The criteria after a scan of boxes (list updates) equal those after the single-box updates
+    void testBoxListUpdatesAsSingleBoxUpdates() {
+        for (type in [SplitOptimizer.SplitSearchType.INFO_GAIN, SplitOptimizer.SplitSearchType.GINI]) {
+            int numClasses = 3
+            int[] numBoxes = [12, 7, 20] as int[]
+            int[] ended = [5, 0, 9] as int[]
+            int[] active = [4, 7, 1] as int[]
+            def single = (SplitOptimizer.ClassCountingOptimizer) SplitOptimizer.create(type, 2, numClasses)
+            scanTo(single, numBoxes, ended, active)
+
+            def lists = (SplitOptimizer.ClassCountingOptimizer) SplitOptimizer.create(type, 2, numClasses)
+            lists.reset(0, numBoxes.clone())
+            for (int c = 0; c < numClasses; c++) {
+                List<ClassCube> endedBoxes = boxesOfClass(c, ended[c])
+                lists.addStartingBoxes(endedBoxes)
+                lists.removeEndingBoxes(endedBoxes)
+                lists.addStartingBoxes(boxesOfClass(c, active[c]))
+            }
+            assertEquals(single.computeCriterion(), lists.computeCriterion())
+            assertEquals(single.numActive, lists.numActive)
+        }
+    }
+
+    private static List<ClassCube> boxesOfClass(int classIndex, int numBoxes) {
+        List<ClassCube> boxes = []
+        for (int i = 0; i < numBoxes; i++) {
+            def box = new ClassCube(1)
+            box.setClassValue(classIndex)
+            boxes << box
+        }
+        return boxes
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ Copyright (c) 2013 by Artur Andrzejak <arturuni@gmail.com>, Felix Langner, Silvestre Zabala
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+
+
+ */
+
+package trees
+
+import edu.pvs.batchrunner.ExperimentResult
+import experiment.ExecutionBackend
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinWorkerThread
+
+/**
+ * Settings and statistics of a single tree build (replaces the former statics NodeModel.MAX_DEPTH,
+ * NodeModel.MAX_CUBES_FOR_LEAF and TreeOfBoxesNode.treeStatistics), so that several trees can be built concurrently.
+ * All nodes of a tree share the context of their root.
+ * If parallelism > 0, nodes with at least parallelMinBoxes boxes scan their dimensions concurrently and build their
+ * children as fork-join subtasks (see TreeOfBoxesNode.buildTree and NodeModel.computeSplit)
+ */
+@Typed
+class TreeBuildContext {
+
+    // Max number of cubes in a leaf, important for deciding whether leaf or not
+    int maxCubesForLeaf = 1
+
+    int maxDepth = Integer.MAX_VALUE
+
+    // Worker threads for parallel tree building, 0 = sequential build
+    int parallelism = 0
+
+    // Min. number of boxes of a node to be processed in parallel (smaller subtrees are built sequentially)
+    int parallelMinBoxes = 2000
+
+    // Statistics of the build, reset when building starts at the root
+    volatile TreeOfBoxesNode.TreeStatistics treeStatistics = new TreeOfBoxesNode.TreeStatistics()
+
+    // Fork-join pools shared by all builds with the same parallelism
+    private static final Map<Integer, ForkJoinPool> sharedPools = new HashMap<Integer, ForkJoinPool>()
+
+    // The workers of the shared pools are daemon threads, so that the (never idle-closed) pools do not keep the JVM alive
+    private static final ForkJoinPool.ForkJoinWorkerThreadFactory DAEMON_THREAD_FACTORY = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+        ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool)
+            thread.setDaemon(true)
+            return thread
+        }
+    }
+
+    // A context with settings from experimentResult (parameters PtreeThreads, PtreeParMinBoxes), defaults if null
+    static TreeBuildContext create(ExperimentResult experimentResult) {
+        def context = new TreeBuildContext()
+        if (experimentResult && experimentResult.PtreeThreads)
+            context.parallelism = experimentResult.getInt("PtreeThreads")
+        if (experimentResult && experimentResult.PtreeParMinBoxes)
+            context.parallelMinBoxes = experimentResult.getInt("PtreeParMinBoxes")
+        return context
+    }
+
+    boolean isParallel() {
+        return parallelism > 0
+    }
+
+    // True if a node with numBoxes boxes should be processed in parallel
+    boolean isParallelFor(int numBoxes) {
+        return parallelism > 0 && numBoxes >= parallelMinBoxes
+    }
+
+    // The pool of the execution backend if it is a fork-join pool (nested parallelism composes), otherwise an own pool
+    ForkJoinPool getPool() {
+        assert parallelism > 0, "No fork-join pool for a sequential tree build"
+        if (ExecutionBackend.isForkJoin())
+            return ExecutionBackend.getForkJoinPool()
+        synchronized (sharedPools) {
+            ForkJoinPool pool = sharedPools.get(parallelism)
+            if (pool == null) {
+                pool = new ForkJoinPool(parallelism, DAEMON_THREAD_FACTORY, null, false)
+                sharedPools.put(parallelism, pool)
+            }
+            return pool
+        }
+    }
+
+    /** Shuts down the shared pools (running builds complete); later builds create new ones */
+    static void shutdownSharedPools() {
+        synchronized (sharedPools) {
+            for (ForkJoinPool pool in sharedPools.values())
+                pool.shutdown()
+            sharedPools.clear()
+        }
+    }
+
+    void resetStatistics() {
+        treeStatistics = new TreeOfBoxesNode.TreeStatistics()
+    }
+}
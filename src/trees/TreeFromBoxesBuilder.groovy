@@ -24,10 +24,12 @@
 
 package trees
 
+import experiment.InstancesView
 import experiment.Tools
 import groovy.util.logging.Log
 import weka.core.Instances
 import cubes.BoxSet
+import cubes.ClassCube
 import cubes.Cube
 import experiment.PerfUtils
 import edu.pvs.batchrunner.ExperimentResult
@@ -54,23 +56,25 @@ abstract class TreeFromBoxesBuilder {
     // Should cubes for which there are no samples in the pruning data be pruned?
     private final boolean pruneUntestableLeaves
 
-    private final Instances pruningData
+    private final InstancesView pruningData
 
     // Type of pruning
     private final int pruningParam
 
+    // Settings and statistics of this build (shared by all nodes of the tree)
+    protected final TreeBuildContext context
+
     // abstract constructor to initialize the builder - only used internally
-    protected TreeFromBoxesBuilder(BoxSet _boxSet, Instances _pruningData, int _pruningParam) {
+    protected TreeFromBoxesBuilder(BoxSet _boxSet, InstancesView _pruningData, int _pruningParam) {
         this.boxes = _boxSet
         this.boundingBox = _boxSet.boundingBox
         this.pruneUntestableLeaves = (_pruningParam == 2)
         this.pruningData = _pruningData
         this.pruningParam = _pruningParam
 
-        root = new TreeOfBoxesNode(_boxSet)
+        this.context = TreeBuildContext.create(ExperimentResultSingletonHolder.getInstance())
+        root = new TreeOfBoxesNode(_boxSet, context)
         isPruningDataAvail = (_pruningData != null)
-        NodeModel.MAX_DEPTH = Integer.MAX_VALUE
-        NodeModel.MAX_CUBES_FOR_LEAF = 1
 
         // log.info("""${this.class.getSimpleName()} building tree from ${boxes.size()} cubes (hash ${Tools.getHashSum(boxes)}).""")
     }
@@ -83,16 +87,17 @@ abstract class TreeFromBoxesBuilder {
         return root
     }
 
-    // returns a BoxSet with the boxes of the root and the *original* boundingBox
+    // returns a BoxSet with the boxes of the root, the *original* boundingBox and the tree as sourceTree
     BoxSet getBoxSet() {
         BoxSet result = new BoxSet(root.getBoxSet())
         result.boundingBox = this.boundingBox
+        result.sourceTree = root.toBoxTree()
         return result
     }
 
     // A static "constructor" method
     // todo: fix the parameter passing and calling the abstract constructor (because we get different parameters)
-    static TreeFromBoxesBuilder create(BoxSet boxSet, Instances pruningData = null, int pruningParam = 0, int maxDepth = 0, int maxLeafs = 0) {
+    static TreeFromBoxesBuilder create(BoxSet boxSet, InstancesView pruningData = null, int pruningParam = 0, int maxDepth = 0, int maxLeafs = 0) {
 
         if (pruningParam <= 9) {
             // tree building with classical pruning
@@ -118,7 +123,7 @@ abstract class TreeFromBoxesBuilder {
     final static class RankedPruningTreeFromBoxesBuilder extends TreeFromBoxesBuilder implements PerfUtils {
 
 
-        RankedPruningTreeFromBoxesBuilder(BoxSet _boxSet, Instances _pruningData, int  _pruningParam) {
+        RankedPruningTreeFromBoxesBuilder(BoxSet _boxSet, InstancesView _pruningData, int  _pruningParam) {
             super(_boxSet, _pruningData, _pruningParam)
             // this.isPruningDataAvail = true // disregard that we might have no pruningData - still prune
         }
@@ -138,7 +143,7 @@ abstract class TreeFromBoxesBuilder {
 
 
             // re-create the root
-            root = new TreeOfBoxesNode(reducedBoxSet)
+            root = new TreeOfBoxesNode(reducedBoxSet, context)
             tree.buildTree()
 
             def t2 = tic()
@@ -156,11 +161,11 @@ abstract class TreeFromBoxesBuilder {
     @Typed
     final static class UnlimitedTreeFromBoxesBuilder extends TreeFromBoxesBuilder {
 
-        UnlimitedTreeFromBoxesBuilder(BoxSet _boxSet, Instances _pruningData, int  _pruningParam) {
+        UnlimitedTreeFromBoxesBuilder(BoxSet _boxSet, InstancesView _pruningData, int  _pruningParam) {
             super(_boxSet, _pruningData, _pruningParam)
 
-            NodeModel.MAX_DEPTH = Integer.MAX_VALUE
-            NodeModel.MAX_CUBES_FOR_LEAF = 1
+            context.maxDepth = Integer.MAX_VALUE
+            context.maxCubesForLeaf = 1
         }
 
         void buildTree() {
@@ -181,11 +186,11 @@ abstract class TreeFromBoxesBuilder {
     @Typed
     final static class MaxDepthTreeFromBoxesBuilder extends TreeFromBoxesBuilder {
 
-        MaxDepthTreeFromBoxesBuilder(BoxSet _boxSet, Instances _pruningData, int  _pruningParam, int _maxDepth) {
+        MaxDepthTreeFromBoxesBuilder(BoxSet _boxSet, InstancesView _pruningData, int  _pruningParam, int _maxDepth) {
             super(_boxSet, _pruningData, _pruningParam)
 
-            NodeModel.MAX_DEPTH = _maxDepth
-            NodeModel.MAX_CUBES_FOR_LEAF = 1
+            context.maxDepth = _maxDepth
+            context.maxCubesForLeaf = 1
         }
 
         void buildTree() {
@@ -219,13 +224,13 @@ abstract class TreeFromBoxesBuilder {
         private final PriorityQueue<TreeOfBoxesNode> nodesToProcess
         private final int maxLeafs
 
-        MaxLeafsTreeFromBoxesBuilder(BoxSet _boxSet, Instances _pruningData, int  _pruningParam, int _maxLeafs) {
+        MaxLeafsTreeFromBoxesBuilder(BoxSet _boxSet, InstancesView _pruningData, int  _pruningParam, int _maxLeafs) {
             super(_boxSet, _pruningData, _pruningParam)
 
             this.maxLeafs = _maxLeafs
-            NodeModel.MAX_DEPTH = Integer.MAX_VALUE
-            NodeModel.MAX_CUBES_FOR_LEAF = 1
-            TreeOfBoxesNode.treeStatistics = new TreeOfBoxesNode.TreeStatistics()
+            context.maxDepth = Integer.MAX_VALUE
+            context.maxCubesForLeaf = 1
+            context.resetStatistics()
 
             // initialize the priority queue
             // (with default initial capacity @see java.util.PriorityQueue.DEFAULT_INITIAL_CAPACITY)
@@ -245,18 +250,19 @@ abstract class TreeFromBoxesBuilder {
                 numLeafs--
 
                 // handle inner nodes
-                if (currentNode.boxes.size() > NodeModel.MAX_CUBES_FOR_LEAF &&
+                if (currentNode.boxes.size() > context.maxCubesForLeaf &&
                         currentNode.model.highestClassProbability() < 1.0) {
 
                     // do the splitting
-                    List<BoxSet> segregationResult = currentNode.model.computeSplit()
-                    TreeOfBoxesNode.treeStatistics.updateTotalNumBoxesCut currentNode.model.numBoxesCut
+                    List<List<ClassCube>> segregationResult = currentNode.model.computeSplit()
+                    context.treeStatistics.updateTotalNumBoxesCut currentNode.model.numBoxesCut
 
                     // and set children
-                    for (childContent in segregationResult) {
+                    for (int i = 0; i < segregationResult.size(); i++) {
 
-                        def child = new TreeOfBoxesNode(childContent)
+                        def child = new TreeOfBoxesNode(segregationResult[i], context)
                         child.father = currentNode
+                        child.presortedBoxes = currentNode.model.takeChildPresortedBoxes(i)
                         currentNode.children << child
                         nodesToProcess.add(child)
                         numLeafs++
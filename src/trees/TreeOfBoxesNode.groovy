@@ -30,6 +30,8 @@ import experiment.ExperimentResultSingletonHolder
 import groovy.util.logging.Log
 import weka.core.Instances
 import cubes.BoxSet
+import cubes.BoxTree
+import java.util.concurrent.RecursiveAction
 
 /**
  * Created by IntelliJ IDEA.
@@ -65,18 +67,22 @@ class TreeOfBoxesNode {
     // Just for convenience
     protected int nDims = -1
 
-    // todo: is there sth better than static but not nasty?
-    static TreeStatistics treeStatistics
+    // Settings and statistics of the build, shared by all nodes of a tree
+    protected TreeBuildContext context
+
+    // The boxes with their sorted bounds, handed down by the father (null at the root and after the split)
+    protected PresortedBoxes presortedBoxes
 
     protected ExperimentResult experimentResult
     int treeDepth
 
     // Or better a Static Factory Method?  see Effective Java #1, http://goo.gl/hpiru
-    TreeOfBoxesNode(Collection<ClassCube> _boxSet) {
+    TreeOfBoxesNode(Collection<ClassCube> _boxSet, TreeBuildContext _context = null) {
         assert _boxSet && _boxSet.size() > 0
 
         this.boxes = _boxSet
         this.numCubes = _boxSet.size()
+        this.context = _context != null ? _context : new TreeBuildContext()
 
         this.model = new NodeModel(this)
         if (boxes.size() > 0) {
@@ -100,6 +106,7 @@ class TreeOfBoxesNode {
     // Collapses this tree to a leaf
     void toLeaf() {
         model.setSuperCube()
+        presortedBoxes = null
         this.numCubes = 1
         children.clear()    // just to be sure
         isComputed = true
@@ -126,12 +133,13 @@ class TreeOfBoxesNode {
 
         // 2. not a leaf, do the splitting
         List<List<ClassCube>> segregationResult = model.computeSplit()
-        treeStatistics.updateTotalNumBoxesCut model.numBoxesCut
+        context.treeStatistics.updateTotalNumBoxesCut model.numBoxesCut
 
         // and set children
-        for (childContent in segregationResult) {
-            def child = new TreeOfBoxesNode(childContent)
+        for (int i = 0; i < segregationResult.size(); i++) {
+            def child = new TreeOfBoxesNode(segregationResult[i], context)
             child.father = this
+            child.presortedBoxes = model.takeChildPresortedBoxes(i)
             children << child
         }
 
@@ -156,17 +164,50 @@ class TreeOfBoxesNode {
         }
     }
 
-    /** Builds tree recursively
+    // Returns this subtree as a BoxTree whose leaves reference the boxes returned by getBoxSet()
+    BoxTree toBoxTree() {
+        assert isComputed, "Attempting to invoke toBoxTree() before tree is build - call buildTree() first."
+        if (isLeaf()) {
+            return BoxTree.createLeaf(new ArrayList<ClassCube>(boxes))
+        } else {
+            return BoxTree.createBinarySplit(model.splitDim, model.splitPoint, children[0].toBoxTree(), children[1].toBoxTree())
+        }
+    }
+
+    TreeBuildContext getContext() {
+        return context
+    }
+
+    // Statistics of the build of this tree
+    TreeStatistics getTreeStatistics() {
+        return context.treeStatistics
+    }
+
+    /** Builds tree recursively; in parallel (as fork-join tasks) if enabled in the context
      * @return
      */
     def buildTree(int recursionDepth = 0) {
+        if (recursionDepth == 0 && context.isParallel()) {
+            context.getPool().invoke(new BuildSubtreeTask(this, 0))
+            return
+        }
+
+        computeNode(recursionDepth)
+        // recursive descend
+        for (TreeOfBoxesNode child in children) {
+            child.buildTree(recursionDepth + 1)
+        }
+    }
+
+    // Computes the model and the children of this node (if not done yet)
+    protected void computeNode(int recursionDepth) {
         treeDepth = recursionDepth
         if (!isComputed) {
 
             if (recursionDepth == 0) {
-                treeStatistics = new TreeStatistics()
+                context.resetStatistics()
             } else {
-                treeStatistics.updateMaxRecursionDepth recursionDepth
+                context.treeStatistics.updateMaxRecursionDepth recursionDepth
             }
 
             // def time = System.currentTimeMillis()
@@ -180,9 +221,39 @@ class TreeOfBoxesNode {
             }
   */
         }
-        // recursive descend
-        for (TreeOfBoxesNode child in children) {
-            child.buildTree(recursionDepth + 1)
+    }
+
+    /*
+     Builds the subtree of a node: computes the node, then forks the children with at least context.parallelMinBoxes
+     boxes and builds the smaller ones sequentially in the current thread
+     */
+    static class BuildSubtreeTask extends RecursiveAction {
+        private final TreeOfBoxesNode node
+        private final int recursionDepth
+
+        BuildSubtreeTask(TreeOfBoxesNode node, int recursionDepth) {
+            this.node = node
+            this.recursionDepth = recursionDepth
+        }
+
+        @Override
+        protected void compute() {
+            node.computeNode(recursionDepth)
+
+            List<BuildSubtreeTask> forked = new ArrayList<BuildSubtreeTask>()
+            for (TreeOfBoxesNode child in node.children) {
+                if (node.context.isParallelFor(child.numCubes)) {
+                    def task = new BuildSubtreeTask(child, recursionDepth + 1)
+                    task.fork()
+                    forked << task
+                }
+            }
+            for (TreeOfBoxesNode child in node.children) {
+                if (!node.context.isParallelFor(child.numCubes))
+                    child.buildTree(recursionDepth + 1)
+            }
+            for (task in forked)
+                task.join()
         }
     }
 
@@ -243,15 +314,16 @@ class TreeOfBoxesNode {
         return result.toString()
     }
 
+    // Thread-safe, as subtrees may be built concurrently
     static class TreeStatistics {
         int maxRecursionDepth = 0
         int totalNumBoxesCut = 0
 
-        def updateMaxRecursionDepth(int newDepth) {
+        synchronized def updateMaxRecursionDepth(int newDepth) {
             maxRecursionDepth = newDepth > maxRecursionDepth ? newDepth : maxRecursionDepth
         }
 
-        def updateTotalNumBoxesCut(int numBoxesCut) {
+        synchronized def updateTotalNumBoxesCut(int numBoxesCut) {
             totalNumBoxesCut += numBoxesCut
         }
     }